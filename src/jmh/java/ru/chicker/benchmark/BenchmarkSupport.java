@@ -0,0 +1,91 @@
+package ru.chicker.benchmark;
+
+import ch.qos.logback.classic.Level;
+import javaslang.control.Either;
+import org.slf4j.LoggerFactory;
+import ru.chicker.DownloadLinkInfo;
+import ru.chicker.DownloadManager;
+import ru.chicker.DownloadSettings;
+import ru.chicker.DownloadSuccess;
+import ru.chicker.DownlodError;
+import ru.chicker.exception.InvalidFileStructureException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Общие для бенчмарков действия: приглушить журнал, подготовить папку и
+ * прогнать {@link DownloadManager} так же, как это делает {@code Main}.
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Сообщения о каждом файле на консоли искажали бы замеры.
+     */
+    static void quietLogging() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("ru.chicker"))
+            .setLevel(Level.WARN);
+    }
+
+    static Path createOutputFolder() throws IOException {
+        return Files.createTempDirectory("download-manager-bench");
+    }
+
+    static void clean(Path folder) throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    static void delete(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    static DownloadSettings.Builder settings(Path outputFolder) {
+        return DownloadSettings.builder()
+            .outputFolderName(outputFolder.toString())
+            .progressInterval(0);
+    }
+
+    static List<DownloadLinkInfo> links(PayloadServer server, int count, long size,
+                                        long latencyMs, long bytesPerSecond) {
+        List<DownloadLinkInfo> links = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            links.add(new DownloadLinkInfo("file-" + i + ".bin",
+                server.url(size, latencyMs, bytesPerSecond)));
+        }
+        return links;
+    }
+
+    /**
+     * @return количество скачанных байт
+     * @throws IllegalStateException если хотя бы один файл не скачался:
+     *                               такой замер ничего не говорит
+     */
+    static long download(Collection<DownloadLinkInfo> links, DownloadSettings settings)
+    throws InterruptedException, InvalidFileStructureException {
+        long bytes = 0;
+        for (Either<DownlodError, DownloadSuccess> result :
+            new DownloadManager(links, settings).start()) {
+            if (result.isLeft()) {
+                throw new IllegalStateException(result.getLeft().toString());
+            }
+            bytes += result.get().getDownloadedFileSize();
+        }
+        return bytes;
+    }
+}
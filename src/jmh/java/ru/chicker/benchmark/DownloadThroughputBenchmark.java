@@ -0,0 +1,89 @@
+package ru.chicker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.chicker.DownloadLinkInfo;
+import ru.chicker.DownloadSettings;
+import ru.chicker.exception.InvalidFileStructureException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность пути {@code DownloadManager -> Downloader} на
+ * локальном сервере без задержек: упираемся только в собственные накладные
+ * расходы - буфер, запись на диск, ограничитель скорости, очередь задач.
+ * <p>
+ * Аллокации на мегабайт: запустите с профилировщиком {@code gc} (включен в
+ * задаче {@code jmh}) и разделите {@code gc.alloc.rate.norm} метода
+ * {@link #singleLargeFile()} на {@link #LARGE_FILE_MB}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadThroughputBenchmark {
+    public static final int LARGE_FILE_MB = 32;
+    private static final long LARGE_FILE_SIZE = LARGE_FILE_MB * 1024L * 1024;
+    private static final int SMALL_FILES = 500;
+    private static final long SMALL_FILE_SIZE = 16 * 1024;
+
+    @Param({"THREADS", "ASYNC"})
+    public DownloadSettings.EngineType engine;
+
+    private PayloadServer server;
+    private Path outputFolder;
+    private List<DownloadLinkInfo> largeFile;
+    private List<DownloadLinkInfo> smallFiles;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkSupport.quietLogging();
+        server = PayloadServer.start();
+        outputFolder = BenchmarkSupport.createOutputFolder();
+        largeFile = BenchmarkSupport.links(server, 1, LARGE_FILE_SIZE, 0, 0);
+        smallFiles = BenchmarkSupport.links(server, SMALL_FILES, SMALL_FILE_SIZE, 0, 0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanOutput() throws IOException {
+        BenchmarkSupport.clean(outputFolder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        BenchmarkSupport.delete(outputFolder);
+    }
+
+    @Benchmark
+    public long singleLargeFile() throws InterruptedException, InvalidFileStructureException {
+        return BenchmarkSupport.download(largeFile, BenchmarkSupport.settings(outputFolder)
+            .engineType(engine)
+            .numThreads(1)
+            .build());
+    }
+
+    @Benchmark
+    public long manySmallFiles() throws InterruptedException, InvalidFileStructureException {
+        return BenchmarkSupport.download(smallFiles, BenchmarkSupport.settings(outputFolder)
+            .engineType(engine)
+            .numThreads(16)
+            .build());
+    }
+}
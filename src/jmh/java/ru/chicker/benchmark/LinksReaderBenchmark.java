@@ -0,0 +1,133 @@
+package ru.chicker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.chicker.DownloadLinkInfo;
+import ru.chicker.LinksReader;
+import ru.chicker.exception.InvalidFileStructureException;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Чтение списка ссылок: прежний {@link LinksReader#load(String)}, который
+ * собирает весь файл в {@code HashSet}, против ленивого
+ * {@link LinksReader#stream(String)} с отпечатками имен файлов, ссылки из
+ * которого, как и в программе, отдаются потребителю по одной. С
+ * профилировщиком {@code gc} видно и время, и аллокации на строку.
+ * <p>
+ * В конце каждого запуска печатается наибольшая занятость старого
+ * поколения за один разбор: перед каждым вызовом куча чистится и пиковые
+ * значения сбрасываются. Молодое поколение уменьшено, чтобы то, что разбор
+ * держит до конца (весь список у {@code load}), попадало в старое поколение,
+ * а временные объекты умирали молодыми.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmn16m")
+public class LinksReaderBenchmark {
+    @Param({"100000", "1000000"})
+    public int lines;
+
+    private final LinksReader linksReader = new LinksReader();
+    private Path linksFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        linksFile = Files.createTempFile("links", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(linksFile,
+            StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lines; i++) {
+                if (i > 0) {
+                    // load() не понимает перевод строки в конце файла
+                    writer.newLine();
+                }
+                writer.write(String.format("http://example.com/files/%d/archive.zip " +
+                    "archive-%d.zip", i, i));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(linksFile);
+    }
+
+    @Benchmark
+    public int load(PeakHeap heap)
+    throws FileNotFoundException, InvalidFileStructureException {
+        return linksReader.load(linksFile.toString()).size();
+    }
+
+    @Benchmark
+    public void stream(PeakHeap heap, Blackhole blackhole) throws FileNotFoundException {
+        try (Stream<DownloadLinkInfo> links = linksReader.stream(linksFile.toString())) {
+            links.forEach(blackhole::consume);
+        }
+    }
+
+    /**
+     * Пиковая занятость старого поколения кучи.
+     */
+    @State(Scope.Thread)
+    public static class PeakHeap {
+        private final List<MemoryPoolMXBean> oldGenPools =
+            ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .filter(pool -> pool.getName().contains("Old")
+                    || pool.getName().contains("Tenured"))
+                .collect(Collectors.toList());
+
+        private long peakHeapBytes;
+
+        // Вызов разбирает файл в десятки миллисекунд, так что сборка мусора
+        // перед ним на результат не влияет
+        @Setup(Level.Invocation)
+        public void resetPeak() {
+            System.gc();
+            oldGenPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        }
+
+        @TearDown(Level.Invocation)
+        public void recordPeak() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : oldGenPools) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+            peakHeapBytes = Math.max(peakHeapBytes, peak);
+        }
+
+        // Счетчики JMH суммируются по итерациям, поэтому пик печатаем сами
+        @TearDown(Level.Trial)
+        public void printPeak() {
+            System.out.printf("%nПиковая занятость старого поколения: %.1f Mb%n",
+                peakHeapBytes / (1024.0 * 1024.0));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.chicker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.chicker.DownloadLinkInfo;
+import ru.chicker.DownloadSettings;
+import ru.chicker.exception.InvalidFileStructureException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Точность ограничения скорости: {@link #FILES} файлов по {@link #FILE_SIZE}
+ * байт качаются при {@code -l limit} и {@code -b 64k}.
+ * <p>
+ * Идеальное время - {@code (FILES * FILE_SIZE - 64k) / limit}: при 1 МБ/с это
+ * 3,94 с, при 4 МБ/с - 0,98 с. Превышение показывает, насколько
+ * ограничитель недодает полосу, а меньшее время - что он ее превышает.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RateLimitAccuracyBenchmark {
+    private static final int FILES = 4;
+    private static final long FILE_SIZE = 1024 * 1024;
+    private static final long BURST_SIZE = 64 * 1024;
+
+    @Param({"1048576", "4194304"})
+    public long limit;
+
+    @Param({"THREADS", "ASYNC"})
+    public DownloadSettings.EngineType engine;
+
+    private PayloadServer server;
+    private Path outputFolder;
+    private List<DownloadLinkInfo> links;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkSupport.quietLogging();
+        server = PayloadServer.start();
+        outputFolder = BenchmarkSupport.createOutputFolder();
+        links = BenchmarkSupport.links(server, FILES, FILE_SIZE, 0, 0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanOutput() throws IOException {
+        BenchmarkSupport.clean(outputFolder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        BenchmarkSupport.delete(outputFolder);
+    }
+
+    @Benchmark
+    public long limitedDownload() throws InterruptedException, InvalidFileStructureException {
+        return BenchmarkSupport.download(links, BenchmarkSupport.settings(outputFolder)
+            .engineType(engine)
+            .numThreads(FILES)
+            .limitSpeed(limit)
+            .burstSize(BURST_SIZE)
+            .build());
+    }
+}
@@ -0,0 +1,45 @@
+package ru.chicker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.chicker.RateLimiter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Цена одного обращения к общему ограничителю скорости, когда его
+ * одновременно вызывают все загрузчики. Скорость заведомо недостижима,
+ * поэтому меряется только синхронизация и пересчет ведра, без ожидания.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RateLimiterBenchmark {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final RateLimiter rateLimiter = new RateLimiter(Long.MAX_VALUE / 2,
+        Long.MAX_VALUE / 2);
+
+    @Benchmark
+    @Threads(1)
+    public long uncontended() {
+        return rateLimiter.reserve(BLOCK_SIZE);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long contended() {
+        return rateLimiter.reserve(BLOCK_SIZE);
+    }
+}
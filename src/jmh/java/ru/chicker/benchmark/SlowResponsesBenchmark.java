@@ -0,0 +1,81 @@
+package ru.chicker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.chicker.DownloadLinkInfo;
+import ru.chicker.DownloadSettings;
+import ru.chicker.exception.InvalidFileStructureException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Тысячи медленных ответов: каждый сервер отдает через
+ * {@link #LATENCY_MS} мс. При {@code -n}, равном числу файлов, идеальное
+ * время - одна задержка. Движок threads держит на это по потоку на ответ,
+ * async обходится несколькими потоками ввода-вывода.
+ * <p>
+ * Требует лимита открытых файлов не меньше {@code 2 * transfers} плюс
+ * запас: клиент и сервер работают в одном процессе.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class SlowResponsesBenchmark {
+    private static final long LATENCY_MS = 500;
+    private static final long FILE_SIZE = 4 * 1024;
+
+    @Param({"5000"})
+    public int transfers;
+
+    @Param({"THREADS", "ASYNC"})
+    public DownloadSettings.EngineType engine;
+
+    private PayloadServer server;
+    private Path outputFolder;
+    private List<DownloadLinkInfo> links;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkSupport.quietLogging();
+        server = PayloadServer.start();
+        outputFolder = BenchmarkSupport.createOutputFolder();
+        links = BenchmarkSupport.links(server, transfers, FILE_SIZE, LATENCY_MS, 0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanOutput() throws IOException {
+        BenchmarkSupport.clean(outputFolder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        BenchmarkSupport.delete(outputFolder);
+    }
+
+    @Benchmark
+    public long slowResponses() throws InterruptedException, InvalidFileStructureException {
+        return BenchmarkSupport.download(links, BenchmarkSupport.settings(outputFolder)
+            .engineType(engine)
+            .numThreads(transfers)
+            .queueCapacity(transfers)
+            .build());
+    }
+}
@@ -0,0 +1,163 @@
+package ru.chicker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Обертка над планировщиком, которая выдает задачи, только пока число
+ * выполняемых задач меньше текущего предела. Загрузчиков запускается
+ * столько, сколько разрешает верхняя граница, а реально работают из них
+ * столько, сколько выставил {@link ConcurrencyController}. Лишние ждут в
+ * {@code poll}, а при уменьшении предела начатые закачки доделываются.
+ */
+public class AdaptiveTaskScheduler implements TaskScheduler {
+    private final TaskScheduler delegate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private int limit;
+    private int active;
+
+    public AdaptiveTaskScheduler(TaskScheduler delegate, int initialLimit) {
+        this.delegate = delegate;
+        this.limit = initialLimit;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setLimit(int limit) {
+        lock.lock();
+        try {
+            this.limit = limit;
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(DownloadTask task) throws InterruptedException {
+        delegate.put(task);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public DownloadTask poll() {
+        if (!tryEnter()) {
+            return null;
+        }
+        DownloadTask task = delegate.poll();
+        if (task == null) {
+            exit();
+        }
+        return task;
+    }
+
+    @Override
+    public DownloadTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            while (active >= limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                slotFreed.awaitNanos(remaining);
+            }
+            active++;
+        } finally {
+            lock.unlock();
+        }
+
+        DownloadTask task = null;
+        try {
+            task = delegate.poll(Math.max(0, deadline - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+        } finally {
+            if (task == null) {
+                exit();
+            }
+        }
+        return task;
+    }
+
+    @Override
+    public boolean tryAcquire(DownloadTask task) {
+        if (!tryEnter()) {
+            return false;
+        }
+        if (!delegate.tryAcquire(task)) {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void release(DownloadTask task) {
+        delegate.release(task);
+        exit();
+    }
+
+    // Задача остается выполняемой, поэтому предел здесь не проверяется
+    @Override
+    public boolean transfer(DownloadTask from, DownloadTask to) {
+        return delegate.transfer(from, to);
+    }
+
+    @Override
+    public boolean isDrained() {
+        return delegate.isDrained();
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    private boolean tryEnter() {
+        lock.lock();
+        try {
+            if (active >= limit) {
+                return false;
+            }
+            active++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void exit() {
+        lock.lock();
+        try {
+            active--;
+            slotFreed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package ru.chicker;
+
+import javaslang.control.Either;
+import javaslang.control.Option;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.checksum.ChecksumAlgorithm;
+import ru.chicker.checksum.ContentHasher;
+import ru.chicker.exception.HttpStatusException;
+import ru.chicker.metrics.DownloadMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Неблокирующий движок: все закачки обслуживает несколько потоков
+ * ввода-вывода HttpAsyncClient, поэтому {@code -n} задает не число потоков,
+ * а число одновременных закачек и может исчисляться тысячами.
+ * <p>
+ * Когда общий ограничитель скорости требует подождать, чтение из
+ * соединения приостанавливается и возобновляется по таймеру, не занимая
+ * поток. Файлы качаются целиком, без деления на сегменты и докачки.
+ */
+public class AsyncDownloadEngine implements DownloadEngine {
+    private static final int BUFFER_SIZE = 64 * 1024; // 64 Kb
+    private static final long WAIT_FOR_TASK_MS = 100;
+
+    private final Logger log = LoggerFactory.getLogger(AsyncDownloadEngine.class);
+
+    private final DownloadSettings settings;
+    private final BandwidthShares bandwidth;
+    private final DownloadMetrics metrics;
+    private final DownloadManifest manifest;
+    private final TransferWatchdog watchdog;
+    private final RetryQueue retryQueue;
+    private final RetryPolicy retryPolicy;
+    private final MirrorSelector mirrorSelector;
+    // буфер на каждый поток ввода-вывода, а не на каждую закачку
+    private final ThreadLocal<ByteBuffer> buffers =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    public AsyncDownloadEngine(DownloadSettings settings, BandwidthShares bandwidth,
+                               DownloadMetrics metrics, DownloadManifest manifest,
+                               TransferWatchdog watchdog, RetryQueue retryQueue,
+                               RetryPolicy retryPolicy,
+                               MirrorSelector mirrorSelector) {
+        this.settings = settings;
+        this.bandwidth = bandwidth;
+        this.metrics = metrics;
+        this.manifest = manifest;
+        this.watchdog = watchdog;
+        this.retryQueue = retryQueue;
+        this.retryPolicy = retryPolicy;
+        this.mirrorSelector = mirrorSelector;
+    }
+
+    @Override
+    public void run(TaskScheduler scheduler, DownloadListener listener)
+    throws InterruptedException {
+        int maxTransfers = settings.getNumThreads();
+        Semaphore transferSlots = new Semaphore(maxTransfers);
+        ScheduledExecutorService throttleTimer = Executors.newSingleThreadScheduledExecutor();
+
+        try (CloseableHttpAsyncClient httpClient = createHttpClient(maxTransfers)) {
+            httpClient.start();
+
+            // по истечении общего срока новые закачки не начинаются, а
+            // оставшиеся задачи DownloadManager отметит как не начатые
+            while (!watchdog.isDeadlineExpired()) {
+                transferSlots.acquire();
+                DownloadTask retry = retryQueue.poll(scheduler);
+                DownloadTask queued = retry != null ? retry
+                    : scheduler.poll(WAIT_FOR_TASK_MS, TimeUnit.MILLISECONDS);
+                DownloadTask task = queued == null ? null
+                    : mirrorSelector.assign(queued, scheduler, retryQueue);
+                if (task == null) {
+                    transferSlots.release();
+                    // идущая закачка еще может вернуть задачу в очередь
+                    if (scheduler.isDrained() && retryQueue.isEmpty()
+                        && transferSlots.availablePermits() == maxTransfers) {
+                        break;
+                    }
+                    continue;
+                }
+                BandwidthShares.Share rateLimiter = bandwidth.enter(task.getLinkInfo());
+                startTransfer(httpClient, task, rateLimiter, throttleTimer, () -> {
+                    bandwidth.exit(task.getLinkInfo());
+                    scheduler.release(task);
+                    transferSlots.release();
+                }, listener);
+            }
+
+            // дожидаемся закачек, которые еще идут
+            transferSlots.acquire(maxTransfers);
+        } catch (IOException e) {
+            log.warn("Не удалось корректно закрыть пул соединений: {}",
+                e.getLocalizedMessage());
+        } finally {
+            throttleTimer.shutdownNow();
+        }
+    }
+
+    private CloseableHttpAsyncClient createHttpClient(int maxTransfers)
+    throws IOReactorException {
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+            .setIoThreadCount(Runtime.getRuntime().availableProcessors())
+            .build();
+        PoolingNHttpClientConnectionManager connectionManager =
+            new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(reactorConfig));
+        connectionManager.setMaxTotal(maxTransfers);
+        connectionManager.setDefaultMaxPerRoute(Math.min(maxTransfers,
+            settings.getMaxConnectionsPerHost()));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(settings.getConnectTimeout()))
+            .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(settings.getReadTimeout()))
+            .build();
+
+        return HttpAsyncClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .build();
+    }
+
+    private void startTransfer(CloseableHttpAsyncClient httpClient, DownloadTask task,
+                               BandwidthShares.Share rateLimiter,
+                               ScheduledExecutorService throttleTimer,
+                               Runnable onFinish, DownloadListener listener) {
+        DownloadLinkInfo linkInfo = task.getLinkInfo();
+        Path outputFilePath = FileSystems.getDefault().getPath(task.getOutputFolder(),
+            linkInfo.getFileName());
+        String mirror = task.getMirror();
+        HttpGet httpget = new HttpGet(mirror);
+        Option<DownloadManifest.Entry> cached = settings.isForceDownload()
+            ? Option.none()
+            : manifest.addConditions(httpget, linkInfo, outputFilePath);
+        log.info("Приступаю к загрузке {}", linkInfo.getFileName());
+        if (task.getAttempt() == 1) {
+            listener.onStarted(linkInfo);
+        }
+        DownloadMetrics.Transfer transfer = metrics.startTransfer(linkInfo.getFileName());
+        // запрос прерывается отменой его Future, которое появится после execute
+        AtomicReference<Future<DownloadSuccess>> future = new AtomicReference<>();
+        TransferWatchdog.Watch watch = watchdog.watch(transfer, () -> {
+            Future<DownloadSuccess> request = future.get();
+            if (request != null) {
+                request.cancel(true);
+            }
+        });
+
+        future.set(httpClient.execute(HttpAsyncMethods.create(httpget),
+            new FileResponseConsumer(linkInfo, outputFilePath, cached, transfer,
+                rateLimiter, throttleTimer),
+            new FutureCallback<DownloadSuccess>() {
+                @Override
+                public void completed(DownloadSuccess success) {
+                    if (success.isUpToDate()) {
+                        log.info("Файл {} не изменился на сервере",
+                            linkInfo.getFileName());
+                    } else {
+                        log.info("Загрузка {} завершена", linkInfo.getFileName());
+                        mirrorSelector.onSuccess(mirror, transfer.getBytesReceived(),
+                            transfer.getActiveNanos());
+                    }
+                    finish(Either.right(success.withAttempts(task.getAttempt())));
+                }
+
+                @Override
+                public void failed(Exception error) {
+                    Throwable cause = watch.asTimeout(error);
+                    if (failOver(cause)) {
+                        return;
+                    }
+                    long delayMillis = retryPolicy.retryDelayMillis(task, cause);
+                    if (delayMillis >= 0 && !watchdog.isDeadlineExpired()) {
+                        // задержку выдерживает очередь повторов, а не поток
+                        log.warn("Закачка {} не удалась ({}), попытка {} из {} через {} мс",
+                            linkInfo.getFileName(), cause.getLocalizedMessage(),
+                            task.getAttempt() + 1, retryPolicy.getMaxAttempts(cause),
+                            delayMillis);
+                        retryQueue.add(task.nextAttempt(), delayMillis);
+                        release();
+                        return;
+                    }
+                    finish(Either.left(new DownlodError(linkInfo, cause,
+                        task.getAttempt())));
+                }
+
+                @Override
+                public void cancelled() {
+                    failed(new CancellationException("Закачка отменена"));
+                }
+
+                // сразу пробуем другое зеркало, если в этой попытке отказали не все
+                private boolean failOver(Throwable cause) {
+                    if (!retryPolicy.canFailOver(cause)) {
+                        return false;
+                    }
+                    mirrorSelector.onFailure(mirror);
+                    DownloadTask next = task.failover(mirror);
+                    if (!next.hasUntriedMirrors() || watchdog.isDeadlineExpired()) {
+                        return false;
+                    }
+                    log.warn("Закачка {} с {} не удалась ({}), переключаюсь на другое " +
+                        "зеркало", linkInfo.getFileName(),
+                        HostFairTaskScheduler.hostName(mirror), cause.getLocalizedMessage());
+                    retryQueue.add(next, 0);
+                    release();
+                    return true;
+                }
+
+                private void finish(Either<DownlodError, DownloadSuccess> result) {
+                    metrics.fileFinished(linkInfo.getFileName(), result.isRight());
+                    listener.onFinished(result);
+                    release();
+                }
+
+                private void release() {
+                    watch.close();
+                    transfer.finish();
+                    onFinish.run();
+                }
+            }));
+        if (watch.getTimeout() != null) {
+            // наблюдатель прервал закачку раньше, чем появилось ее Future
+            future.get().cancel(true);
+        }
+    }
+
+    /**
+     * Пишет тело ответа во временный файл по мере поступления данных и
+     * переименовывает его в итоговый, когда ответ получен целиком.
+     */
+    private final class FileResponseConsumer
+        extends AbstractAsyncResponseConsumer<DownloadSuccess> {
+        private final DownloadLinkInfo linkInfo;
+        private final Path outputFilePath;
+        private final Path tempFilePath;
+        private final Option<DownloadManifest.Entry> cached;
+        private final DownloadMetrics.Transfer transfer;
+        private final BandwidthShares.Share rateLimiter;
+        private final ScheduledExecutorService throttleTimer;
+        private final ContentHasher hasher;
+        private HttpResponse response;
+        private FileChannel fileChannel;
+        private long bytesRead;
+        private boolean completed;
+
+        FileResponseConsumer(DownloadLinkInfo linkInfo, Path outputFilePath,
+                             Option<DownloadManifest.Entry> cached,
+                             DownloadMetrics.Transfer transfer,
+                             BandwidthShares.Share rateLimiter,
+                             ScheduledExecutorService throttleTimer) {
+            this.linkInfo = linkInfo;
+            this.outputFilePath = outputFilePath;
+            this.tempFilePath = Downloader.tempFilePath(outputFilePath);
+            this.cached = cached;
+            this.transfer = transfer;
+            this.rateLimiter = rateLimiter;
+            this.throttleTimer = throttleTimer;
+            ChecksumAlgorithm algorithm = settings.checksumAlgorithmFor(linkInfo);
+            this.hasher = algorithm != null ? algorithm.newHasher() : null;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws IOException {
+            int statusCode = response.getStatusLine().getStatusCode();
+            transfer.responseReceived(statusCode);
+            if (statusCode != 200 && !(statusCode == 304 && cached.isDefined())) {
+                throw new HttpStatusException(response);
+            }
+            this.response = response;
+        }
+
+        private boolean isNotModified() {
+            return response.getStatusLine().getStatusCode() == 304;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType)
+        throws IOException {
+            if (isNotModified()) {
+                return;
+            }
+            fileChannel = FileChannel.open(tempFilePath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl)
+        throws IOException {
+            ByteBuffer buffer = buffers.get();
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, rateLimiter.getBurstSize()));
+            int read = decoder.read(buffer);
+            if (read <= 0 || fileChannel == null) {
+                // тело ответа 304, если сервер его все-таки прислал, не нужно
+                return;
+            }
+
+            transfer.bytesReceived(read);
+            long writeStartNanos = System.nanoTime();
+            buffer.flip();
+            if (hasher != null) {
+                hasher.update(buffer);
+            }
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            // поток ввода-вывода пишет сам, и все это время закачку держит диск
+            long writeNanos = System.nanoTime() - writeStartNanos;
+            metrics.onDiskWrite(writeNanos);
+            transfer.waitedForDisk(writeNanos);
+            bytesRead += read;
+
+            // вместо сна потока приостанавливаем чтение из соединения
+            long waitNanos = rateLimiter.reserve(read);
+            transfer.throttled(waitNanos);
+            if (waitNanos > 0 && !decoder.isCompleted()) {
+                ioControl.suspendInput();
+                throttleTimer.schedule(ioControl::requestInput, waitNanos,
+                    TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        protected DownloadSuccess buildResult(HttpContext context) throws IOException {
+            if (isNotModified()) {
+                return DownloadSuccess.upToDate(linkInfo, cached.get().getLength());
+            }
+            if (fileChannel != null) {
+                fileChannel.close();
+                if (linkInfo.getExpectedChecksum() != null) {
+                    // при несовпадении временный файл удалит releaseResources
+                    linkInfo.getExpectedChecksum().verify(linkInfo.getFileName(),
+                        hasher.toHex());
+                }
+                Files.move(tempFilePath, outputFilePath,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            completed = true;
+            manifest.put(DownloadManifest.Entry.fromResponse(linkInfo.getHttpLink(),
+                response, bytesRead, hasher != null ? hasher.toTaggedHex() : null));
+            return new DownloadSuccess(linkInfo, bytesRead);
+        }
+
+        @Override
+        protected void releaseResources() {
+            try {
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+                if (!completed) {
+                    Files.deleteIfExists(tempFilePath);
+                }
+            } catch (IOException e) {
+                log.warn("Не удалось удалить временный файл {}: {}", tempFilePath,
+                    e.getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package ru.chicker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Делит общее ограничение скорости между классами приоритета (см.
+ * {@link PriorityClasses}).
+ * <p>
+ * Общий предел {@code -l}/{@code -b} держит один {@link RateLimiter} на все
+ * закачки, как и без классов. Поверх него у каждого класса, у которого идут
+ * закачки, свое ведро: оно пополняется со скоростью, пропорциональной весу
+ * класса среди таких классов, и вмещает такую же долю всплеска, так что
+ * сумма скоростей и всплесков классов не больше общих. Байты, которые
+ * класс не успевает потратить (например, его сервер медленный), переливаются
+ * через край его ведра в общий запас, и из него берут классы, которым своей
+ * доли не хватает. Поэтому полоса простаивающих классов достается тем, кто
+ * еще качает, а делится по весам только между теми, кто ее действительно
+ * выбирает.
+ */
+public class BandwidthShares {
+    private static final double NANOS_IN_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final PriorityClasses classes;
+    private final long bytesPerSecond;
+    private final long burstSize;
+    private final RateLimiter total;
+
+    // сколько закачек каждого класса идет сейчас
+    private final int[] active;
+    // ведра классов; могут уходить в минус, как и RateLimiter
+    private final double[] rates;
+    private final double[] bursts;
+    private final double[] available;
+    // перелившиеся через край ведер байты, которые можно занять; вначале
+    // запас полон, как и ведро RateLimiter
+    private double spare;
+    private long lastRefillNanos = System.nanoTime();
+
+    public BandwidthShares(PriorityClasses classes, long bytesPerSecond, long burstSize) {
+        this.classes = classes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstSize = burstSize;
+        this.total = new RateLimiter(bytesPerSecond, burstSize);
+        this.active = new int[classes.size()];
+        this.rates = new double[classes.size()];
+        this.bursts = new double[classes.size()];
+        this.available = new double[classes.size()];
+        this.spare = burstSize;
+    }
+
+    /**
+     * Закачка файла {@code linkInfo} начинается.
+     *
+     * @return доля полосы, через которую она должна читать данные; по
+     * окончании нужно вызвать {@link #exit(DownloadLinkInfo)}
+     */
+    public synchronized Share enter(DownloadLinkInfo linkInfo) {
+        int index = classes.indexOf(linkInfo);
+        if (active[index]++ == 0) {
+            rebalance();
+        }
+        return new Share(index);
+    }
+
+    public synchronized void exit(DownloadLinkInfo linkInfo) {
+        int index = classes.indexOf(linkInfo);
+        if (--active[index] == 0) {
+            rebalance();
+        }
+    }
+
+    // Доли пересчитываются, когда у класса начинается первая или
+    // заканчивается последняя закачка
+    private void rebalance() {
+        refill(System.nanoTime());
+        long totalWeight = 0;
+        for (int i = 0; i < active.length; i++) {
+            if (active[i] > 0) {
+                totalWeight += classes.getWeight(i);
+            }
+        }
+        for (int i = 0; i < active.length; i++) {
+            double share = active[i] > 0 ? (double) classes.getWeight(i) / totalWeight : 0;
+            rates[i] = bytesPerSecond * share;
+            bursts[i] = burstSize * share;
+            available[i] = Math.min(available[i], bursts[i]);
+        }
+    }
+
+    private synchronized long reserve(int index, long bytes) {
+        refill(System.nanoTime());
+        available[index] -= bytes;
+        if (available[index] < 0 && spare > 0) {
+            double borrowed = Math.min(spare, -available[index]);
+            spare -= borrowed;
+            available[index] += borrowed;
+        }
+        if (available[index] >= 0) {
+            return 0;
+        }
+        return (long) (-available[index] * NANOS_IN_SECOND / rates[index]);
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefillNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastRefillNanos = nowNanos;
+        for (int i = 0; i < available.length; i++) {
+            if (rates[i] == 0) {
+                continue;
+            }
+            available[i] += elapsed * rates[i] / NANOS_IN_SECOND;
+            if (available[i] > bursts[i]) {
+                spare += available[i] - bursts[i];
+                available[i] = bursts[i];
+            }
+        }
+        spare = Math.min(spare, burstSize);
+    }
+
+    /**
+     * Доля полосы одного класса.
+     */
+    public final class Share {
+        private final int index;
+
+        private Share(int index) {
+            this.index = index;
+        }
+
+        public long getBurstSize() {
+            return burstSize;
+        }
+
+        /**
+         * Списывает {@code bytes} из ведра класса и из общего, не блокируя
+         * вызывающий поток.
+         *
+         * @return сколько наносекунд нужно подождать, прежде чем продолжать
+         */
+        public long reserve(long bytes) {
+            return Math.max(BandwidthShares.this.reserve(index, bytes),
+                total.reserve(bytes));
+        }
+
+        /**
+         * То же, что {@link #reserve(long)}, но засыпает на нужное время.
+         *
+         * @return сколько наносекунд пришлось ждать
+         */
+        public long acquire(long bytes) throws InterruptedException {
+            long waitNanos = reserve(bytes);
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            return Math.max(0, waitNanos);
+        }
+    }
+}
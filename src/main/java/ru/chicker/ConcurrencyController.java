@@ -0,0 +1,148 @@
+package ru.chicker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.metrics.DownloadMetrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ru.chicker.util.ByteUtils.formatBytes;
+
+/**
+ * Подбирает число одновременных закачек для {@code -n auto} по схеме AIMD.
+ * <p>
+ * Раз в {@link #INTERVAL_SECONDS} секунд сравнивается полезная скорость за
+ * интервал с предыдущей:
+ * <ul>
+ * <li>сервер отвечает 429/503 или больше {@link #MAX_FAILURE_SHARE} закачек
+ * завершается ошибкой - предел уменьшается вдвое;</li>
+ * <li>большую часть времени закачки ждут общий ограничитель скорости -
+ * предел не растет, новые соединения полосы не добавят;</li>
+ * <li>предыдущее увеличение не дало прироста скорости хотя бы на
+ * {@link #MIN_GAIN} - оно отменяется и несколько интервалов предел не
+ * трогаем;</li>
+ * <li>иначе, если все разрешенные закачки заняты, предел растет на 1.</li>
+ * </ul>
+ * Каждое изменение предела пишется в журнал вместе с причиной.
+ */
+public class ConcurrencyController implements AutoCloseable {
+    private static final int INTERVAL_SECONDS = 2;
+    private static final double MIN_GAIN = 0.05;
+    private static final double MAX_FAILURE_SHARE = 0.2;
+    // по паре завершенных закачек долю ошибок не оценить
+    private static final int MIN_FINISHED = 5;
+    private static final double MAX_THROTTLED_SHARE = 0.5;
+    private static final int COOLDOWN_INTERVALS = 5;
+
+    private final Logger log = LoggerFactory.getLogger(ConcurrencyController.class);
+
+    private final AdaptiveTaskScheduler scheduler;
+    private final DownloadMetrics metrics;
+    private final int minLimit;
+    private final int maxLimit;
+    private final ScheduledExecutorService timer;
+
+    // значения на момент прошлого решения
+    private long lastNanos;
+    private long lastBytes;
+    private long lastCompleted;
+    private long lastFailed;
+    private long lastRejections;
+    private long lastThrottledNanos;
+    private double lastGoodput;
+    private boolean lastWasIncrease;
+    private int cooldown;
+
+    public ConcurrencyController(AdaptiveTaskScheduler scheduler, DownloadMetrics metrics,
+                                 int minLimit, int maxLimit) {
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.lastNanos = metrics.getElapsedNanos();
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "concurrency-controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::adjust, INTERVAL_SECONDS, INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+        log.info("Подбор числа закачек: от {} до {}, начинаю с {}", minLimit, maxLimit,
+            scheduler.getLimit());
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private void adjust() {
+        try {
+            decide();
+        } catch (RuntimeException e) {
+            // исключение отменило бы все следующие запуски по расписанию
+            log.warn("Ошибка подбора числа закачек: {}", e.getLocalizedMessage());
+        }
+    }
+
+    private void decide() {
+        long nowNanos = metrics.getElapsedNanos();
+        long bytes = metrics.getBytesDownloaded();
+        long completed = metrics.getFilesCompleted();
+        long failed = metrics.getFilesFailed();
+        long rejections = metrics.getServerRejections();
+        long throttledNanos = metrics.getThrottledNanos();
+
+        long intervalNanos = Math.max(1, nowNanos - lastNanos);
+        double goodput = (bytes - lastBytes) * (double) TimeUnit.SECONDS.toNanos(1)
+            / intervalNanos;
+        long newFailed = failed - lastFailed;
+        long finished = completed - lastCompleted + newFailed;
+        long newRejections = rejections - lastRejections;
+        int limit = scheduler.getLimit();
+        int active = scheduler.getActive();
+        double throttledShare = (throttledNanos - lastThrottledNanos)
+            / ((double) intervalNanos * Math.max(1, active));
+
+        int newLimit = limit;
+        String reason = null;
+        if (newRejections > 0) {
+            newLimit = Math.max(minLimit, limit / 2);
+            reason = String.format("сервер отказал %d раз", newRejections);
+        } else if (finished >= MIN_FINISHED
+            && (double) newFailed / finished > MAX_FAILURE_SHARE) {
+            newLimit = Math.max(minLimit, limit / 2);
+            reason = String.format("ошибок %d из %d", newFailed, finished);
+        } else if (throttledShare > MAX_THROTTLED_SHARE) {
+            log.debug("Предел {} не меняю: закачки упираются в ограничение скорости",
+                limit);
+        } else if (lastWasIncrease && goodput < lastGoodput * (1 + MIN_GAIN)) {
+            newLimit = Math.max(minLimit, limit - 1);
+            cooldown = COOLDOWN_INTERVALS;
+            reason = "прибавка закачки не ускорила";
+        } else if (cooldown > 0) {
+            cooldown--;
+        } else if (active >= limit && limit < maxLimit) {
+            newLimit = limit + 1;
+            reason = "все разрешенные закачки заняты";
+        }
+
+        if (newLimit != limit) {
+            scheduler.setLimit(newLimit);
+            log.info("Число закачек {} -> {}: {} (скорость {}/sec)", limit, newLimit,
+                reason, formatBytes((long) goodput));
+        }
+
+        lastWasIncrease = newLimit > limit;
+        lastNanos = nowNanos;
+        lastBytes = bytes;
+        lastCompleted = completed;
+        lastFailed = failed;
+        lastRejections = rejections;
+        lastThrottledNanos = throttledNanos;
+        lastGoodput = goodput;
+    }
+}
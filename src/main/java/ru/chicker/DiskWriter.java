@@ -0,0 +1,367 @@
+package ru.chicker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.metrics.DownloadMetrics;
+import ru.chicker.util.BufferPool;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Запись скачанных данных на диск отдельно от чтения из сети.
+ * <p>
+ * Загрузчик читает из сокета в буфер из общего пула ({@link #acquireBuffer()})
+ * и отдает его писателю ({@link Target#write}), не дожидаясь записи, так что
+ * медленный или неровный диск не останавливает сокеты. Когда свободных
+ * буферов нет, загрузчик ждет: это время и есть время, когда закачку
+ * сдерживает диск (см. {@link DownloadMetrics.Transfer#waitedForDisk}).
+ * <p>
+ * Каждый файл закреплен за одним из {@code threads} потоков-писателей, и
+ * записи в него выполняются по порядку. Писатель забирает из очереди все,
+ * что накопилось, склеивает идущие подряд буферы одного файла в одну запись
+ * и, если задан {@code syncBytes}, вызывает {@code fsync} не на каждый
+ * буфер, а когда в файл записано {@code syncBytes} байт с прошлого раза.
+ * Обработчики записи (продвижение журнала) вызываются только после этого,
+ * поэтому журнал не опережает то, что действительно лежит на диске.
+ */
+public class DiskWriter implements AutoCloseable {
+    // больше буферов за одну запись склеивать нет смысла
+    private static final int MAX_BATCH = 64;
+
+    private final Logger log = LoggerFactory.getLogger(DiskWriter.class);
+
+    private final BufferPool pool;
+    private final DownloadMetrics metrics;
+    private final long syncBytes;
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    // файлы, об ошибке записи в которые еще никто не узнал
+    private final Set<Target> unreportedFailures = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param bufferCount сколько буферов может быть прочитано, но еще не
+     *                    записано
+     * @param syncBytes   через сколько записанных в файл байт вызывать
+     *                    {@code fsync}; 0 - не вызывать, данные сбрасывает
+     *                    на диск система
+     */
+    public DiskWriter(int threads, int bufferSize, int bufferCount, long syncBytes,
+                      DownloadMetrics metrics) {
+        this.pool = new BufferPool(bufferSize, bufferCount);
+        this.metrics = metrics;
+        this.syncBytes = syncBytes;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker("disk-writer-" + (i + 1));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Выделяет место под файл целиком, если его размер известен: сегменты
+     * можно писать в любом порядке, а нехватка места обнаруживается сразу.
+     */
+    static void preallocate(Path file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(0);
+            raf.setLength(length);
+        }
+    }
+
+    /**
+     * Свободный буфер из пула; если все буферы ждут записи, ждет, пока
+     * писатели их освободят.
+     */
+    public ByteBuffer acquireBuffer() throws InterruptedException {
+        return pool.acquire();
+    }
+
+    /**
+     * Возвращает буфер, который не понадобился для записи.
+     */
+    public void releaseBuffer(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    public int getBufferSize() {
+        return pool.getBufferSize();
+    }
+
+    /**
+     * Файл, в который будут писать через этот писатель. Закрывает канал
+     * владелец, после {@link Target#close()}.
+     */
+    public Target open(FileChannel channel) {
+        Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(),
+            workers.length)];
+        return new Target(channel, worker);
+    }
+
+    /**
+     * Дописывает то, что уже в очередях, и останавливает писателей.
+     *
+     * @throws IOException если не удалась запись, о которой не узнал ни
+     *                     {@link Target#write}, ни {@link Target#await}:
+     *                     данные этих файлов на диске неполные
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        for (Worker worker : workers) {
+            worker.queue.add(Write.STOP);
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        if (!unreportedFailures.isEmpty()) {
+            throw new IOException(String.format(
+                "Не удалось дописать на диск %d файл(ов)", unreportedFailures.size()),
+                unreportedFailures.iterator().next().failure);
+        }
+    }
+
+    /**
+     * Открытый для записи файл. Записи нумеруются по порядку, и номер
+     * позволяет дождаться, когда записаны все данные до него включительно.
+     */
+    public final class Target implements AutoCloseable {
+        private final FileChannel channel;
+        private final Worker worker;
+        private long submitted;
+        private long completed;
+        private volatile IOException failure;
+        // записано с последнего fsync; меняется только писателем
+        private long unsyncedBytes;
+
+        private Target(FileChannel channel, Worker worker) {
+            this.channel = channel;
+            this.worker = worker;
+        }
+
+        /**
+         * Ставит буфер в очередь на запись с позиции {@code position}. С
+         * этого момента буфер принадлежит писателю и вернется в пул после
+         * записи, даже если запись не удастся.
+         *
+         * @param onWritten вызывается потоком-писателем, когда данные
+         *                  записаны; при ошибке записи не вызывается
+         * @return номер записи для {@link #await(long)}
+         * @throws IOException если одна из прошлых записей в файл не удалась
+         */
+        public long write(ByteBuffer buffer, long position, Runnable onWritten)
+        throws IOException {
+            synchronized (this) {
+                if (failure != null) {
+                    pool.release(buffer);
+                    unreportedFailures.remove(this);
+                    throw failure;
+                }
+                // номер и место в очереди выдаются вместе, чтобы записи
+                // выполнялись в порядке номеров
+                long ticket = ++submitted;
+                worker.queue.add(new Write(this, buffer, position, onWritten, ticket));
+                return ticket;
+            }
+        }
+
+        /**
+         * Ждет, пока будут записаны все данные до записи {@code ticket}.
+         *
+         * @throws IOException если запись в файл не удалась
+         */
+        public void await(long ticket) throws IOException, InterruptedException {
+            synchronized (this) {
+                while (completed < ticket) {
+                    wait();
+                }
+            }
+            if (failure != null) {
+                unreportedFailures.remove(this);
+                throw failure;
+            }
+        }
+
+        /**
+         * Дожидается всех записей и, если включен {@code fsync}, сбрасывает
+         * файл на диск. Вызывается перед переименованием готового файла.
+         */
+        public void flush() throws IOException, InterruptedException {
+            long ticket;
+            synchronized (this) {
+                ticket = submitted;
+            }
+            await(ticket);
+            if (syncBytes > 0) {
+                long startNanos = System.nanoTime();
+                channel.force(false);
+                metrics.onDiskWrite(System.nanoTime() - startNanos);
+            }
+        }
+
+        /**
+         * Дожидается записей, которые уже в очереди, не сообщая об ошибках:
+         * после этого канал можно закрывать.
+         */
+        @Override
+        public void close() throws InterruptedException {
+            long ticket;
+            synchronized (this) {
+                ticket = submitted;
+            }
+            try {
+                await(ticket);
+            } catch (IOException ignored) {
+                // об ошибке уже сообщили write или await
+            }
+        }
+
+        // Буферы batch идут в файл подряд: пишем их одним вызовом с позиции
+        // первого
+        private void write(List<Write> batch) {
+            if (failure != null) {
+                return;
+            }
+            ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            long length = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = batch.get(i).buffer;
+                length += buffers[i].remaining();
+            }
+            try {
+                // позицию канала меняет только писатель этого файла
+                channel.position(batch.get(0).position);
+                for (long written = 0; written < length; ) {
+                    written += channel.write(buffers);
+                }
+                unsyncedBytes += length;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void syncIfNeeded() {
+            if (failure != null || syncBytes == 0 || unsyncedBytes < syncBytes) {
+                return;
+            }
+            try {
+                channel.force(false);
+                unsyncedBytes = 0;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+                unreportedFailures.add(this);
+                log.debug("Ошибка записи на диск: {}", e.getLocalizedMessage());
+            }
+        }
+
+        private synchronized void completed(long ticket) {
+            completed = ticket;
+            notifyAll();
+        }
+    }
+
+    private static final class Write {
+        private static final Write STOP = new Write(null, null, 0, null, 0);
+
+        private final Target target;
+        private final ByteBuffer buffer;
+        private final long position;
+        private final Runnable onWritten;
+        private final long ticket;
+
+        Write(Target target, ByteBuffer buffer, long position, Runnable onWritten,
+              long ticket) {
+            this.target = target;
+            this.buffer = buffer;
+            this.position = position;
+            this.onWritten = onWritten;
+            this.ticket = ticket;
+        }
+
+        long end() {
+            return position + buffer.remaining();
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Write> batch = new ArrayList<>(MAX_BATCH);
+            boolean stopped = false;
+            try {
+                while (!stopped) {
+                    batch.clear();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    stopped = batch.remove(Write.STOP);
+                    process(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void process(List<Write> batch) {
+            long startNanos = System.nanoTime();
+            Set<Target> targets = new LinkedHashSet<>();
+            int runStart = 0;
+            for (int i = 1; i <= batch.size(); i++) {
+                Write first = batch.get(runStart);
+                if (i < batch.size() && batch.get(i).target == first.target
+                    && batch.get(i).position == batch.get(i - 1).end()) {
+                    continue;
+                }
+                first.target.write(batch.subList(runStart, i));
+                targets.add(first.target);
+                runStart = i;
+            }
+            // один fsync на все буферы файла из этой порции
+            targets.forEach(Target::syncIfNeeded);
+            metrics.onDiskWrite(System.nanoTime() - startNanos);
+
+            for (Write write : batch) {
+                if (write.target.failure == null) {
+                    try {
+                        write.onWritten.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Ошибка после записи на диск: {}",
+                            e.getLocalizedMessage());
+                    }
+                }
+                pool.release(write.buffer);
+            }
+            for (Target target : targets) {
+                long last = 0;
+                for (Write write : batch) {
+                    if (write.target == target) {
+                        last = write.ticket;
+                    }
+                }
+                target.completed(last);
+            }
+        }
+    }
+}
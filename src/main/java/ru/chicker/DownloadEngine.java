@@ -0,0 +1,11 @@
+package ru.chicker;
+
+/**
+ * Способ выполнения закачек: берет задачи из планировщика, пока он не
+ * опустеет, и сообщает {@code listener} о начале и результате каждой закачки.
+ */
+public interface DownloadEngine {
+
+    void run(TaskScheduler scheduler, DownloadListener listener)
+    throws InterruptedException;
+}
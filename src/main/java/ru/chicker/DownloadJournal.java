@@ -0,0 +1,263 @@
+package ru.chicker;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Журнал недокачанного файла: лежит рядом с временным файлом и хранит
+ * валидаторы ответа (ETag/Last-Modified), длину файла и карту сегментов.
+ * <p>
+ * Если программа была прервана, при следующем запуске по журналу
+ * докачиваются только недостающие диапазоны запросами с заголовками
+ * {@code Range} и {@code If-Range}.
+ */
+public class DownloadJournal {
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadJournal.class);
+
+    private final Path journalPath;
+    private final String url;
+    private final String etag;
+    private final String lastModified;
+    private final long length;
+    private final List<Range> ranges;
+    private final AtomicLong nextCheckpointNanos = new AtomicLong();
+
+    private DownloadJournal(Path journalPath, String url, String etag,
+                            String lastModified, long length, List<Range> ranges) {
+        this.journalPath = journalPath;
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.ranges = ranges;
+        this.nextCheckpointNanos.set(System.nanoTime() + CHECKPOINT_INTERVAL_NANOS);
+    }
+
+    /**
+     * Заводит журнал для нового ответа сервера.
+     *
+     * @return {@code null}, если докачать этот ответ потом будет невозможно:
+     * неизвестна длина или нет строгого валидатора для {@code If-Range}
+     */
+    public static DownloadJournal create(Path tempFilePath, String url,
+                                         HttpResponse response, long length) {
+        String etag = headerValue(response, HttpHeaders.ETAG);
+        if (etag != null && etag.startsWith("W/")) {
+            // слабый ETag в If-Range использовать нельзя
+            etag = null;
+        }
+        String lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+        if (length < 0 || (etag == null && lastModified == null)) {
+            return null;
+        }
+        return new DownloadJournal(journalPath(tempFilePath), url, etag,
+            lastModified, length, Collections.emptyList());
+    }
+
+    /**
+     * Читает журнал, оставшийся от прерванной закачки.
+     *
+     * @return {@code null}, если журнала нет, он поврежден, относится к
+     * другой ссылке или пропал сам временный файл
+     */
+    public static DownloadJournal load(Path tempFilePath, String url) {
+        Path journalPath = journalPath(tempFilePath);
+        if (!Files.exists(journalPath) || !Files.exists(tempFilePath)) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(journalPath)) {
+            properties.load(in);
+
+            if (!url.equals(properties.getProperty("url"))) {
+                return null;
+            }
+            List<Range> ranges = new ArrayList<>();
+            for (String range : properties.getProperty("segments", "").split(",")) {
+                if (!range.isEmpty()) {
+                    String[] bounds = range.split(":");
+                    ranges.add(new Range(Long.parseLong(bounds[0]),
+                        Long.parseLong(bounds[1]), Long.parseLong(bounds[2])));
+                }
+            }
+            ranges.sort(Comparator.comparingLong(Range::getPosition));
+
+            return new DownloadJournal(journalPath, url,
+                properties.getProperty("etag"), properties.getProperty("lastModified"),
+                Long.parseLong(properties.getProperty("length")), ranges);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Журнал {} поврежден и будет проигнорирован: {}", journalPath,
+                e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private static Path journalPath(Path tempFilePath) {
+        return tempFilePath.resolveSibling(tempFilePath.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Значение для заголовка {@code If-Range}.
+     */
+    public String getValidator() {
+        return etag != null ? etag : lastModified;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Сегменты из журнала, отсортированные по позиции. Диапазон
+     * [start, position) каждого сегмента уже лежит во временном файле.
+     */
+    public List<Range> getRanges() {
+        return ranges;
+    }
+
+    public long getFirstMissingByte() {
+        for (Range range : ranges) {
+            if (range.getRemaining() > 0) {
+                return range.getPosition();
+            }
+        }
+        return length;
+    }
+
+    public boolean isComplete() {
+        return getFirstMissingByte() >= length;
+    }
+
+    /**
+     * Сохраняет состояние не чаще, чем раз в секунду: вызывается после
+     * каждой записанной порции данных.
+     */
+    void checkpoint(Supplier<List<Range>> snapshot) {
+        long next = nextCheckpointNanos.get();
+        long now = System.nanoTime();
+        if (now - next >= 0
+            && nextCheckpointNanos.compareAndSet(next, now + CHECKPOINT_INTERVAL_NANOS)) {
+            saveQuietly(snapshot.get());
+        }
+    }
+
+    synchronized void saveQuietly(List<Range> snapshot) {
+        try {
+            save(snapshot);
+        } catch (IOException e) {
+            log.warn("Не удалось сохранить журнал {}: {}", journalPath,
+                e.getLocalizedMessage());
+        }
+    }
+
+    private void save(List<Range> snapshot) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        if (etag != null) {
+            properties.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("lastModified", lastModified);
+        }
+        properties.setProperty("length", String.valueOf(length));
+
+        long bytesDone = 0;
+        StringBuilder segments = new StringBuilder();
+        for (Range range : snapshot) {
+            if (segments.length() > 0) {
+                segments.append(',');
+            }
+            segments.append(range.getStart()).append(':')
+                .append(range.getPosition()).append(':')
+                .append(range.getEnd());
+            bytesDone += range.getPosition() - range.getStart();
+        }
+        properties.setProperty("bytesDone", String.valueOf(bytesDone));
+        properties.setProperty("segments", segments.toString());
+
+        // пишем рядом и атомарно подменяем, чтобы журнал не остался
+        // недописанным, если программа упадет во время сохранения
+        Path tempJournalPath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempJournalPath)) {
+            properties.store(out, null);
+        }
+        Files.move(tempJournalPath, journalPath, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    synchronized void delete() {
+        try {
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            log.warn("Не удалось удалить журнал {}: {}", journalPath,
+                e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Снимок сегмента: байты [start, position) уже скачаны, [position, end)
+     * еще нет.
+     */
+    public static class Range {
+        private final long start;
+        private final long position;
+        private final long end;
+
+        public Range(long start, long position, long end) {
+            this.start = start;
+            this.position = position;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getRemaining() {
+            return end - position;
+        }
+    }
+}
@@ -1,13 +1,56 @@
 package ru.chicker;
 
+import ru.chicker.checksum.ExpectedChecksum;
+
+import java.util.Collections;
+import java.util.List;
+
 public class DownloadLinkInfo {
+    /**
+     * Класс приоритета ссылки, у которой он не указан.
+     */
+    public static final String DEFAULT_PRIORITY_CLASS = "normal";
+
     private final String fileName;
 
-    private final String httpLink;
+    // ссылка и ее зеркала; первая ссылка - основная
+    private final List<String> mirrors;
+
+    private final ExpectedChecksum expectedChecksum;
+
+    private final String priorityClass;
 
     public DownloadLinkInfo(String fileName, String link) {
+        this(fileName, link, null);
+    }
+
+    /**
+     * @param expectedChecksum контрольная сумма, которую должен иметь файл,
+     *                         или {@code null}
+     */
+    public DownloadLinkInfo(String fileName, String link,
+                            ExpectedChecksum expectedChecksum) {
+        this(fileName, Collections.singletonList(link), expectedChecksum);
+    }
+
+    /**
+     * @param mirrors ссылки на один и тот же файл; первая считается основной:
+     *                по ней файл записывается в манифест и журнал докачки
+     */
+    public DownloadLinkInfo(String fileName, List<String> mirrors,
+                            ExpectedChecksum expectedChecksum) {
+        this(fileName, mirrors, expectedChecksum, DEFAULT_PRIORITY_CLASS);
+    }
+
+    /**
+     * @param priorityClass имя класса приоритета (см. {@link PriorityClasses})
+     */
+    public DownloadLinkInfo(String fileName, List<String> mirrors,
+                            ExpectedChecksum expectedChecksum, String priorityClass) {
         this.fileName = fileName;
-        this.httpLink = link;
+        this.mirrors = Collections.unmodifiableList(mirrors);
+        this.expectedChecksum = expectedChecksum;
+        this.priorityClass = priorityClass;
     }
 
     public String getFileName() {
@@ -15,7 +58,19 @@ public class DownloadLinkInfo {
     }
 
     public String getHttpLink() {
-        return httpLink;
+        return mirrors.get(0);
+    }
+
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    public ExpectedChecksum getExpectedChecksum() {
+        return expectedChecksum;
+    }
+
+    public String getPriorityClass() {
+        return priorityClass;
     }
 
     @Override
@@ -40,7 +95,11 @@ public class DownloadLinkInfo {
     public String toString() {
         return "DownloadLinkInfo{" +
             "fileName='" + fileName + '\'' +
-            ", httpLink='" + httpLink + '\'' +
+            ", httpLink='" + getHttpLink() + '\'' +
+            (mirrors.size() > 1 ? ", mirrors=" + mirrors.subList(1, mirrors.size()) : "") +
+            (expectedChecksum != null ? ", checksum='" + expectedChecksum + '\'' : "") +
+            (!DEFAULT_PRIORITY_CLASS.equals(priorityClass)
+                ? ", class='" + priorityClass + '\'' : "") +
             '}';
     }
 }
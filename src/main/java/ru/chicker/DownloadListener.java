@@ -0,0 +1,32 @@
+package ru.chicker;
+
+import javaslang.control.Either;
+
+/**
+ * Подписчик на события закачки: узнает о каждом файле, как только тот
+ * начат или закончен, не дожидаясь конца всего списка.
+ * <p>
+ * Методы вызываются из потоков загрузчиков, в том числе одновременно,
+ * поэтому должны быть потокобезопасными и быстрыми: пока подписчик
+ * работает, загрузчик не качает.
+ */
+public interface DownloadListener {
+
+    /**
+     * Начата первая попытка закачать файл.
+     */
+    default void onStarted(DownloadLinkInfo linkInfo) {
+    }
+
+    /**
+     * Файл скачан или окончательно не удался; для каждой ссылки
+     * вызывается ровно один раз.
+     */
+    void onFinished(Either<DownlodError, DownloadSuccess> result);
+
+    /**
+     * Все ссылки обработаны; больше событий не будет.
+     */
+    default void onCompleted() {
+    }
+}
@@ -1,52 +1,266 @@
 package ru.chicker;
 
 import javaslang.control.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.exception.InvalidFileStructureException;
+import ru.chicker.exception.UncheckedInvalidFileStructureException;
+import ru.chicker.metrics.DownloadMetrics;
+import ru.chicker.metrics.MetricsReporter;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class DownloadManager {
-    private final Collection<DownloadLinkInfo> links;
-    private final int numThreads;
-    private final long limitSpeed;
-    private final String outputFolderName;
+    // с чего начинает подбор числа закачек в режиме -n auto
+    private static final int INITIAL_ADAPTIVE_LIMIT = 4;
+    private static final long WAIT_FOR_TASK_MS = 100;
 
-    public DownloadManager(Collection<DownloadLinkInfo> links, int numThreads,
-                           long limitSpeed, String outputFolderName) {
+    private final Logger log = LoggerFactory.getLogger(DownloadManager.class);
+
+    private final Stream<DownloadLinkInfo> links;
+    private final DownloadSettings settings;
+    private volatile boolean stopping;
+    // планировщик идущего запуска, чтобы stop() мог очистить его очередь
+    private volatile TaskScheduler activeScheduler;
+
+    public DownloadManager(Collection<DownloadLinkInfo> links,
+                           DownloadSettings settings) {
+        this(links.stream(), settings);
+    }
+
+    /**
+     * @param links ленивый поток ссылок, например из
+     *              {@link LinksReader#stream(String)}; закрывается по окончании
+     */
+    public DownloadManager(Stream<DownloadLinkInfo> links,
+                           DownloadSettings settings) {
         this.links = links;
-        this.numThreads = numThreads;
-        this.limitSpeed = limitSpeed;
-        this.outputFolderName = outputFolderName;
+        this.settings = settings;
     }
 
+    /**
+     * Качает все ссылки и возвращает результаты, когда закончены все закачки.
+     */
     public Collection<Either<DownlodError, DownloadSuccess>> start()
-    throws InterruptedException {
-        Queue<DownloadTask> taskList = new ConcurrentLinkedQueue<>();
-        Queue<Either<DownlodError, DownloadSuccess>> resultList = new
-            ConcurrentLinkedQueue<>();
+    throws InterruptedException, InvalidFileStructureException {
+        Queue<Either<DownlodError, DownloadSuccess>> resultList =
+            new ConcurrentLinkedQueue<>();
+        start(resultList::add);
+        return resultList;
+    }
+
+    /**
+     * Качает все ссылки, сообщая {@code listener} о каждом результате сразу,
+     * как только он готов. Результаты нигде не накапливаются, так что
+     * список ссылок может быть сколь угодно длинным.
+     */
+    public void start(DownloadListener listener)
+    throws InterruptedException, InvalidFileStructureException {
+        DownloadMetrics metrics = new DownloadMetrics();
+        TaskScheduler scheduler = createScheduler();
+        AdaptiveTaskScheduler adaptiveScheduler = null;
+        if (settings.isAdaptiveConcurrency()) {
+            adaptiveScheduler = new AdaptiveTaskScheduler(scheduler,
+                Math.min(INITIAL_ADAPTIVE_LIMIT, settings.getNumThreads()));
+            scheduler = adaptiveScheduler;
+        }
+        TaskScheduler taskScheduler = scheduler;
+        activeScheduler = taskScheduler;
 
-        // Общее ограничение скорости делим на количество worker's
-        int downloaderLimitSpeed = (int) (limitSpeed / numThreads);
+        // Одно ограничение скорости на все worker's, поделенное между
+        // классами приоритета: полоса простаивающих потоков достается тем,
+        // кто еще качает
+        BandwidthShares bandwidth = new BandwidthShares(settings.getPriorityClasses(),
+            settings.getLimitSpeed(), settings.getBurstSize());
 
-        for (DownloadLinkInfo link : links) {
-            taskList.add(new DownloadTask(link, outputFolderName));
+        // Ссылки читаются в отдельном потоке по мере освобождения места в
+        // очереди, так что загрузчики начинают работу сразу
+        AtomicReference<RuntimeException> readError = new AtomicReference<>();
+        Thread linksProducer = new Thread(() -> produceTasks(taskScheduler, readError),
+            "links-reader");
+        linksProducer.start();
+
+        metrics.setQueueDepth(taskScheduler::size);
+        ConcurrencyController controller = adaptiveScheduler == null ? null
+            : new ConcurrencyController(adaptiveScheduler, metrics, 1,
+                settings.getNumThreads());
+        RetryQueue retryQueue = new RetryQueue();
+        RetryPolicy retryPolicy = new RetryPolicy(settings);
+        MirrorSelector mirrorSelector = new MirrorSelector();
+        MetricsReporter reporter = new MetricsReporter(metrics,
+            settings.getProgressInterval(), metricsFile());
+        boolean engineFinished = false;
+        try (DownloadManifest manifest = DownloadManifest.load(
+                 Paths.get(settings.getOutputFolderName()));
+             TransferWatchdog watchdog = new TransferWatchdog(settings)) {
+            createEngine(bandwidth, metrics, manifest, watchdog, retryQueue,
+                retryPolicy, mirrorSelector).run(taskScheduler, listener);
+            if (watchdog.isDeadlineExpired()) {
+                reportNotStarted(taskScheduler, retryQueue, watchdog, metrics, listener);
+            }
+            engineFinished = true;
+        } finally {
+            if (controller != null) {
+                controller.close();
+            }
+            // последние значения счетчиков попадают в файл метрик
+            reporter.close();
+            // Движок упал: задачи из очереди больше никто не возьмет, и
+            // читатель ссылок навсегда заснул бы в put, не давая JVM выйти
+            if (!engineFinished) {
+                stopping = true;
+                linksProducer.interrupt();
+            }
+            linksProducer.join();
         }
 
-        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-        for (int i = 0; i < numThreads; i++) {
-            executorService.submit(new Downloader(taskList, resultList,
-                downloaderLimitSpeed));
+        RuntimeException error = readError.get();
+        if (error instanceof UncheckedInvalidFileStructureException) {
+            throw ((UncheckedInvalidFileStructureException) error).getCause();
+        } else if (error != null) {
+            throw error;
         }
 
-        executorService.shutdown();
-        // TODO придумать что сделать timeout
-        boolean timeoutOccurs = executorService.awaitTermination(30,
-            TimeUnit.MINUTES);
+        listener.onCompleted();
+    }
 
-        return resultList;
+    /**
+     * Перестает начинать новые закачки: ссылки больше не читаются, а задачи,
+     * ждущие в очереди, отбрасываются без результата. Начатые закачки и их
+     * повторы доводятся до конца, после чего {@code start} возвращается.
+     * Чтобы ссылок не ждать, ленивый поток ссылок тоже нужно закончить.
+     */
+    public void stop() {
+        stopping = true;
+        TaskScheduler scheduler = activeScheduler;
+        if (scheduler != null) {
+            discardQueued(scheduler);
+        }
+    }
+
+    private void produceTasks(TaskScheduler scheduler,
+                              AtomicReference<RuntimeException> readError) {
+        try (Stream<DownloadLinkInfo> linkStream = links) {
+            if (settings.getTaskOrder() == DownloadSettings.TaskOrder.FILE) {
+                Iterator<DownloadLinkInfo> iterator = linkStream.iterator();
+                while (!stopping && iterator.hasNext()) {
+                    scheduler.put(new DownloadTask(iterator.next(),
+                        settings.getOutputFolderName()));
+                }
+            } else {
+                // чтобы упорядочить задачи по размеру, нужен весь список сразу
+                List<DownloadLinkInfo> linkList = linkStream.collect(Collectors.toList());
+                log.info("Узнаю размеры {} файлов", linkList.size());
+                for (DownloadTask task : new SizeProber(settings).probeAndSort(linkList)) {
+                    scheduler.put(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Ошибка чтения списка ссылок: {}", e.getLocalizedMessage());
+            readError.set(e);
+        } finally {
+            scheduler.close();
+            // задача, которую читатель успел положить уже после остановки
+            if (stopping) {
+                discardQueued(scheduler);
+            }
+        }
+    }
+
+    private void discardQueued(TaskScheduler scheduler) {
+        int count = 0;
+        DownloadTask task;
+        while ((task = scheduler.poll()) != null) {
+            scheduler.release(task);
+            count++;
+        }
+        if (count > 0) {
+            log.info("Остановка: не начаты {} закачек из очереди", count);
+        }
+    }
+
+    // Задачи, до которых не дошла очередь, попадают в результат ошибкой, а не
+    // пропадают. Читатель ссылок может ждать места в очереди, поэтому
+    // выбираем задачи, пока он не закончит
+    private void reportNotStarted(TaskScheduler scheduler, RetryQueue retryQueue,
+                                  TransferWatchdog watchdog, DownloadMetrics metrics,
+                                  DownloadListener listener)
+    throws InterruptedException {
+        int count = 0;
+        while (true) {
+            DownloadTask task = retryQueue.pollAny();
+            if (task == null) {
+                task = scheduler.poll(WAIT_FOR_TASK_MS, TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    scheduler.release(task);
+                }
+            }
+            if (task == null && scheduler.isDrained()) {
+                break;
+            } else if (task != null && !task.isSegment()) {
+                // о недокачанных по частям файлах сообщает движок
+                metrics.fileFinished(task.getLinkInfo().getFileName(), false);
+                listener.onFinished(Either.left(new DownlodError(task.getLinkInfo(),
+                    watchdog.notStartedError(), task.getAttempt())));
+                count++;
+            }
+        }
+        if (count > 0) {
+            log.warn("Не начаты до истечения срока: {} закачек", count);
+        }
+    }
+
+    // Свой планировщик на каждый класс приоритета; очередь ограничивает
+    // общий планировщик, а ограничение на хост у классов общее
+    private TaskScheduler createScheduler() {
+        PriorityClasses classes = settings.getPriorityClasses();
+        HostFairTaskScheduler.Connections connections =
+            new HostFairTaskScheduler.Connections(settings.getMaxConnectionsPerHost());
+        List<TaskScheduler> lanes = new ArrayList<>();
+        for (int i = 0; i < classes.size(); i++) {
+            switch (settings.getSchedulerType()) {
+                case FIFO:
+                    lanes.add(new FifoTaskScheduler(Integer.MAX_VALUE));
+                    break;
+                case HOST_FAIR:
+                default:
+                    lanes.add(new HostFairTaskScheduler(Integer.MAX_VALUE, connections));
+            }
+        }
+        return new PriorityTaskScheduler(classes, lanes, settings.getQueueCapacity());
+    }
+
+    private DownloadEngine createEngine(BandwidthShares bandwidth, DownloadMetrics metrics,
+                                        DownloadManifest manifest,
+                                        TransferWatchdog watchdog, RetryQueue retryQueue,
+                                        RetryPolicy retryPolicy,
+                                        MirrorSelector mirrorSelector) {
+        switch (settings.getEngineType()) {
+            case ASYNC:
+                return new AsyncDownloadEngine(settings, bandwidth, metrics, manifest,
+                    watchdog, retryQueue, retryPolicy, mirrorSelector);
+            case THREADS:
+            default:
+                return new ThreadPoolDownloadEngine(settings, bandwidth, metrics,
+                    manifest, watchdog, retryQueue, retryPolicy, mirrorSelector);
+        }
+    }
+
+    private Path metricsFile() {
+        return settings.getMetricsFile() == null ? null
+            : Paths.get(settings.getMetricsFile());
     }
 }
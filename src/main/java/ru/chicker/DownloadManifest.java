@@ -0,0 +1,259 @@
+package ru.chicker;
+
+import javaslang.control.Option;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.checksum.ExpectedChecksum;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Манифест выходной папки: для каждой ссылки хранит валидаторы ответа
+ * (ETag/Last-Modified), размер и контрольную сумму скачанного файла.
+ * <p>
+ * При следующем запуске запрос к уже скачанному файлу уходит с заголовками
+ * {@code If-None-Match}/{@code If-Modified-Since}, и на ответ 304 файл не
+ * качается заново.
+ * <p>
+ * Загрузчики только кладут записи в {@link ConcurrentHashMap} и не ждут
+ * диска. Раз в секунду отдельный поток переписывает манифест целиком во
+ * временный файл и атомарно подменяет им старый, поэтому после падения
+ * программы манифест всегда цел; в худшем случае теряются записи за
+ * последнюю секунду, и эти файлы просто будут скачаны еще раз.
+ */
+public class DownloadManifest implements AutoCloseable {
+    private static final String MANIFEST_FILE_NAME = ".download-manifest";
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String NO_VALUE = "-";
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadManifest.class);
+
+    private final Path manifestPath;
+    private final Map<String, Entry> entries;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+
+    private DownloadManifest(Path manifestPath, Map<String, Entry> entries) {
+        this.manifestPath = manifestPath;
+        this.entries = entries;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "manifest-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS,
+            FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Читает манифест выходной папки; если его нет или он поврежден,
+     * начинает с пустого.
+     */
+    public static DownloadManifest load(Path outputFolder) {
+        Path manifestPath = outputFolder.resolve(MANIFEST_FILE_NAME);
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        if (Files.exists(manifestPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(manifestPath,
+                StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        Entry entry = Entry.parse(line);
+                        entries.put(entry.getUrl(), entry);
+                    }
+                }
+                log.debug("Манифест {}: {} записей", manifestPath, entries.size());
+            } catch (IOException | RuntimeException e) {
+                log.warn("Манифест {} поврежден и будет перезаписан: {}", manifestPath,
+                    e.getLocalizedMessage());
+                entries.clear();
+            }
+        }
+        return new DownloadManifest(manifestPath, entries);
+    }
+
+    /**
+     * Если файл уже скачан и лежит на месте с прежним размером, добавляет к
+     * запросу условные заголовки. Если в списке ссылок указана контрольная
+     * сумма, а в манифесте записана другая, файл качается заново.
+     *
+     * @return запись манифеста, по которой составлено условие
+     */
+    public Option<Entry> addConditions(HttpRequest request, DownloadLinkInfo linkInfo,
+                                       Path outputFilePath) {
+        Entry entry = entries.get(linkInfo.getHttpLink());
+        if (entry == null || !isSameFile(entry, outputFilePath)) {
+            return Option.none();
+        }
+        ExpectedChecksum expected = linkInfo.getExpectedChecksum();
+        if (expected != null && !expected.toString().equals(entry.getChecksum())) {
+            return Option.none();
+        }
+        if (entry.getEtag() != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.getEtag());
+        }
+        if (entry.getLastModified() != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.getLastModified());
+        }
+        return Option.some(entry);
+    }
+
+    private static boolean isSameFile(Entry entry, Path outputFilePath) {
+        try {
+            return Files.isRegularFile(outputFilePath)
+                && Files.size(outputFilePath) == entry.getLength();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Запоминает скачанный файл. Записи без валидаторов не сохраняются:
+     * условный запрос по ним составить нельзя.
+     */
+    public void put(Entry entry) {
+        if (entry.getEtag() == null && entry.getLastModified() == null) {
+            return;
+        }
+        String line = entry.format();
+        if (line.indexOf('\n') >= 0 || line.split(FIELD_SEPARATOR, -1).length != 5) {
+            // табуляция или перевод строки в заголовке сломали бы формат файла
+            return;
+        }
+        entries.put(entry.getUrl(), entry);
+        dirty.set(true);
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private synchronized void flush() {
+        // флаг сбрасывается до обхода: запись, добавленная во время
+        // сохранения, попадет в файл при следующем сохранении
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        Path tempPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempPath,
+                StandardCharsets.UTF_8)) {
+                writer.write("# url\tetag\tlast-modified\tsize\tchecksum\n");
+                for (Entry entry : entries.values()) {
+                    writer.write(entry.format());
+                    writer.write('\n');
+                }
+            }
+            Files.move(tempPath, manifestPath, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            dirty.set(true);
+            log.warn("Не удалось сохранить манифест {}: {}", manifestPath,
+                e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Сведения о скачанном файле.
+     */
+    public static class Entry {
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+        private final long length;
+        private final String checksum;
+
+        /**
+         * @param etag         значение ETag или {@code null}
+         * @param lastModified значение Last-Modified или {@code null}
+         * @param checksum     контрольная сумма вида {@code sha256:<hex>} или
+         *                     {@code null}, если она не считалась
+         */
+        public Entry(String url, String etag, String lastModified, long length,
+                     String checksum) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        public static Entry fromResponse(String url, HttpResponse response, long length,
+                                         String checksum) {
+            return new Entry(url, headerValue(response, HttpHeaders.ETAG),
+                headerValue(response, HttpHeaders.LAST_MODIFIED), length, checksum);
+        }
+
+        private static String headerValue(HttpResponse response, String name) {
+            Header header = response.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split(FIELD_SEPARATOR, -1);
+            if (fields.length != 5) {
+                throw new IllegalArgumentException("неверная строка: " + line);
+            }
+            return new Entry(fields[0], value(fields[1]), value(fields[2]),
+                Long.parseLong(fields[3]), value(fields[4]));
+        }
+
+        String format() {
+            return String.join(FIELD_SEPARATOR, url, field(etag), field(lastModified),
+                String.valueOf(length), field(checksum));
+        }
+
+        private static String value(String field) {
+            return NO_VALUE.equals(field) ? null : field;
+        }
+
+        private static String field(String value) {
+            return value != null ? value : NO_VALUE;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package ru.chicker;
+
+import javaslang.control.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.exception.InvalidFileStructureException;
+import ru.chicker.exception.UncheckedInvalidFileStructureException;
+import ru.chicker.report.DownloadSummary;
+import ru.chicker.report.JsonlReport;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static ru.chicker.util.ByteUtils.formatBytes;
+
+/**
+ * Режим службы: программа не завершается после одного списка ссылок, а
+ * забирает новые списки из папки-входа и качает их теми же загрузчиками,
+ * пулом соединений и ограничителем скорости.
+ * <p>
+ * Каждый файл со ссылками в папке-входе - отдельный пакет. Ссылки пакета
+ * становятся в общую очередь; результаты по мере готовности дописываются в
+ * {@code reports/<имя пакета>.jsonl.part}, а когда пакет закончен, отчет
+ * переименовывается в {@code reports/<имя пакета>.jsonl}, и файл со
+ * ссылками переносится в {@code done}. Файл, который не удалось разобрать,
+ * переносится в {@code failed}. Чтобы служба не прочитала недописанный
+ * файл, его нужно писать под именем на {@code .part} или {@code .tmp} (или
+ * вне папки) и затем переименовать.
+ * <p>
+ * {@link #stop()} перестает принимать пакеты и начинать новые закачки;
+ * закачки, которые уже идут, и их повторы доводятся до конца. Незаконченные
+ * пакеты остаются в папке-входе и при следующем запуске принимаются заново;
+ * уже скачанные файлы манифест папки не даст скачать повторно.
+ */
+public class DownloadService {
+    private static final String DONE_FOLDER = "done";
+    private static final String FAILED_FOLDER = "failed";
+    private static final String REPORTS_FOLDER = "reports";
+    private static final String TEMP_FILE_SUFFIX = ".part";
+    private static final long WATCH_POLL_MS = 500;
+
+    private final Logger log = LoggerFactory.getLogger(DownloadService.class);
+
+    private final Path inbox;
+    private final DownloadListener listener;
+    private final LinkFeed feed = new LinkFeed();
+    private final DownloadManager manager;
+    // пакет каждого качающегося файла; одно имя файла не может качаться
+    // в двух пакетах сразу
+    private final Map<String, Batch> fileBatches = new ConcurrentHashMap<>();
+    // файлы со ссылками принятых, но еще не законченных пакетов
+    private final Map<Path, Batch> batches = new ConcurrentHashMap<>();
+    private volatile boolean stopped;
+
+    /**
+     * @param listener получает результаты всех пакетов
+     */
+    public DownloadService(Path inbox, DownloadSettings settings,
+                           DownloadListener listener) {
+        this.inbox = inbox;
+        this.listener = listener;
+        this.manager = new DownloadManager(feed.stream(), settings);
+    }
+
+    /**
+     * Работает, пока не вызван {@link #stop()}, и возвращается, когда
+     * закончены начатые закачки.
+     */
+    public void run()
+    throws IOException, InterruptedException, InvalidFileStructureException {
+        Files.createDirectories(inbox.resolve(DONE_FOLDER));
+        Files.createDirectories(inbox.resolve(FAILED_FOLDER));
+        Files.createDirectories(inbox.resolve(REPORTS_FOLDER));
+
+        try (WatchService watchService = inbox.getFileSystem().newWatchService()) {
+            inbox.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            Thread watcher = new Thread(() -> watchInbox(watchService), "inbox-watcher");
+            watcher.start();
+            log.info("Жду файлы со ссылками в папке {}", inbox);
+
+            try {
+                manager.start(new BatchRouter());
+            } finally {
+                stop();
+                watcher.join();
+            }
+        } finally {
+            for (Batch batch : batches.values()) {
+                batch.abandon();
+            }
+        }
+    }
+
+    /**
+     * Перестает принимать пакеты и начинать закачки; можно вызывать из
+     * любого потока.
+     */
+    public void stop() {
+        stopped = true;
+        manager.stop();
+    }
+
+    private void watchInbox(WatchService watchService) {
+        try {
+            // файлы, появившиеся до запуска или пока служба была остановлена
+            scanInbox();
+            while (!stopped) {
+                WatchKey key = watchService.poll(WATCH_POLL_MS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // часть событий потеряна, уже принятые пакеты не повторятся
+                        scanInbox();
+                    } else {
+                        submit(inbox.resolve((Path) event.context()));
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.error("Ошибка чтения папки {}: {}", inbox, e.getLocalizedMessage());
+        } finally {
+            stopped = true;
+            log.info("Новые пакеты не принимаются, дожидаюсь начатых закачек");
+            feed.close();
+        }
+    }
+
+    private void scanInbox() throws IOException {
+        // пакеты берутся в порядке имен файлов
+        Set<Path> files = new TreeSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(inbox)) {
+            entries.forEach(files::add);
+        }
+        files.forEach(this::submit);
+    }
+
+    private void submit(Path linksFile) {
+        String name = linksFile.getFileName().toString();
+        if (stopped || name.startsWith(".") || name.endsWith(TEMP_FILE_SUFFIX)
+            || name.endsWith(".tmp") || !Files.isRegularFile(linksFile)
+            || batches.containsKey(linksFile)) {
+            return;
+        }
+
+        List<DownloadLinkInfo> links;
+        try (Stream<DownloadLinkInfo> stream = new LinksReader().stream(
+                 linksFile.toString())) {
+            links = stream.collect(Collectors.toList());
+        } catch (FileNotFoundException e) {
+            // файл успели переименовать или удалить
+            return;
+        } catch (UncheckedInvalidFileStructureException | UncheckedIOException e) {
+            log.error("Пакет {} отклонен: {}", name, e.getCause().getLocalizedMessage());
+            moveQuietly(linksFile, inbox.resolve(FAILED_FOLDER));
+            return;
+        }
+
+        Batch batch;
+        try {
+            batch = new Batch(linksFile, links.size());
+        } catch (IOException e) {
+            log.error("Не удалось создать отчет пакета {}: {}", name,
+                e.getLocalizedMessage());
+            return;
+        }
+        batches.put(linksFile, batch);
+        log.info("Принят пакет {}: {} ссылок", name, links.size());
+
+        List<DownloadLinkInfo> accepted = new ArrayList<>(links.size());
+        List<DownloadLinkInfo> conflicts = new ArrayList<>();
+        for (DownloadLinkInfo link : links) {
+            if (fileBatches.putIfAbsent(link.getFileName(), batch) == null) {
+                accepted.add(link);
+            } else {
+                conflicts.add(link);
+            }
+        }
+        feed.addAll(accepted);
+        // два пакета писали бы в один и тот же файл
+        for (DownloadLinkInfo link : conflicts) {
+            finish(batch, Either.left(new DownlodError(link, new IOException(
+                "файл с таким именем уже качается в другом пакете"))));
+        }
+        if (links.isEmpty()) {
+            batch.complete();
+        }
+    }
+
+    private void finish(Batch batch, Either<DownlodError, DownloadSuccess> result) {
+        listener.onFinished(result);
+        batch.onFinished(result);
+    }
+
+    private void moveQuietly(Path file, Path folder) {
+        try {
+            Files.move(file, folder.resolve(file.getFileName()),
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Не удалось перенести {} в {}: {}", file, folder,
+                e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Передает события закачки пакету, которому принадлежит файл.
+     */
+    private final class BatchRouter implements DownloadListener {
+        @Override
+        public void onStarted(DownloadLinkInfo linkInfo) {
+            listener.onStarted(linkInfo);
+            Batch batch = fileBatches.get(linkInfo.getFileName());
+            if (batch != null) {
+                batch.onStarted(linkInfo);
+            }
+        }
+
+        @Override
+        public void onFinished(Either<DownlodError, DownloadSuccess> result) {
+            DownloadLinkInfo linkInfo = result.isRight()
+                ? result.get().getLinkInfo() : result.getLeft().getLinkInfo();
+            Batch batch = fileBatches.remove(linkInfo.getFileName());
+            if (batch != null) {
+                finish(batch, result);
+            } else {
+                listener.onFinished(result);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            listener.onCompleted();
+        }
+    }
+
+    /**
+     * Один файл со ссылками и его отчет.
+     */
+    private final class Batch implements DownloadListener {
+        private final Path linksFile;
+        private final Path reportFile;
+        private final Path tempReportFile;
+        private final JsonlReport report;
+        private final DownloadSummary summary = new DownloadSummary();
+        private final AtomicInteger remaining;
+        private final long startNanos = System.nanoTime();
+
+        Batch(Path linksFile, int linkCount) throws IOException {
+            String name = linksFile.getFileName().toString();
+            this.linksFile = linksFile;
+            this.reportFile = inbox.resolve(REPORTS_FOLDER).resolve(name + ".jsonl");
+            this.tempReportFile = reportFile.resolveSibling(
+                reportFile.getFileName() + TEMP_FILE_SUFFIX);
+            this.report = new JsonlReport(tempReportFile);
+            this.remaining = new AtomicInteger(linkCount);
+        }
+
+        @Override
+        public void onStarted(DownloadLinkInfo linkInfo) {
+            report.onStarted(linkInfo);
+        }
+
+        @Override
+        public void onFinished(Either<DownlodError, DownloadSuccess> result) {
+            try {
+                report.onFinished(result);
+            } catch (UncheckedIOException e) {
+                log.warn("Не удалось записать отчет {}: {}", tempReportFile,
+                    e.getCause().getLocalizedMessage());
+            }
+            summary.onFinished(result);
+            if (remaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        void complete() {
+            batches.remove(linksFile);
+            try {
+                report.close();
+                Files.move(tempReportFile, reportFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Не удалось сохранить отчет {}: {}", reportFile,
+                    e.getLocalizedMessage());
+            }
+            moveQuietly(linksFile, inbox.resolve(DONE_FOLDER));
+            log.info("Пакет {} завершен за {} с: скачано {} файлов ({}), " +
+                    "не изменились {}, ошибок {}", linksFile.getFileName(),
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos),
+                summary.getDownloadedCount(), formatBytes(summary.getDownloadedBytes()),
+                summary.getUpToDateCount(), summary.getErrorCount());
+        }
+
+        // служба остановлена раньше, чем пакет закончен: отчет остается
+        // недописанным, а пакет - в папке-входе
+        void abandon() {
+            try {
+                report.close();
+            } catch (IOException e) {
+                log.warn("Не удалось закрыть отчет {}: {}", tempReportFile,
+                    e.getLocalizedMessage());
+            }
+            log.warn("Пакет {} не закончен: осталось {} ссылок",
+                linksFile.getFileName(), remaining.get());
+        }
+    }
+}
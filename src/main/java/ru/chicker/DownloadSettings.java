@@ -0,0 +1,524 @@
+package ru.chicker;
+
+import ru.chicker.checksum.ChecksumAlgorithm;
+
+/**
+ * Параметры работы {@link DownloadManager}, заданные с командной строки.
+ */
+public class DownloadSettings {
+    private final int numThreads;
+    private final boolean adaptiveConcurrency;
+    private final long limitSpeed;
+    private final long burstSize;
+    private final String outputFolderName;
+    private final int segmentsPerFile;
+    private final long segmentThreshold;
+    private final int queueCapacity;
+    private final int writerThreads;
+    private final int writeBuffers;
+    private final long syncBytes;
+    private final SchedulerType schedulerType;
+    private final int maxConnectionsPerHost;
+    private final PriorityClasses priorityClasses;
+    private final EngineType engineType;
+    private final TaskOrder taskOrder;
+    private final int progressInterval;
+    private final String metricsFile;
+    private final boolean forceDownload;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private final boolean compression;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long stallSpeed;
+    private final int stallTime;
+    private final int timeoutRetries;
+    private final int retries;
+    private final long retryDelayMillis;
+    private final int deadline;
+
+    private DownloadSettings(Builder builder) {
+        this.numThreads = builder.numThreads;
+        this.adaptiveConcurrency = builder.adaptiveConcurrency;
+        this.limitSpeed = builder.limitSpeed;
+        this.burstSize = builder.burstSize;
+        this.outputFolderName = builder.outputFolderName;
+        this.segmentsPerFile = builder.segmentsPerFile;
+        this.segmentThreshold = builder.segmentThreshold;
+        this.queueCapacity = builder.queueCapacity;
+        this.writerThreads = builder.writerThreads;
+        this.writeBuffers = builder.writeBuffers;
+        this.syncBytes = builder.syncBytes;
+        this.schedulerType = builder.schedulerType;
+        this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
+        this.priorityClasses = builder.priorityClasses;
+        this.engineType = builder.engineType;
+        this.taskOrder = builder.taskOrder;
+        this.progressInterval = builder.progressInterval;
+        this.metricsFile = builder.metricsFile;
+        this.forceDownload = builder.forceDownload;
+        this.checksumAlgorithm = builder.checksumAlgorithm;
+        this.compression = builder.compression;
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+        this.stallSpeed = builder.stallSpeed;
+        this.stallTime = builder.stallTime;
+        this.timeoutRetries = builder.timeoutRetries;
+        this.retries = builder.retries;
+        this.retryDelayMillis = builder.retryDelayMillis;
+        this.deadline = builder.deadline;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Число загрузчиков, а в режиме {@link #isAdaptiveConcurrency()} -
+     * верхняя граница числа одновременных закачек.
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Подбирать число одновременных закачек по скорости ({@code -n auto}).
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public long getLimitSpeed() {
+        return limitSpeed;
+    }
+
+    public long getBurstSize() {
+        return burstSize;
+    }
+
+    public String getOutputFolderName() {
+        return outputFolderName;
+    }
+
+    /**
+     * На сколько частей делить большой файл; 1 - качать файлы целиком.
+     */
+    public int getSegmentsPerFile() {
+        return segmentsPerFile;
+    }
+
+    /**
+     * Файлы меньше этого размера всегда качаются одним соединением.
+     */
+    public long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * Сколько прочитанных из файла ссылок может ждать своей очереди.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Сколько потоков пишут скачанные данные на диск.
+     */
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    /**
+     * Сколько буферов может быть прочитано из сети, но еще не записано; по
+     * умолчанию четыре на каждую одновременную закачку.
+     */
+    public int getWriteBuffers() {
+        return writeBuffers > 0 ? writeBuffers : 4 * numThreads;
+    }
+
+    /**
+     * Через сколько записанных в файл байт вызывать {@code fsync}; 0 - не
+     * вызывать.
+     */
+    public long getSyncBytes() {
+        return syncBytes;
+    }
+
+    public SchedulerType getSchedulerType() {
+        return schedulerType;
+    }
+
+    /**
+     * Сколько соединений одновременно можно держать с одним хостом.
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Классы приоритета ссылок и их доли в общей полосе.
+     */
+    public PriorityClasses getPriorityClasses() {
+        return priorityClasses;
+    }
+
+    public EngineType getEngineType() {
+        return engineType;
+    }
+
+    /**
+     * В каком порядке отдавать файлы загрузчикам; любой порядок, кроме
+     * {@link TaskOrder#FILE}, требует предварительных HEAD-запросов.
+     */
+    public TaskOrder getTaskOrder() {
+        return taskOrder;
+    }
+
+    /**
+     * Как часто (в секундах) печатать строку прогресса; 0 - не печатать.
+     */
+    public int getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Куда выгружать счетчики в формате Prometheus или {@code null}.
+     */
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * Качать все файлы заново, не спрашивая сервер, изменились ли они с
+     * прошлой закачки (манифест при этом все равно обновляется).
+     */
+    public boolean isForceDownload() {
+        return forceDownload;
+    }
+
+    /**
+     * Просить сервер сжимать ответы (gzip, deflate); сжатые файлы
+     * распаковываются на лету.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Сколько секунд ждать соединения с сервером.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Сколько секунд ждать очередной порции данных из соединения.
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Минимальная скорость закачки, байт в секунду; медленнее закачка
+     * считается зависшей. 0 - не следить.
+     */
+    public long getStallSpeed() {
+        return stallSpeed;
+    }
+
+    /**
+     * За сколько секунд оценивается скорость закачки.
+     */
+    public int getStallTime() {
+        return stallTime;
+    }
+
+    /**
+     * Сколько раз повторять закачку, прерванную по таймауту.
+     */
+    public int getTimeoutRetries() {
+        return timeoutRetries;
+    }
+
+    /**
+     * Сколько раз повторять закачку после временной ошибки сервера или сети.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Задержка перед первым повтором; каждый следующий ждет вдвое дольше.
+     */
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    /**
+     * Общий срок работы в секундах; 0 - без срока.
+     */
+    public int getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Какую контрольную сумму считать для файлов, у которых в списке ссылок
+     * она не указана; {@code null} - не считать.
+     */
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Алгоритм контрольной суммы для файла или {@code null}, если ее не
+     * нужно считать.
+     */
+    public ChecksumAlgorithm checksumAlgorithmFor(DownloadLinkInfo linkInfo) {
+        return linkInfo.getExpectedChecksum() != null
+            ? linkInfo.getExpectedChecksum().getAlgorithm()
+            : checksumAlgorithm;
+    }
+
+    /**
+     * Алгоритм контрольной суммы для файла, который качается по частям.
+     * Суммы частей склеиваются только у crc32c, а для других алгоритмов
+     * файл пришлось бы дочитывать с диска, поэтому такой файл без суммы в
+     * списке ссылок проверяется crc32c. Дочитывается только файл, для
+     * которого в списке указан sha256.
+     */
+    public ChecksumAlgorithm segmentedChecksumAlgorithmFor(DownloadLinkInfo linkInfo) {
+        ChecksumAlgorithm algorithm = checksumAlgorithmFor(linkInfo);
+        if (algorithm == null || algorithm.isCombinable()
+            || linkInfo.getExpectedChecksum() != null) {
+            return algorithm;
+        }
+        return ChecksumAlgorithm.CRC32C;
+    }
+
+    public boolean isSegmentedMode() {
+        return segmentsPerFile > 1;
+    }
+
+    public static class Builder {
+        private int numThreads = 2;
+        private boolean adaptiveConcurrency;
+        private long limitSpeed = Long.MAX_VALUE;
+        private long burstSize = 64 * 1024;
+        private String outputFolderName;
+        private int segmentsPerFile = 1;
+        private long segmentThreshold = 8 * 1024 * 1024;
+        private int queueCapacity = 1024;
+        private int writerThreads = 2;
+        private int writeBuffers;
+        private long syncBytes;
+        private SchedulerType schedulerType = SchedulerType.HOST_FAIR;
+        private int maxConnectionsPerHost = Integer.MAX_VALUE;
+        private PriorityClasses priorityClasses = PriorityClasses.defaults();
+        private EngineType engineType = EngineType.THREADS;
+        private TaskOrder taskOrder = TaskOrder.FILE;
+        private int progressInterval = 5;
+        private String metricsFile;
+        private boolean forceDownload;
+        private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.SHA256;
+        private boolean compression;
+        private int connectTimeout = 30;
+        private int readTimeout = 60;
+        private long stallSpeed = 1024;
+        private int stallTime = 30;
+        private int timeoutRetries = 2;
+        private int retries = 3;
+        private long retryDelayMillis = 1000;
+        private int deadline;
+
+        private Builder() {
+        }
+
+        public Builder numThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        public Builder adaptiveConcurrency(boolean adaptiveConcurrency) {
+            this.adaptiveConcurrency = adaptiveConcurrency;
+            return this;
+        }
+
+        public Builder limitSpeed(long limitSpeed) {
+            this.limitSpeed = limitSpeed;
+            return this;
+        }
+
+        public Builder burstSize(long burstSize) {
+            this.burstSize = burstSize;
+            return this;
+        }
+
+        public Builder outputFolderName(String outputFolderName) {
+            this.outputFolderName = outputFolderName;
+            return this;
+        }
+
+        public Builder segmentsPerFile(int segmentsPerFile) {
+            this.segmentsPerFile = segmentsPerFile;
+            return this;
+        }
+
+        public Builder segmentThreshold(long segmentThreshold) {
+            this.segmentThreshold = segmentThreshold;
+            return this;
+        }
+
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder writerThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+            return this;
+        }
+
+        /**
+         * @param writeBuffers 0 - выбрать по числу закачек
+         */
+        public Builder writeBuffers(int writeBuffers) {
+            this.writeBuffers = writeBuffers;
+            return this;
+        }
+
+        public Builder syncBytes(long syncBytes) {
+            this.syncBytes = syncBytes;
+            return this;
+        }
+
+        public Builder schedulerType(SchedulerType schedulerType) {
+            this.schedulerType = schedulerType;
+            return this;
+        }
+
+        public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        public Builder priorityClasses(PriorityClasses priorityClasses) {
+            this.priorityClasses = priorityClasses;
+            return this;
+        }
+
+        public Builder engineType(EngineType engineType) {
+            this.engineType = engineType;
+            return this;
+        }
+
+        public Builder taskOrder(TaskOrder taskOrder) {
+            this.taskOrder = taskOrder;
+            return this;
+        }
+
+        public Builder progressInterval(int progressInterval) {
+            this.progressInterval = progressInterval;
+            return this;
+        }
+
+        public Builder metricsFile(String metricsFile) {
+            this.metricsFile = metricsFile;
+            return this;
+        }
+
+        public Builder forceDownload(boolean forceDownload) {
+            this.forceDownload = forceDownload;
+            return this;
+        }
+
+        public Builder checksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+            this.checksumAlgorithm = checksumAlgorithm;
+            return this;
+        }
+
+        public Builder compression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder connectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder readTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        public Builder stallSpeed(long stallSpeed) {
+            this.stallSpeed = stallSpeed;
+            return this;
+        }
+
+        public Builder stallTime(int stallTime) {
+            this.stallTime = stallTime;
+            return this;
+        }
+
+        public Builder timeoutRetries(int timeoutRetries) {
+            this.timeoutRetries = timeoutRetries;
+            return this;
+        }
+
+        public Builder retries(int retries) {
+            this.retries = retries;
+            return this;
+        }
+
+        public Builder retryDelayMillis(long retryDelayMillis) {
+            this.retryDelayMillis = retryDelayMillis;
+            return this;
+        }
+
+        public Builder deadline(int deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        public DownloadSettings build() {
+            return new DownloadSettings(this);
+        }
+    }
+
+    public enum SchedulerType {
+        /**
+         * Задачи выдаются в порядке следования ссылок в файле.
+         */
+        FIFO,
+        /**
+         * По кругу между хостами с ограничением соединений на хост.
+         */
+        HOST_FAIR
+    }
+
+    public enum EngineType {
+        /**
+         * Поток на каждое соединение; поддерживает сегменты и докачку.
+         */
+        THREADS,
+        /**
+         * Неблокирующий ввод-вывод: тысячи закачек на нескольких потоках.
+         */
+        ASYNC
+    }
+
+    public enum TaskOrder {
+        /**
+         * В порядке следования ссылок в файле, без предварительных запросов.
+         */
+        FILE,
+        /**
+         * Сначала самые большие файлы: меньше всего общее время закачки.
+         */
+        LARGEST_FIRST,
+        /**
+         * Сначала самые маленькие файлы: быстрее появляются первые результаты.
+         */
+        SMALLEST_FIRST
+    }
+}
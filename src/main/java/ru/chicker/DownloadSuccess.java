@@ -4,18 +4,121 @@ public class DownloadSuccess {
     private final DownloadLinkInfo linkInfo;
 
     private final long bytesCount;
+    // сколько байт пришло по сети; меньше bytesCount, если ответ был сжат
+    private final long wireBytes;
+    // сервер ответил 304: файл с прошлого запуска не изменился
+    private final boolean upToDate;
+    // с какой попытки файл удалось скачать
+    private final int attempts;
+    // файл с той же ссылкой, из которого получен этот, или null
+    private final String sourceFileName;
 
     public DownloadSuccess(DownloadLinkInfo linkInfo, long bytesCount) {
+        this(linkInfo, bytesCount, bytesCount, false);
+    }
+
+    /**
+     * @param bytesCount размер сохраненного файла
+     * @param wireBytes  сколько байт пришло по сети
+     */
+    public DownloadSuccess(DownloadLinkInfo linkInfo, long bytesCount, long wireBytes) {
+        this(linkInfo, bytesCount, wireBytes, false);
+    }
+
+    private DownloadSuccess(DownloadLinkInfo linkInfo, long bytesCount, long wireBytes,
+                            boolean upToDate) {
+        this(linkInfo, bytesCount, wireBytes, upToDate, 1, null);
+    }
+
+    private DownloadSuccess(DownloadLinkInfo linkInfo, long bytesCount, long wireBytes,
+                            boolean upToDate, int attempts, String sourceFileName) {
         this.linkInfo = linkInfo;
         this.bytesCount = bytesCount;
+        this.wireBytes = wireBytes;
+        this.upToDate = upToDate;
+        this.attempts = attempts;
+        this.sourceFileName = sourceFileName;
+    }
+
+    /**
+     * Файл не изменился на сервере и не скачивался.
+     *
+     * @param fileSize размер уже лежащего в папке файла
+     */
+    public static DownloadSuccess upToDate(DownloadLinkInfo linkInfo, long fileSize) {
+        return new DownloadSuccess(linkInfo, fileSize, 0, true);
+    }
+
+    /**
+     * Файл не скачивался: по той же ссылке уже скачан другой файл, и этот
+     * получен из него.
+     *
+     * @param sourceFileName имя уже скачанного файла
+     */
+    public static DownloadSuccess deduplicated(DownloadLinkInfo linkInfo, long fileSize,
+                                               String sourceFileName) {
+        return new DownloadSuccess(linkInfo, fileSize, 0, false, 1, sourceFileName);
+    }
+
+    /**
+     * Тот же результат, полученный с попытки {@code attempts}.
+     */
+    public DownloadSuccess withAttempts(int attempts) {
+        return attempts == this.attempts ? this
+            : new DownloadSuccess(linkInfo, bytesCount, wireBytes, upToDate, attempts,
+                sourceFileName);
+    }
+
+    public boolean isDeduplicated() {
+        return sourceFileName != null;
+    }
+
+    public String getSourceFileName() {
+        return sourceFileName;
+    }
+
+    public int getAttempts() {
+        return attempts;
     }
 
     public long getDownloadedFileSize() {
         return bytesCount;
     }
 
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public DownloadLinkInfo getLinkInfo() {
+        return linkInfo;
+    }
+
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+
     @Override
     public String toString() {
+        String message = describe();
+        return attempts > 1
+            ? String.format("%s Попыток: [%d].", message, attempts) : message;
+    }
+
+    private String describe() {
+        if (sourceFileName != null) {
+            return String.format("Файл [%s] размером [%d] байт получен из " +
+                "скачанного по той же ссылке [%s].", linkInfo.getFileName(), bytesCount,
+                sourceFileName);
+        }
+        if (upToDate) {
+            return String.format("Файл [%s] размером [%d] байт не изменился " +
+                "с прошлой закачки.", linkInfo.getFileName(), bytesCount);
+        }
+        if (wireBytes != bytesCount) {
+            return String.format("Закачка файла [%s] размером [%d] байт " +
+                "(по сети [%d] байт) успешно завершена.", linkInfo.getFileName(),
+                bytesCount, wireBytes);
+        }
         return String.format("Закачка файла [%s] размером [%d] байт " +
             "успешно " +
             "завершена.", linkInfo.getFileName(), bytesCount);
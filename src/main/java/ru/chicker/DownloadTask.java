@@ -1,12 +1,87 @@
 package ru.chicker;
 
+import javaslang.control.Option;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 public class DownloadTask {
     private final DownloadLinkInfo linkInfo;
     private final String outputFolder;
+    // не null, если задача - закачать только диапазон байт файла
+    private final FileSegment segment;
+    private final Option<Long> contentLength;
+    // номер попытки, начиная с 1
+    private final int attempt;
+    // зеркала, которые в этой попытке уже отказали
+    private final Set<String> failedMirrors;
+    // выбранное зеркало, за хостом которого закреплено соединение, или null
+    private final String mirror;
 
     public DownloadTask(DownloadLinkInfo linkInfo, String outputFolder) {
+        this(linkInfo, outputFolder, Option.none());
+    }
+
+    /**
+     * @param contentLength размер файла, если он известен заранее (например,
+     *                      из ответа на HEAD-запрос)
+     */
+    public DownloadTask(DownloadLinkInfo linkInfo, String outputFolder,
+                        Option<Long> contentLength) {
+        this(linkInfo, outputFolder, null, contentLength, 1, Collections.emptySet(),
+            null);
+    }
+
+    public DownloadTask(FileSegment segment) {
+        this(segment.getFile().getLinkInfo(), null, segment,
+            Option.some(segment.getFile().getLength()), 1, Collections.emptySet(), null);
+    }
+
+    private DownloadTask(DownloadLinkInfo linkInfo, String outputFolder,
+                         FileSegment segment, Option<Long> contentLength, int attempt,
+                         Set<String> failedMirrors, String mirror) {
         this.linkInfo = linkInfo;
         this.outputFolder = outputFolder;
+        this.segment = segment;
+        this.contentLength = contentLength;
+        this.attempt = attempt;
+        this.failedMirrors = failedMirrors;
+        this.mirror = mirror;
+    }
+
+    /**
+     * Та же задача для следующей попытки.
+     */
+    public DownloadTask nextAttempt() {
+        return new DownloadTask(linkInfo, outputFolder, segment, contentLength,
+            attempt + 1, Collections.emptySet(), null);
+    }
+
+    /**
+     * Та же попытка на другом зеркале: {@code mirror} отказало.
+     */
+    public DownloadTask failover(String mirror) {
+        Set<String> failed = new HashSet<>(failedMirrors);
+        failed.add(mirror);
+        return new DownloadTask(linkInfo, outputFolder, segment, contentLength, attempt,
+            Collections.unmodifiableSet(failed), null);
+    }
+
+    /**
+     * Та же попытка с выбранным зеркалом (см. {@link MirrorSelector#assign}).
+     */
+    public DownloadTask withMirror(String mirror) {
+        return new DownloadTask(linkInfo, outputFolder, segment, contentLength, attempt,
+            failedMirrors, mirror);
+    }
+
+    /**
+     * Та же попытка, но только для сегмента файла, который начала эта задача.
+     */
+    public DownloadTask forSegment(FileSegment segment) {
+        return new DownloadTask(linkInfo, null, segment,
+            Option.some(segment.getFile().getLength()), attempt, failedMirrors, null);
     }
 
     public DownloadLinkInfo getLinkInfo() {
@@ -17,8 +92,46 @@ public class DownloadTask {
         return outputFolder;
     }
 
+    public boolean isSegment() {
+        return segment != null;
+    }
+
+    public FileSegment getSegment() {
+        return segment;
+    }
+
+    public Option<Long> getContentLength() {
+        return contentLength;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public Set<String> getFailedMirrors() {
+        return failedMirrors;
+    }
+
+    /**
+     * Зеркало, с которого качается задача, или {@code null}, если оно еще
+     * не выбрано.
+     */
+    public String getMirror() {
+        return mirror;
+    }
+
+    /**
+     * @return {@code true}, если в этой попытке еще не все зеркала отказали
+     */
+    public boolean hasUntriedMirrors() {
+        return failedMirrors.size() < linkInfo.getMirrors().size();
+    }
+
     @Override
     public String toString() {
+        if (isSegment()) {
+            return String.format("Закачка [%s]", segment);
+        }
         return String.format("Закачка [%s]; выходная папка [%s]", linkInfo
             .toString(), outputFolder);
     }
@@ -1,164 +1,787 @@
 package ru.chicker;
 
 import javaslang.control.Either;
+import javaslang.control.Option;
 import javaslang.control.Try;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.chicker.checksum.ChecksumAlgorithm;
+import ru.chicker.checksum.ContentHasher;
+import ru.chicker.checksum.ExpectedChecksum;
+import ru.chicker.exception.ChecksumMismatchException;
+import ru.chicker.exception.HttpStatusException;
+import ru.chicker.metrics.DownloadMetrics;
+import ru.chicker.util.CountingInputStream;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Queue;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
 import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 
 public class Downloader extends Thread {
-    private static final int BUFFER_SIZE = 64 * 1024; // 64 Kb
-    private static final int ONE_SECOND = 1000;
+    private static final String TEMP_FILE_SUFFIX = ".part";
 
     private final Logger log = LoggerFactory.getLogger(Downloader.class);
 
-    private final Queue<DownloadTask> taskList;
-    private final Queue<Either<DownlodError, DownloadSuccess>> resultList;
-    private final int speedLimit;
+    private final TaskScheduler scheduler;
+    private final DownloadListener listener;
+    private final SegmentRegistry segmentRegistry;
+    private final DiskWriter diskWriter;
+    private final CloseableHttpClient httpClient;
+    private final BandwidthShares bandwidth;
+    private final DownloadSettings settings;
+    private final DownloadMetrics metrics;
+    private final DownloadManifest manifest;
+    private final TransferWatchdog watchdog;
+    private final RetryQueue retryQueue;
+    private final RetryPolicy retryPolicy;
+    private final MirrorSelector mirrorSelector;
+    // Задача, которую загрузчик выполняет сейчас, ее зеркало, счетчики и наблюдение
+    private DownloadTask currentTask;
+    // доля полосы класса текущей задачи
+    private BandwidthShares.Share rateLimiter;
+    private String currentMirror;
+    private boolean mirrorFailed;
+    private DownloadMetrics.Transfer transfer;
+    private TransferWatchdog.Watch watch;
+    // запрос, который прервет наблюдатель, если закачка зависнет
+    private volatile HttpRequestBase currentRequest;
 
-    public Downloader(Queue<DownloadTask> taskList,
-                      Queue<Either<DownlodError, DownloadSuccess>> resultList, int speedLimit) {
-        this.taskList = taskList;
-        this.resultList = resultList;
-        this.speedLimit = speedLimit;
+    public Downloader(TaskScheduler scheduler,
+                      DownloadListener listener,
+                      SegmentRegistry segmentRegistry, DiskWriter diskWriter,
+                      CloseableHttpClient httpClient, BandwidthShares bandwidth,
+                      DownloadSettings settings, DownloadMetrics metrics,
+                      DownloadManifest manifest, TransferWatchdog watchdog,
+                      RetryQueue retryQueue, RetryPolicy retryPolicy,
+                      MirrorSelector mirrorSelector) {
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.segmentRegistry = segmentRegistry;
+        this.diskWriter = diskWriter;
+        this.httpClient = httpClient;
+        this.bandwidth = bandwidth;
+        this.settings = settings;
+        this.metrics = metrics;
+        this.manifest = manifest;
+        this.watchdog = watchdog;
+        this.retryQueue = retryQueue;
+        this.retryPolicy = retryPolicy;
+        this.mirrorSelector = mirrorSelector;
     }
 
     @Override
     public void run() {
         // other implementation of the stream is needed, because the task 
         // from the tasklist after processing must be removed  
-        StreamSupport.stream(new TaskQueueSpliterator(taskList), false)
-            .map(task ->
-                downloadLink(task)
-                    .map(x -> new DownloadSuccess(task.getLinkInfo(), x))
-                    .mapLeft(th -> new DownlodError(task.getLinkInfo(), th))
-            )
-            .forEach(resultList::add);
+        StreamSupport.stream(new TaskQueueSpliterator(scheduler, segmentRegistry), false)
+            .map(this::process)
+            .filter(Option::isDefined)
+            .map(Option::get)
+            .forEach(listener::onFinished);
     }
 
-    private ByteArrayOutputStream readWithLimit(int limit, InputStream inputStream)
+    private Option<Either<DownlodError, DownloadSuccess>> process(DownloadTask queued) {
+        DownloadTask task = mirrorSelector.assign(queued, scheduler, retryQueue);
+        if (task == null) {
+            // хост выбранного зеркала занят, задача подождет его в очереди повторов
+            return Option.none();
+        }
+        String fileName = task.getLinkInfo().getFileName();
+        currentTask = task;
+        rateLimiter = bandwidth.enter(task.getLinkInfo());
+        currentMirror = task.getMirror();
+        mirrorFailed = false;
+        transfer = metrics.startTransfer(fileName);
+        watch = watchdog.watch(transfer, this::abortCurrentRequest);
+        if (task.isSegment()) {
+            task.getSegment().getFile().noteAttempt(task.getAttempt());
+        } else if (task.getAttempt() == 1) {
+            listener.onStarted(task.getLinkInfo());
+        }
+        try {
+            Either<Throwable, Option<DownloadSuccess>> outcome = task.isSegment()
+                ? downloadSegment(task.getSegment())
+                : downloadLink(task);
+            if (outcome.isLeft()) {
+                Throwable error = watch.asTimeout(outcome.getLeft());
+                // ошибки сегментов отсеивает onSegmentError
+                if (!task.isSegment() && failOver(task, error) || retryLater(task, error)) {
+                    return Option.none();
+                }
+                outcome = Either.left(error);
+            } else if (!mirrorFailed && watch.getTimeout() == null) {
+                mirrorSelector.onSuccess(currentMirror, transfer.getBytesReceived(),
+                    transfer.getActiveNanos());
+            }
+            // у файла, который качается по частям, считаются попытки всех частей
+            int attempts = task.isSegment()
+                ? task.getSegment().getFile().getAttempts() : task.getAttempt();
+            Option<Either<DownlodError, DownloadSuccess>> result = toResult(
+                task.getLinkInfo(), outcome, attempts);
+            result.forEach(x -> metrics.fileFinished(fileName, x.isRight()));
+            return result;
+        } finally {
+            watch.close();
+            currentRequest = null;
+            transfer.finish();
+            bandwidth.exit(task.getLinkInfo());
+            // освобождаем соединение с хостом для следующих задач
+            scheduler.release(task);
+        }
+    }
+
+    private void track(HttpRequestBase request) {
+        currentRequest = request;
+        if (watch.getTimeout() != null) {
+            // наблюдатель успел прервать закачку до начала запроса
+            request.abort();
+        }
+    }
+
+    private void abortCurrentRequest() {
+        HttpRequestBase request = currentRequest;
+        if (request != null) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Если у ссылки остались зеркала, которые в этой попытке еще не
+     * отказали, сразу ставит задачу в очередь с другим зеркалом. Скачанное
+     * докачивается с нового зеркала запросом с Range.
+     *
+     * @return {@code true}, если задача будет продолжена с другого зеркала
+     */
+    private boolean failOver(DownloadTask task, Throwable error) {
+        if (!retryPolicy.canFailOver(error)) {
+            return false;
+        }
+        mirrorFailed = true;
+        mirrorSelector.onFailure(currentMirror);
+        DownloadTask next = task.failover(currentMirror);
+        if (!next.hasUntriedMirrors() || watchdog.isDeadlineExpired()) {
+            return false;
+        }
+        log.warn("Закачка {} с {} не удалась ({}), переключаюсь на другое зеркало",
+            task.isSegment() ? task.getSegment() : task.getLinkInfo().getFileName(),
+            HostFairTaskScheduler.hostName(currentMirror), error.getLocalizedMessage());
+        retryQueue.add(next, 0);
+        return true;
+    }
+
+    /**
+     * Ставит задачу в очередь повторов, если ошибка временная и попытки не
+     * исчерпаны. Загрузчик не ждет задержку сам, а сразу берет другую задачу;
+     * то, что уже скачано, будет докачано, если сервер это позволяет.
+     *
+     * @return {@code true}, если задача будет повторена
+     */
+    private boolean retryLater(DownloadTask task, Throwable error) {
+        long delayMillis = retryPolicy.retryDelayMillis(task, error);
+        if (delayMillis < 0 || watchdog.isDeadlineExpired()) {
+            return false;
+        }
+        log.warn("Закачка {} не удалась ({}), попытка {} из {} через {} мс",
+            task.isSegment() ? task.getSegment() : task.getLinkInfo().getFileName(),
+            error.getLocalizedMessage(), task.getAttempt() + 1,
+            retryPolicy.getMaxAttempts(error), delayMillis);
+        retryQueue.add(task.nextAttempt(), delayMillis);
+        return true;
+    }
+
+    // Пустой результат означает, что файл качается по частям и о его
+    // завершении сообщит загрузчик, докачавший последний сегмент
+    private static Option<Either<DownlodError, DownloadSuccess>> toResult(
+        DownloadLinkInfo linkInfo, Either<Throwable, Option<DownloadSuccess>> outcome,
+        int attempts) {
+
+        if (outcome.isLeft()) {
+            return Option.some(Either.left(new DownlodError(linkInfo, outcome.getLeft(),
+                attempts)));
+        }
+        return outcome.get().map(success -> Either.right(success.withAttempts(
+            Math.max(attempts, success.getAttempts()))));
+    }
+
+    /**
+     * @param inputStream  распакованное тело ответа
+     * @param wireStream   поток под распаковкой, по которому видно, сколько
+     *                     байт пришло по сети; на них и тратится лимит скорости
+     * @param onWritten    получает в потоке-писателе, сколько байт от начала
+     *                     файла уже на диске
+     */
+    private long readWithLimit(InputStream inputStream, CountingInputStream wireStream,
+                               DiskWriter.Target output, ContentHasher hasher,
+                               LongConsumer onWritten)
     throws InterruptedException, IOException {
 
-        int bytesRead = 0;
-        // скачиваем за раз сколько позволено или размер буфера
-        int bytesToReadOnce = limit <= BUFFER_SIZE ? limit : BUFFER_SIZE;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(BUFFER_SIZE);
+        ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
+        long totalBytesRead = 0;
+        long wireBytesCounted = 0;
+        // за раз читаем не больше, чем позволяет размер всплеска, чтобы
+        // ограничитель скорости выдавал байты равномерно
+        int bytesToReadOnce = (int) Math.min(diskWriter.getBufferSize(),
+            rateLimiter.getBurstSize());
 
-        do {
-            long timeStart = System.currentTimeMillis();
-            long sumBytesReadToLimit = 0;
+        while (true) {
+            ByteBuffer buffer = acquireBuffer();
+            buffer.limit(bytesToReadOnce);
+            int bytesRead = read(inputChannel, buffer);
+            long wireBytes = wireStream.getCount() - wireBytesCounted;
+            wireBytesCounted += wireBytes;
+            transfer.bytesReceived(wireBytes);
 
-            do {
-                log.debug("Загрузчик начал закачку очередной порции данных");
+            if (bytesRead < 0) {
+                diskWriter.releaseBuffer(buffer);
+                break;
+            }
 
-                bytesRead = inputStream.read(buffer, 0, bytesToReadOnce);
+            buffer.flip();
+            if (hasher != null) {
+                hasher.update(buffer);
+            }
+            long position = totalBytesRead;
+            totalBytesRead += bytesRead;
+            long written = totalBytesRead;
+            // запись идет в потоке-писателе, а загрузчик сразу читает дальше
+            output.write(buffer, position, () -> onWritten.accept(written));
 
-                if (bytesRead > 0) {
-                    log.debug("Загрузчик прочитал {} байт", bytesRead);
-                    outputStream.write(buffer, 0, bytesRead);
-                } else {
-                    break;
-                }
+            // общий на все загрузчики лимит: если байты уже выбраны другими
+            // потоками, засыпаем ровно на столько, сколько нужно
+            transfer.throttled(rateLimiter.acquire(wireBytes));
+        }
+        return totalBytesRead;
+    }
 
-                sumBytesReadToLimit += bytesRead;
-
-                // Если поток успел скачать отведенное ему кол-во байт меньше, чем за
-                // 1 с, то на оставщееся время, он засыпает, чтобы не превысить 
-                // заданное ограничение скорости
-                long timeEnd = System.currentTimeMillis();
-                long diff = timeEnd - timeStart;
-
-                // если время еще не вышло (1 с)
-                if (diff < ONE_SECOND) {
-                    // и время на закачку еще есть, то идем дальше
-                    if (sumBytesReadToLimit < limit) {
-                        // ничего не делаем, идем качать следующую порцию данных
-                    } else {
-                        // мы достигли лимита скачанных байт за отведенное время
-                        log.debug("Загрузчик достиг лимита скачанных байт за " +
-                            "{} мс. Засыпает", diff);
-                        Thread.sleep(ONE_SECOND - diff);
-                    }
+    // Если все буферы пула ждут записи, закачку сдерживает диск
+    private ByteBuffer acquireBuffer() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        ByteBuffer buffer = diskWriter.acquireBuffer();
+        transfer.waitedForDisk(System.nanoTime() - startNanos);
+        return buffer;
+    }
 
-                } else {
-                    // время вышло, начинаем заново
-                    break;
-                }
-            } while (true);
-        } while (bytesRead != -1);
-        return outputStream;
+    // Буфер, в который не удалось прочитать, возвращается в пул
+    private int read(ReadableByteChannel inputChannel, ByteBuffer buffer)
+    throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            return inputChannel.read(buffer);
+        } catch (IOException | RuntimeException e) {
+            diskWriter.releaseBuffer(buffer);
+            throw e;
+        } finally {
+            metrics.onNetworkRead(System.nanoTime() - startNanos);
+        }
+    }
+
+    // Тело, сжатое сервером (Content-Encoding), распаковывается на лету
+    private static InputStream decode(HttpEntity entity, InputStream wireStream,
+                                      int bufferSize) throws IOException {
+        if (!isEncoded(entity)) {
+            return wireStream;
+        }
+        String encoding = entity.getContentEncoding().getValue().trim();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(wireStream, bufferSize);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            // умеет и zlib-обертку, и "голый" deflate, который шлют некоторые серверы
+            return new DeflateInputStream(wireStream);
+        }
+        throw new IOException("Неподдерживаемое сжатие ответа: " + encoding);
+    }
+
+    private static boolean isEncoded(HttpEntity entity) {
+        Header encoding = entity.getContentEncoding();
+        return encoding != null && !encoding.getValue().trim().isEmpty()
+            && !"identity".equalsIgnoreCase(encoding.getValue().trim());
     }
 
-    private Either<Throwable, Long> downloadLink(DownloadTask downloadTask) {
+    private Either<Throwable, Option<DownloadSuccess>> downloadLink(
+        DownloadTask downloadTask) {
 
         return Try.of(() -> {
-            CloseableHttpClient httpclient = HttpClients.createDefault();
-            HttpGet httpget = new HttpGet(downloadTask.getLinkInfo().getHttpLink());
-            long bytesRead = 0;
-            log.info("Приступаю к загрузке {}", downloadTask.getLinkInfo().getFileName());
+            DownloadLinkInfo linkInfo = downloadTask.getLinkInfo();
+            Path outputFilePath = FileSystems.getDefault().getPath(downloadTask.getOutputFolder(),
+                linkInfo.getFileName());
+            Path tempFilePath = tempFilePath(outputFilePath);
+            HttpGet httpget = new HttpGet(currentMirror);
+            track(httpget);
+            Option<DownloadSuccess> result = Option.some(new DownloadSuccess(linkInfo, 0));
+            Option<DownloadManifest.Entry> cached = Option.none();
+
+            DownloadJournal journal = DownloadJournal.load(tempFilePath,
+                linkInfo.getHttpLink());
+            if (journal != null && journal.isComplete()) {
+                // программа прервалась между последней записью и переименованием
+                SegmentedFile file = SegmentedFile.resume(linkInfo, outputFilePath,
+                    tempFilePath, diskWriter, journal,
+                    settings.segmentedChecksumAlgorithmFor(linkInfo));
+                file.complete();
+                recordInManifest(file);
+                log.info("Загрузка {} завершена", linkInfo.getFileName());
+                return Option.some(new DownloadSuccess(linkInfo, journal.getLength()));
+            } else if (journal != null) {
+                log.info("Продолжаю загрузку {} с байта {}", linkInfo.getFileName(),
+                    journal.getFirstMissingByte());
+                // если файл на сервере изменился, вместо 206 придет 200 и
+                // файл будет скачан заново
+                httpget.setHeader(HttpHeaders.RANGE, String.format("bytes=%d-",
+                    journal.getFirstMissingByte()));
+                if (needsIfRange(linkInfo)) {
+                    httpget.setHeader(HttpHeaders.IF_RANGE, journal.getValidator());
+                }
+            } else {
+                if (!settings.isForceDownload()) {
+                    cached = manifest.addConditions(httpget, linkInfo, outputFilePath);
+                }
+                if (settings.isCompression()) {
+                    // сжатие просим только для файла целиком: смещения Range
+                    // относились бы к сжатому представлению
+                    httpget.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+                }
+                log.info("Приступаю к загрузке {}", linkInfo.getFileName());
+            }
+            if (linkInfo.getMirrors().size() > 1) {
+                log.info("Качаю {} с {}", linkInfo.getFileName(),
+                    HostFairTaskScheduler.hostName(currentMirror));
+            }
 
-            bytesRead = 0;
-            try (CloseableHttpResponse response = httpclient.execute(httpget)) {
+            try (CloseableHttpResponse response = httpClient.execute(httpget)) {
                 int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode == 200) {
+                transfer.responseReceived(statusCode);
+                if (statusCode == 304 && cached.isDefined()) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    log.info("Файл {} не изменился на сервере", linkInfo.getFileName());
+                    return Option.some(DownloadSuccess.upToDate(linkInfo,
+                        cached.get().getLength()));
+                } else if (statusCode == 206 && journal != null
+                    && response.getEntity() != null) {
+                    result = resumeBySegments(linkInfo, journal, httpget,
+                        response.getEntity(), outputFilePath);
+                } else if (statusCode == 200) {
+                    if (journal != null) {
+                        log.info("Файл {} изменился на сервере и будет скачан " +
+                            "заново", linkInfo.getFileName());
+                        journal.delete();
+                    }
                     HttpEntity entity = response.getEntity();
                     if (entity != null) {
-                        try (InputStream instream = entity.getContent()) {
-                            ByteArrayOutputStream byteStream = readWithLimit(speedLimit,
-                                instream);
-                            Path outputFilePath = FileSystems.getDefault().getPath(downloadTask.getOutputFolder(),
-                                downloadTask.getLinkInfo().getFileName());
-                            try (FileOutputStream fo = new FileOutputStream(outputFilePath.toFile())) {
-                                fo.write(byteStream.toByteArray());
-                                log.debug("Загрузчик сохранил закачку в папку {}", outputFilePath);
-                            }
-
-                            bytesRead = byteStream.size();
-
+                        // сжатый ответ нельзя ни докачать, ни делить на части:
+                        // Content-Length и Range относятся к сжатым байтам
+                        DownloadJournal newJournal = isEncoded(entity) ? null
+                            : DownloadJournal.create(tempFilePath, linkInfo.getHttpLink(),
+                                response, entity.getContentLength());
+                        if (!isEncoded(entity) && canDownloadBySegments(response, entity)) {
+                            result = downloadBySegments(linkInfo, httpget, entity,
+                                outputFilePath, newJournal);
+                        } else {
+                            ChecksumAlgorithm algorithm =
+                                settings.checksumAlgorithmFor(linkInfo);
+                            ContentHasher hasher = algorithm != null
+                                ? algorithm.newHasher() : null;
+                            long fileSize = saveToFile(entity, outputFilePath, hasher,
+                                linkInfo.getExpectedChecksum(), newJournal);
+                            manifest.put(DownloadManifest.Entry.fromResponse(
+                                linkInfo.getHttpLink(), response, fileSize,
+                                hasher != null ? hasher.toTaggedHex() : null));
+                            result = Option.some(new DownloadSuccess(linkInfo, fileSize,
+                                transfer.getBytesReceived()));
                         }
                     }
                 } else {
-                    throw new IOException(response.getStatusLine().toString());
+                    // дочитываем тело ответа, чтобы соединение вернулось в пул
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    throw new HttpStatusException(response);
                 }
             }
-            log.info("Загрузка {} завершена", downloadTask.getLinkInfo().getFileName());
+            if (result.isDefined()) {
+                log.info("Загрузка {} завершена", linkInfo.getFileName());
+            }
 
-            return bytesRead;
+            return result;
+        }).toEither();
+    }
+
+    // У разных зеркал обычно разные ETag, и с If-Range другое зеркало прислало
+    // бы файл целиком. Если в списке ссылок указана контрольная сумма, она все
+    // равно обнаружит смешение разных версий файла, поэтому докачиваем без
+    // условия
+    private static boolean needsIfRange(DownloadLinkInfo linkInfo) {
+        return linkInfo.getMirrors().size() == 1 || linkInfo.getExpectedChecksum() == null;
+    }
+
+    private boolean canDownloadBySegments(HttpResponse response, HttpEntity entity) {
+        Header acceptRanges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+        return settings.isSegmentedMode()
+            && acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.getValue())
+            && entity.getContentLength() >= settings.getSegmentThreshold();
+    }
+
+    // Делит файл на сегменты: первый дочитываем из уже открытого ответа,
+    // остальные забирают другие загрузчики запросами с заголовком Range
+    private Option<DownloadSuccess> downloadBySegments(DownloadLinkInfo linkInfo,
+                                            HttpRequestBase request,
+                                            HttpEntity entity,
+                                            Path outputFilePath,
+                                            DownloadJournal journal)
+    throws IOException, InterruptedException {
+        SegmentedFile file = SegmentedFile.create(linkInfo, outputFilePath,
+            tempFilePath(outputFilePath), entity.getContentLength(), diskWriter, journal,
+            settings.segmentedChecksumAlgorithmFor(linkInfo));
+        file.noteAttempt(currentTask.getAttempt());
+        List<FileSegment> segments = file.split(settings.getSegmentsPerFile());
+        segmentRegistry.register(file, segments.subList(1, segments.size()));
+        log.info("Файл {} размером {} байт будет закачан по частям: {}",
+            linkInfo.getFileName(), file.getLength(), segments.size());
+
+        return readSegment(segments.get(0), request, entity);
+    }
+
+    // Ответ на запрос с Range начинается с первого недостающего байта: из него
+    // дочитываем первый недокачанный сегмент, остальные отдаем другим загрузчикам
+    private Option<DownloadSuccess> resumeBySegments(DownloadLinkInfo linkInfo,
+                                          DownloadJournal journal,
+                                          HttpRequestBase request,
+                                          HttpEntity entity,
+                                          Path outputFilePath)
+    throws IOException, InterruptedException {
+        SegmentedFile file = SegmentedFile.resume(linkInfo, outputFilePath,
+            tempFilePath(outputFilePath), diskWriter, journal,
+            settings.segmentedChecksumAlgorithmFor(linkInfo));
+        file.noteAttempt(currentTask.getAttempt());
+        List<FileSegment> segments = file.getSegments();
+        segmentRegistry.register(file, segments.subList(1, segments.size()));
+
+        return readSegment(segments.get(0), request, entity);
+    }
+
+    private Either<Throwable, Option<DownloadSuccess>> downloadSegment(
+        FileSegment segment) {
+        SegmentedFile file = segment.getFile();
+
+        return Try.of(() -> {
+            if (file.isFinished() || segment.getRemaining() == 0) {
+                return Option.<DownloadSuccess>none();
+            }
+            HttpGet httpget = new HttpGet(currentMirror);
+            httpget.setHeader(HttpHeaders.RANGE, String.format("bytes=%d-%d",
+                segment.getPosition(), segment.getEnd() - 1));
+            if (file.getValidator() != null && needsIfRange(file.getLinkInfo())) {
+                httpget.setHeader(HttpHeaders.IF_RANGE, file.getValidator());
+            }
+            track(httpget);
+            log.debug("Приступаю к загрузке {}", segment);
+
+            // об ошибке сообщает только первый загрузчик, у которого она
+            // случилась; остальные сегменты файла просто прекращают закачку
+            CloseableHttpResponse response;
+            try {
+                response = httpClient.execute(httpget);
+            } catch (IOException | RuntimeException e) {
+                return onSegmentError(segment, e);
+            }
+            try {
+                int statusCode = response.getStatusLine().getStatusCode();
+                transfer.responseReceived(statusCode);
+                if (statusCode != 206 || response.getEntity() == null) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    return onSegmentError(segment, new HttpStatusException(response));
+                }
+                // ошибки чтения readSegment отсеивает сама
+                return readSegment(segment, httpget, response.getEntity());
+            } finally {
+                response.close();
+            }
         }).toEither();
     }
 
+    private Option<DownloadSuccess> readSegment(FileSegment segment, HttpRequestBase request,
+                                     HttpEntity entity)
+    throws IOException, InterruptedException {
+        SegmentedFile file = segment.getFile();
+        boolean fileCompleted;
+        try (InputStream instream = entity.getContent()) {
+            fileCompleted = readSegmentWithLimit(instream, segment, request);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            return onSegmentError(segment, e);
+        }
+        if (!fileCompleted) {
+            return Option.none();
+        }
+        // файл завершает только один загрузчик, и об ошибке проверки или
+        // переименования сообщает он
+        if (!file.complete()) {
+            return Option.none();
+        }
+        recordInManifest(file);
+        log.info("Загрузка {} завершена", file.getLinkInfo().getFileName());
+        return Option.some(new DownloadSuccess(file.getLinkInfo(), file.getLength())
+            .withAttempts(file.getAttempts()));
+    }
+
+    // Сегмент с временной ошибкой возвращается в очередь, остальные сегменты
+    // файла продолжают качаться. Иначе об ошибке сообщает только первый
+    // загрузчик, у которого она случилась
+    private Option<DownloadSuccess> onSegmentError(FileSegment segment, Exception error)
+    throws IOException, InterruptedException {
+        Throwable cause = watch.asTimeout(error);
+        DownloadTask segmentTask = currentTask.forSegment(segment);
+        if (failOver(segmentTask, cause) || retryLater(segmentTask, cause)) {
+            return Option.none();
+        }
+        if (!segment.getFile().fail()) {
+            return Option.none();
+        } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        }
+        throw (RuntimeException) cause;
+    }
+
+    /**
+     * @return {@code true}, если записан последний недостающий байт файла
+     */
+    private boolean readSegmentWithLimit(InputStream inputStream, FileSegment segment,
+                                         HttpRequestBase request)
+    throws InterruptedException, IOException {
+
+        SegmentedFile file = segment.getFile();
+        ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
+        int bytesToReadOnce = (int) Math.min(diskWriter.getBufferSize(),
+            rateLimiter.getBurstSize());
+        // последние байты файла может записать любой из буферов этого
+        // загрузчика, а узнает он об этом, только дождавшись записи
+        AtomicBoolean fileCompleted = new AtomicBoolean();
+        long lastWrite = 0;
+
+        while (!file.isFinished()) {
+            ByteBuffer buffer = acquireBuffer();
+            buffer.limit(bytesToReadOnce);
+            int bytesRead = read(inputChannel, buffer);
+
+            if (bytesRead < 0) {
+                diskWriter.releaseBuffer(buffer);
+                if (segment.getRemaining() > 0) {
+                    throw new ConnectionClosedException(String.format("Соединение " +
+                        "закрыто раньше конца сегмента: %s", segment));
+                }
+                break;
+            }
+
+            // позиция двигается только этим потоком, поэтому ее можно
+            // прочитать до резервирования
+            long position = segment.getPosition();
+            int allowed = segment.claim(bytesRead);
+            if (allowed == 0) {
+                // весь остаток сегмента уже забрал другой загрузчик
+                diskWriter.releaseBuffer(buffer);
+                request.abort();
+                break;
+            }
+            transfer.bytesReceived(allowed);
+            buffer.flip();
+            buffer.limit(allowed);
+            segment.hash(buffer);
+            lastWrite = file.write(buffer, position, () -> {
+                segment.onWritten(allowed);
+                if (file.onBytesWritten(allowed)) {
+                    fileCompleted.set(true);
+                }
+            });
+
+            transfer.throttled(rateLimiter.acquire(allowed));
+
+            if (allowed < bytesRead) {
+                // конец сегмента забрал себе другой загрузчик: остаток ответа
+                // не нужен, дочитывать его не будем
+                request.abort();
+                break;
+            }
+        }
+        long startNanos = System.nanoTime();
+        file.awaitWritten(lastWrite);
+        transfer.waitedForDisk(System.nanoTime() - startNanos);
+        return fileCompleted.get();
+    }
+
+    private void recordInManifest(SegmentedFile file) {
+        DownloadManifest.Entry entry = file.manifestEntry();
+        if (entry != null) {
+            manifest.put(entry);
+        }
+    }
+
+    // Содержимое ответа пишется во временный файл рядом с целевым и только
+    // после успешной закачки атомарно переименовывается, поэтому в выходной
+    // папке никогда не остается наполовину скачанных файлов под итоговым именем.
+    // Если для ответа ведется журнал, при ошибке временный файл остается для
+    // докачки при следующем запуске
+    private long saveToFile(HttpEntity entity, Path outputFilePath,
+                            ContentHasher hasher, ExpectedChecksum expectedChecksum,
+                            DownloadJournal journal)
+    throws IOException, InterruptedException {
+        Path tempFilePath = tempFilePath(outputFilePath);
+        long length = entity.getContentLength();
+        long[] bytesWritten = new long[1];
+        boolean completed = false;
+        boolean corrupted = false;
+
+        // размер сжатого ответа - это не размер файла
+        boolean preallocate = length > 0 && !isEncoded(entity);
+
+        try {
+            long bytesRead;
+            int bytesToReadOnce = (int) Math.min(diskWriter.getBufferSize(),
+                rateLimiter.getBurstSize());
+            try (CountingInputStream wireStream = new CountingInputStream(
+                     entity.getContent());
+                 InputStream instream = decode(entity, wireStream, bytesToReadOnce);
+                 FileChannel fileChannel = openTempFile(tempFilePath,
+                     preallocate ? length : -1);
+                 // закрывается первым и дожидается записей из очереди
+                 DiskWriter.Target output = diskWriter.open(fileChannel)) {
+                bytesRead = readWithLimit(instream, wireStream, output, hasher,
+                    total -> {
+                    bytesWritten[0] = total;
+                    if (journal != null) {
+                        journal.checkpoint(() -> Collections.singletonList(
+                            new DownloadJournal.Range(0, total, length)));
+                    }
+                });
+                long startNanos = System.nanoTime();
+                output.flush();
+                transfer.waitedForDisk(System.nanoTime() - startNanos);
+            }
+            if (preallocate && bytesRead != length) {
+                // иначе в конце файла остались бы нули
+                throw new ConnectionClosedException(String.format("Получено %d " +
+                    "байт из %d", bytesRead, length));
+            }
+            if (expectedChecksum != null) {
+                expectedChecksum.verify(outputFilePath.getFileName().toString(),
+                    hasher.toHex());
+            }
+            Files.move(tempFilePath, outputFilePath,
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.debug("Загрузчик сохранил закачку в папку {}", outputFilePath);
+            completed = true;
+            if (journal != null) {
+                journal.delete();
+            }
+
+            return bytesRead;
+        } catch (ChecksumMismatchException e) {
+            corrupted = true;
+            throw e;
+        } finally {
+            if (!completed && journal != null && !corrupted) {
+                journal.saveQuietly(Collections.singletonList(
+                    new DownloadJournal.Range(0, bytesWritten[0], length)));
+            } else if (!completed) {
+                // испорченный файл докачивать бессмысленно
+                Files.deleteIfExists(tempFilePath);
+                if (journal != null) {
+                    journal.delete();
+                }
+            }
+        }
+    }
+
+    // Если размер известен, место под файл выделяется сразу
+    private static FileChannel openTempFile(Path tempFilePath, long length)
+    throws IOException {
+        if (length < 0) {
+            return FileChannel.open(tempFilePath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        DiskWriter.preallocate(tempFilePath, length);
+        return FileChannel.open(tempFilePath, StandardOpenOption.WRITE);
+    }
+
+    static Path tempFilePath(Path outputFilePath) {
+        return outputFilePath.resolveSibling(outputFilePath.getFileName() + TEMP_FILE_SUFFIX);
+    }
+
     private final class TaskQueueSpliterator
         implements Spliterator<DownloadTask> {
-        private final Queue<DownloadTask> taskList;
+        private static final long WAIT_FOR_TASK_MS = 100;
+
+        private final TaskScheduler scheduler;
+        private final SegmentRegistry segmentRegistry;
 
-        TaskQueueSpliterator(Queue<DownloadTask> taskList) {
-            this.taskList = taskList;
+        TaskQueueSpliterator(TaskScheduler scheduler,
+                             SegmentRegistry segmentRegistry) {
+            this.scheduler = scheduler;
+            this.segmentRegistry = segmentRegistry;
         }
 
+        // Сначала доделываем уже начатые файлы, потом берем новые, а когда
+        // новых нет - помогаем с самым большим недокачанным сегментом. Пока
+        // список ссылок не дочитан или хосты заняты, ждем появления задач
         @Override
         public boolean tryAdvance(Consumer<? super DownloadTask> action) {
-            DownloadTask task = taskList.poll();
-            if (task != null) {
-                action.accept(task);
-                return true;
-            } else return false;
+            try {
+                while (!watchdog.isDeadlineExpired()) {
+                    DownloadTask task = segmentRegistry.pollPending(scheduler);
+                    if (task == null) {
+                        task = retryQueue.poll(scheduler);
+                    }
+                    if (task == null) {
+                        task = scheduler.poll();
+                    }
+                    if (task == null) {
+                        task = segmentRegistry.steal(scheduler);
+                    }
+                    if (task == null && !scheduler.isDrained()) {
+                        task = scheduler.poll(WAIT_FOR_TASK_MS, TimeUnit.MILLISECONDS);
+                    } else if (task == null && !retryQueue.isEmpty()) {
+                        // повторные задачи ждут своего времени или хоста
+                        Thread.sleep(WAIT_FOR_TASK_MS);
+                    }
+                    if (task != null) {
+                        action.accept(task);
+                        return true;
+                    } else if (scheduler.isDrained() && retryQueue.isEmpty()) {
+                        return false;
+                    }
+                }
+                // оставшиеся задачи DownloadManager отметит как не начатые
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
         }
 
         @Override
@@ -168,7 +791,7 @@ public class Downloader extends Thread {
 
         @Override
         public long estimateSize() {
-            return 0;
+            return Long.MAX_VALUE;
         }
 
         @Override
@@ -1,20 +1,63 @@
 package ru.chicker;
 
+import ru.chicker.exception.DownloadTimeoutException;
 import ru.chicker.util.ExceptionUtils;
 
 public class DownlodError {
     private final DownloadLinkInfo linkInfo;
     private final Throwable error;
+    // сколько попыток было сделано до того, как закачку признали неудачной
+    private final int attempts;
 
     public DownlodError(DownloadLinkInfo linkInfo, Throwable error) {
+        this(linkInfo, error, 1);
+    }
+
+    public DownlodError(DownloadLinkInfo linkInfo, Throwable error, int attempts) {
         this.linkInfo = linkInfo;
         this.error = error;
+        this.attempts = attempts;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public DownloadLinkInfo getLinkInfo() {
+        return linkInfo;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Сообщение исходной ошибки, без оберток.
+     */
+    public String getMessage() {
+        return ExceptionUtils.getCause(error).getLocalizedMessage();
+    }
+
+    /**
+     * Закачка прервана по времени, а не завершилась ошибкой сервера или диска.
+     */
+    public boolean isTimeout() {
+        return ExceptionUtils.getCause(error) instanceof DownloadTimeoutException;
     }
 
     @Override
     public String toString() {
+        String message = describe();
+        return attempts > 1
+            ? String.format("%s; попыток: [%d]", message, attempts) : message;
+    }
+
+    private String describe() {
+        if (isTimeout()) {
+            return String.format("Закачка файла [%s] прервана по таймауту: [%s]",
+                linkInfo.getFileName(), getMessage());
+        }
         return String.format("Закачка файла [%s] завершилась ошибкой: " +
-                "[%s]", linkInfo.getFileName(),
-            ExceptionUtils.getCause(error).getLocalizedMessage());
+                "[%s]", linkInfo.getFileName(), getMessage());
     }
 }
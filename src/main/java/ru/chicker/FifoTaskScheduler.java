@@ -0,0 +1,63 @@
+package ru.chicker;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ограниченная очередь задач между читателем файла со ссылками и
+ * загрузчиками: задачи выдаются строго в порядке поступления, без
+ * ограничений на число соединений.
+ */
+public class FifoTaskScheduler implements TaskScheduler {
+    private final BlockingQueue<DownloadTask> tasks;
+    private volatile boolean closed;
+
+    public FifoTaskScheduler(int capacity) {
+        this.tasks = new LinkedBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void put(DownloadTask task) throws InterruptedException {
+        tasks.put(task);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public DownloadTask poll() {
+        return tasks.poll();
+    }
+
+    @Override
+    public DownloadTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return tasks.poll(timeout, unit);
+    }
+
+    @Override
+    public boolean tryAcquire(DownloadTask task) {
+        return true;
+    }
+
+    @Override
+    public void release(DownloadTask task) {
+    }
+
+    @Override
+    public boolean transfer(DownloadTask from, DownloadTask to) {
+        return true;
+    }
+
+    @Override
+    public boolean isDrained() {
+        return closed && tasks.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return tasks.size();
+    }
+}
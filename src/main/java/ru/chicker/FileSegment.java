@@ -0,0 +1,132 @@
+package ru.chicker;
+
+import ru.chicker.checksum.ContentHasher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Диапазон байт [start, end) файла, который качается по частям.
+ * <p>
+ * Позицию двигает только загрузчик, который качает сегмент, а конец может
+ * сдвинуться влево, когда освободившийся загрузчик забирает себе вторую
+ * половину оставшегося диапазона (см. {@link #split(long)}). Байты до
+ * позиции уже прочитаны, но могут еще ждать записи на диск; в журнал
+ * попадают только записанные, до {@code written}.
+ * <p>
+ * Если для файла считается контрольная сумма, сегмент считает ее для байт
+ * [hashedFrom, end), которые сам скачал; из сумм сегментов потом
+ * складывается сумма файла (см. {@link SegmentedFile}).
+ */
+public class FileSegment {
+    private final SegmentedFile file;
+    private final long start;
+    private long position;
+    private long written;
+    private long end;
+    // байты до hashedFrom скачаны раньше, например прерванным запуском
+    private final long hashedFrom;
+    private final ContentHasher hasher;
+
+    FileSegment(SegmentedFile file, long start, long end) {
+        this(file, start, start, end);
+    }
+
+    FileSegment(SegmentedFile file, long start, long position, long end) {
+        this.file = file;
+        this.start = start;
+        this.position = position;
+        this.written = position;
+        this.end = end;
+        this.hashedFrom = position;
+        this.hasher = file.newSegmentHasher(start, position);
+    }
+
+    public SegmentedFile getFile() {
+        return file;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    public synchronized long getRemaining() {
+        return end - position;
+    }
+
+    long getHashedFrom() {
+        return hashedFrom;
+    }
+
+    /**
+     * @return сумма байт [hashedFrom, end) или {@code null}, если она для
+     * этого сегмента не считается
+     */
+    ContentHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Учитывает в сумме сегмента байты, только что зарезервированные через
+     * {@link #claim(int)}; вызывается только загрузчиком сегмента.
+     */
+    void hash(ByteBuffer buffer) {
+        if (hasher != null) {
+            hasher.update(buffer);
+        }
+    }
+
+    synchronized DownloadJournal.Range snapshot() {
+        return new DownloadJournal.Range(start, written, end);
+    }
+
+    /**
+     * Резервирует за загрузчиком очередную порцию из {@code bytes} байт.
+     *
+     * @return сколько байт из прочитанных действительно принадлежат сегменту
+     * и должны быть записаны с текущей позиции
+     */
+    synchronized int claim(int bytes) {
+        int allowed = (int) Math.min(bytes, end - position);
+        position += allowed;
+        return allowed;
+    }
+
+    /**
+     * Байты, зарезервированные через {@link #claim(int)}, записаны на диск;
+     * вызывается писателем в порядке резервирования.
+     */
+    synchronized void onWritten(int bytes) {
+        written += bytes;
+    }
+
+    /**
+     * Отрезает вторую половину оставшегося диапазона.
+     *
+     * @return новый сегмент или {@code null}, если оставшийся диапазон
+     * слишком мал, чтобы его делить
+     */
+    synchronized FileSegment split(long minSize) {
+        long remaining = end - position;
+        if (remaining < 2 * minSize) {
+            return null;
+        }
+        long middle = position + remaining / 2;
+        FileSegment stolen = new FileSegment(file, middle, end);
+        end = middle;
+        return stolen;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Сегмент [%d-%d) файла [%s]", start, getEnd(),
+            file.getLinkInfo().getFileName());
+    }
+}
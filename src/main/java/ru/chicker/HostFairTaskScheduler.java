@@ -0,0 +1,252 @@
+package ru.chicker;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Планировщик, который держит отдельную очередь задач на каждый хост и
+ * выдает их по кругу, пропуская хосты, с которыми уже открыто
+ * {@code maxConnectionsPerHost} соединений. Так отсортированный по хостам
+ * список не сваливает все загрузчики на один сервер, а освободившийся
+ * загрузчик не ждет, пока освободится занятый хост, а берет задачу другого.
+ * <p>
+ * Несколько планировщиков могут делить один счетчик соединений
+ * ({@link Connections}), тогда ограничение на хост общее для всех них.
+ */
+public class HostFairTaskScheduler implements TaskScheduler {
+    private final int capacity;
+    private final Connections connections;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition available = lock.newCondition();
+
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    // хосты, у которых есть ожидающие задачи, в порядке обхода
+    private final Queue<HostQueue> ring = new ArrayDeque<>();
+    private int size;
+    private boolean closed;
+
+    public HostFairTaskScheduler(int capacity, int maxConnectionsPerHost) {
+        this(capacity, new Connections(maxConnectionsPerHost));
+    }
+
+    public HostFairTaskScheduler(int capacity, Connections connections) {
+        this.capacity = capacity;
+        this.connections = connections;
+    }
+
+    @Override
+    public void put(DownloadTask task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == capacity) {
+                notFull.await();
+            }
+            HostQueue host = host(task);
+            if (host.tasks.isEmpty()) {
+                ring.add(host);
+            }
+            host.tasks.add(task);
+            size++;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DownloadTask poll() {
+        lock.lock();
+        try {
+            return takeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DownloadTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            DownloadTask task;
+            while ((task = takeNext()) == null && !isDrained()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = available.awaitNanos(nanos);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(DownloadTask task) {
+        return connections.tryAcquire(hostName(task));
+    }
+
+    @Override
+    public void release(DownloadTask task) {
+        connections.release(hostName(task));
+        lock.lock();
+        try {
+            // освободившийся хост мог быть единственным, у кого есть задачи
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean transfer(DownloadTask from, DownloadTask to) {
+        if (!connections.transfer(hostName(from), hostName(to))) {
+            return false;
+        }
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return closed && size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Один оборот по кругу хостов: первый незанятый хост отдает свою задачу
+    // и встает в конец очереди
+    private DownloadTask takeNext() {
+        for (int i = ring.size(); i > 0; i--) {
+            HostQueue host = ring.poll();
+            if (connections.tryAcquire(host.name)) {
+                DownloadTask task = host.tasks.poll();
+                if (!host.tasks.isEmpty()) {
+                    ring.add(host);
+                } else {
+                    hosts.remove(host.name);
+                }
+                size--;
+                notFull.signal();
+                return task;
+            }
+            ring.add(host);
+        }
+        return null;
+    }
+
+    private HostQueue host(DownloadTask task) {
+        return hosts.computeIfAbsent(hostName(task), HostQueue::new);
+    }
+
+    // Пока зеркало не выбрано, задача числится за хостом основной ссылки
+    static String hostName(DownloadTask task) {
+        return hostName(task.getMirror() != null ? task.getMirror()
+            : task.getLinkInfo().getHttpLink());
+    }
+
+    static String hostName(String link) {
+        try {
+            String host = URI.create(link).getHost();
+            return host != null ? host.toLowerCase(Locale.ROOT) : link;
+        } catch (IllegalArgumentException e) {
+            // некорректная ссылка все равно завершится ошибкой при закачке
+            return link;
+        }
+    }
+
+    /**
+     * Число открытых соединений с каждым хостом.
+     */
+    public static final class Connections {
+        private final int maxPerHost;
+        private final Map<String, Integer> active = new HashMap<>();
+
+        public Connections(int maxPerHost) {
+            this.maxPerHost = maxPerHost;
+        }
+
+        synchronized boolean tryAcquire(String host) {
+            int count = active.getOrDefault(host, 0);
+            if (count >= maxPerHost) {
+                return false;
+            }
+            active.put(host, count + 1);
+            return true;
+        }
+
+        /**
+         * Занимает соединение с хостом {@code to} и освобождает соединение с
+         * {@code from}, если с {@code to} еще можно соединиться.
+         */
+        synchronized boolean transfer(String from, String to) {
+            if (from.equals(to)) {
+                return true;
+            }
+            if (!tryAcquire(to)) {
+                return false;
+            }
+            release(from);
+            return true;
+        }
+
+        synchronized void release(String host) {
+            Integer count = active.get(host);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                active.put(host, count - 1);
+            } else {
+                active.remove(host);
+            }
+        }
+    }
+
+    private static final class HostQueue {
+        private final String name;
+        private final Queue<DownloadTask> tasks = new ArrayDeque<>();
+
+        HostQueue(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ru.chicker;
+
+import javaslang.control.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Качает каждую ссылку один раз, даже если в списке она указана для
+ * нескольких файлов.
+ * <p>
+ * Ссылки сравниваются после нормализации: регистр схемы и хоста,
+ * порт по умолчанию и якорь ({@code #...}) не важны. До
+ * {@link DownloadManager} доходит только первый файл с каждой ссылкой;
+ * остальные, когда он скачан, получаются из него жесткой ссылкой, а если
+ * файловая система их не поддерживает, копированием. Если первый файл не
+ * удался, остальные завершаются той же ошибкой.
+ * <p>
+ * Помнит по записи на каждую ссылку из списка, поэтому используется как
+ * фильтр ссылок и как подписчик на результаты одного запуска:
+ * <pre>
+ * manager = new DownloadManager(deduplicator.filter(links), settings);
+ * manager.start(deduplicator);
+ * </pre>
+ */
+public class LinkDeduplicator implements DownloadListener {
+    private final Logger log = LoggerFactory.getLogger(LinkDeduplicator.class);
+
+    private final String outputFolder;
+    private final DownloadListener listener;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+
+    /**
+     * @param listener получает результаты всех файлов, в том числе
+     *                 полученных из уже скачанных
+     */
+    public LinkDeduplicator(String outputFolder, DownloadListener listener) {
+        this.outputFolder = outputFolder;
+        this.listener = listener;
+    }
+
+    /**
+     * @return ленивый поток ссылок без повторов
+     */
+    public Stream<DownloadLinkInfo> filter(Stream<DownloadLinkInfo> links) {
+        return links.filter(this::isFirst);
+    }
+
+    @Override
+    public void onStarted(DownloadLinkInfo linkInfo) {
+        listener.onStarted(linkInfo);
+    }
+
+    @Override
+    public void onFinished(Either<DownlodError, DownloadSuccess> result) {
+        listener.onFinished(result);
+        DownloadLinkInfo linkInfo = result.isRight()
+            ? result.get().getLinkInfo() : result.getLeft().getLinkInfo();
+        Group group = groups.get(key(linkInfo));
+        if (group != null && group.source.equals(linkInfo)) {
+            group.finish(result).forEach(target -> materialize(group, target));
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        listener.onCompleted();
+    }
+
+    private boolean isFirst(DownloadLinkInfo linkInfo) {
+        Group group = groups.computeIfAbsent(key(linkInfo), key -> new Group(linkInfo));
+        if (group.source == linkInfo) {
+            return true;
+        }
+        if (group.addTarget(linkInfo)) {
+            // первый файл уже скачан
+            materialize(group, linkInfo);
+        }
+        return false;
+    }
+
+    private void materialize(Group group, DownloadLinkInfo target) {
+        Either<DownlodError, DownloadSuccess> result = group.result;
+        if (result.isLeft()) {
+            listener.onFinished(Either.left(new DownlodError(target,
+                result.getLeft().getError(), result.getLeft().getAttempts())));
+            return;
+        }
+        Path source = FileSystems.getDefault().getPath(outputFolder,
+            group.source.getFileName());
+        Path targetPath = FileSystems.getDefault().getPath(outputFolder,
+            target.getFileName());
+        try {
+            linkOrCopy(source, targetPath);
+            log.info("Файл {} получен из {}: ссылка та же", target.getFileName(),
+                group.source.getFileName());
+            listener.onFinished(Either.right(DownloadSuccess.deduplicated(target,
+                Files.size(targetPath), group.source.getFileName())));
+        } catch (IOException e) {
+            listener.onFinished(Either.left(new DownlodError(target, e)));
+        }
+    }
+
+    // Жесткая ссылка не занимает места и создается мгновенно. Загрузчик
+    // заменяет файлы переименованием, а не перезаписью, поэтому следующая
+    // закачка одного из файлов не изменит другой
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Файлы с разной ожидаемой контрольной суммой не объединяются: иначе
+    // сумма одного из них не была бы проверена
+    private static String key(DownloadLinkInfo linkInfo) {
+        String url = normalize(linkInfo.getHttpLink());
+        return linkInfo.getExpectedChecksum() == null ? url
+            : url + ' ' + linkInfo.getExpectedChecksum();
+    }
+
+    static String normalize(String link) {
+        try {
+            URI uri = new URI(link).normalize();
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return link;
+            }
+            String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if ("http".equals(scheme) && port == 80
+                || "https".equals(scheme) && port == 443) {
+                port = -1;
+            }
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty()
+                ? "/" : uri.getRawPath();
+            return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT)
+                + (port != -1 ? ":" + port : "") + path
+                + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+        } catch (URISyntaxException e) {
+            return link;
+        }
+    }
+
+    /**
+     * Файлы с одной и той же ссылкой.
+     */
+    private static final class Group {
+        private final DownloadLinkInfo source;
+        // файлы, которые ждут, пока скачается source
+        private List<DownloadLinkInfo> targets = new ArrayList<>();
+        private volatile Either<DownlodError, DownloadSuccess> result;
+
+        Group(DownloadLinkInfo source) {
+            this.source = source;
+        }
+
+        /**
+         * @return {@code true}, если source уже скачан и target можно
+         * получать сразу
+         */
+        synchronized boolean addTarget(DownloadLinkInfo target) {
+            if (result != null) {
+                return true;
+            }
+            targets.add(target);
+            return false;
+        }
+
+        /**
+         * @return файлы, которые ждали source
+         */
+        synchronized List<DownloadLinkInfo> finish(
+            Either<DownlodError, DownloadSuccess> result) {
+            if (targets == null) {
+                return Collections.emptyList();
+            }
+            this.result = result;
+            List<DownloadLinkInfo> waiting = targets;
+            // больше не понадобится
+            targets = null;
+            return waiting;
+        }
+    }
+}
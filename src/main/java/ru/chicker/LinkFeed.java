@@ -0,0 +1,62 @@
+package ru.chicker;
+
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Ссылки, которые поступают, пока программа работает. Для
+ * {@link DownloadManager} это обычный ленивый поток ссылок, только
+ * очередная ссылка ждет, пока ее добавят, а сам поток заканчивается
+ * лишь после {@link #close()}.
+ */
+class LinkFeed {
+    // признак конца потока в очереди
+    private static final DownloadLinkInfo END = new DownloadLinkInfo("", "");
+
+    private final BlockingQueue<DownloadLinkInfo> links = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    void addAll(Collection<DownloadLinkInfo> batch) {
+        links.addAll(batch);
+    }
+
+    /**
+     * Заканчивает поток. Ссылки, которые еще не забрали, отбрасываются.
+     */
+    void close() {
+        closed = true;
+        links.clear();
+        links.add(END);
+    }
+
+    Stream<DownloadLinkInfo> stream() {
+        Spliterator<DownloadLinkInfo> spliterator = new Spliterators.AbstractSpliterator
+            <DownloadLinkInfo>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super DownloadLinkInfo> action) {
+                if (closed) {
+                    return false;
+                }
+                DownloadLinkInfo link;
+                try {
+                    link = links.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (link == END) {
+                    return false;
+                }
+                action.accept(link);
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false);
+    }
+}
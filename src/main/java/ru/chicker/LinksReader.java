@@ -1,16 +1,34 @@
 package ru.chicker;
 
+import ru.chicker.checksum.ExpectedChecksum;
 import ru.chicker.exception.InvalidFileStructureException;
+import ru.chicker.exception.UncheckedInvalidFileStructureException;
+import ru.chicker.util.FingerprintSet;
 
+import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.stream.Stream;
 
 public class LinksReader {
+    private static final char MIRROR_SEPARATOR = '|';
+    private static final String CLASS_PREFIX = "class=";
 
+    /**
+     * Прежний разбор всего файла в память сканером по словам. Понимает
+     * только две колонки (ссылку и имя файла) и не понимает перевод строки в
+     * конце файла; программа пользуется {@link #stream(String)}, а этот
+     * метод оставлен как точка отсчета для LinksReaderBenchmark.
+     */
     public Set<DownloadLinkInfo> load(String linksFileName)
     throws FileNotFoundException, InvalidFileStructureException {
         
@@ -31,4 +49,122 @@ public class LinksReader {
         }
         return result;
     }
+
+    /**
+     * Лениво читает файл со ссылками построчно: очередная строка разбирается
+     * только когда ее запросит потребитель, поэтому закачка может начаться
+     * сразу, а память не зависит от длины списка.
+     * <p>
+     * Как и в {@link #load(String)}, из ссылок с одинаковым именем файла
+     * остается первая; для этого хранятся только отпечатки имен файлов.
+     * Ошибка формата выбрасывается при чтении неверной строки в виде
+     * {@link UncheckedInvalidFileStructureException}. Поток нужно закрыть.
+     */
+    public Stream<DownloadLinkInfo> stream(String linksFileName)
+    throws FileNotFoundException {
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(linksFileName)));
+        FingerprintSet seenFileNames = new FingerprintSet();
+        int[] lineNumber = new int[1];
+
+        return reader.lines()
+            .onClose(() -> {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })
+            .map(line -> {
+                lineNumber[0]++;
+                return line;
+            })
+            .filter(line -> !line.trim().isEmpty())
+            .map(line -> parseLine(linksFileName, lineNumber[0], line))
+            .filter(link -> seenFileNames.add(link.getFileName()));
+    }
+
+    // Разбирает строку вида "<ссылка>[|<зеркало>...] <имя файла>
+    // [<контрольная сумма>] [class=<класс>]" без регулярных выражений;
+    // необязательные колонки можно указывать в любом порядке
+    private static DownloadLinkInfo parseLine(String linksFileName, int lineNumber,
+                                              String line) {
+        String[] columns = new String[4];
+        int count = 0;
+        int position = 0;
+        int length = line.length();
+
+        while (position < length) {
+            while (position < length && Character.isWhitespace(line.charAt(position))) {
+                position++;
+            }
+            int start = position;
+            while (position < length && !Character.isWhitespace(line.charAt(position))) {
+                position++;
+            }
+            if (start < position) {
+                if (count == columns.length) {
+                    count++;
+                    break;
+                }
+                columns[count++] = line.substring(start, position);
+            }
+        }
+
+        if (count < 2 || count > columns.length) {
+            throw invalidLine(linksFileName, new IllegalArgumentException(String.format(
+                "Строка %d должна содержать ссылку, имя файла и, возможно, " +
+                    "контрольную сумму и класс: %s", lineNumber, line)));
+        }
+        ExpectedChecksum checksum = null;
+        String priorityClass = null;
+        for (int i = 2; i < count; i++) {
+            if (columns[i].startsWith(CLASS_PREFIX) && priorityClass == null
+                && columns[i].length() > CLASS_PREFIX.length()) {
+                priorityClass = columns[i].substring(CLASS_PREFIX.length());
+            } else if (checksum == null && !columns[i].startsWith(CLASS_PREFIX)) {
+                try {
+                    checksum = ExpectedChecksum.parse(columns[i]);
+                } catch (IllegalArgumentException e) {
+                    throw invalidLine(linksFileName, new IllegalArgumentException(
+                        String.format("Строка %d: %s", lineNumber, e.getMessage())));
+                }
+            } else {
+                throw invalidLine(linksFileName, new IllegalArgumentException(
+                    String.format("Строка %d: лишняя колонка %s", lineNumber,
+                        columns[i])));
+            }
+        }
+        return new DownloadLinkInfo(columns[1],
+            splitMirrors(linksFileName, lineNumber, columns[0]), checksum,
+            priorityClass != null ? priorityClass : DownloadLinkInfo.DEFAULT_PRIORITY_CLASS);
+    }
+
+    // Символ | в ссылке должен быть закодирован (%7C), поэтому он разделяет зеркала
+    private static List<String> splitMirrors(String linksFileName, int lineNumber,
+                                             String column) {
+        List<String> mirrors = new ArrayList<>(1);
+        int start = 0;
+        while (true) {
+            int end = column.indexOf(MIRROR_SEPARATOR, start);
+            String link = column.substring(start, end < 0 ? column.length() : end);
+            if (link.isEmpty()) {
+                throw invalidLine(linksFileName, new IllegalArgumentException(
+                    String.format("Строка %d: пустая ссылка в списке зеркал: %s",
+                        lineNumber, column)));
+            }
+            mirrors.add(link);
+            if (end < 0) {
+                return mirrors;
+            }
+            start = end + 1;
+        }
+    }
+
+    private static UncheckedInvalidFileStructureException invalidLine(
+        String linksFileName, IllegalArgumentException cause) {
+        return new UncheckedInvalidFileStructureException(
+            new InvalidFileStructureException(linksFileName, cause));
+    }
 }
@@ -4,24 +4,77 @@ import javaslang.control.Either;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.chicker.checksum.ChecksumAlgorithm;
 import ru.chicker.exception.InvalidFileStructureException;
+import ru.chicker.report.DownloadSummary;
+import ru.chicker.report.JsonlReport;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.Collection;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static ru.chicker.util.ByteUtils.formatBytes;
 
 public class Main {
     private static final int ONE_KILOBYTE = 1024;
     private static final int ONE_MEGABYTE = ONE_KILOBYTE * ONE_KILOBYTE;
     private static final int DEFAULT_DOWNLOADERS_NUMBER = 2;
-    private static final int DEFAULT_LIMIT_SPEED = ONE_MEGABYTE * ONE_MEGABYTE;
+    private static final int DEFAULT_MAX_THREADS = 32;
+    private static final long DEFAULT_LIMIT_SPEED = (long) ONE_MEGABYTE * ONE_MEGABYTE;
+    private static final long DEFAULT_BURST_SIZE = 64 * ONE_KILOBYTE;
+    private static final long DEFAULT_SEGMENT_THRESHOLD = 8 * ONE_MEGABYTE;
+    private static final int DEFAULT_PROGRESS_INTERVAL = 5;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30;
+    private static final int DEFAULT_READ_TIMEOUT = 60;
+    private static final long DEFAULT_STALL_SPEED = ONE_KILOBYTE;
+    private static final int DEFAULT_STALL_TIME = 30;
+    private static final int DEFAULT_TIMEOUT_RETRIES = 2;
+    private static final int DEFAULT_RETRIES = 3;
+    private static final long DEFAULT_RETRY_DELAY_MS = 1000;
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final int DEFAULT_WRITER_THREADS = 2;
     private static final String APP_NAME = "download-manager";
 
     private static Logger log = LoggerFactory.getLogger(Main.class);
     private static int nThreads = DEFAULT_DOWNLOADERS_NUMBER;
-    private static int limitSpeed = DEFAULT_LIMIT_SPEED;
+    private static boolean adaptiveConcurrency;
+    private static int maxThreads = DEFAULT_MAX_THREADS;
+    private static long limitSpeed = DEFAULT_LIMIT_SPEED;
+    private static long burstSize = DEFAULT_BURST_SIZE;
+    private static int segmentsPerFile = 1;
+    private static long segmentThreshold = DEFAULT_SEGMENT_THRESHOLD;
+    private static int writerThreads = DEFAULT_WRITER_THREADS;
+    private static int writeBuffers;
+    private static long syncBytes;
+    private static DownloadSettings.SchedulerType schedulerType =
+        DownloadSettings.SchedulerType.HOST_FAIR;
+    private static int maxConnectionsPerHost = Integer.MAX_VALUE;
+    private static PriorityClasses priorityClasses = PriorityClasses.defaults();
+    private static DownloadSettings.EngineType engineType =
+        DownloadSettings.EngineType.THREADS;
+    private static DownloadSettings.TaskOrder taskOrder =
+        DownloadSettings.TaskOrder.FILE;
+    private static int progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private static String metricsFile;
+    private static String reportFile;
+    private static boolean forceDownload;
+    private static boolean compression;
+    private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static int readTimeout = DEFAULT_READ_TIMEOUT;
+    private static long stallSpeed = DEFAULT_STALL_SPEED;
+    private static int stallTime = DEFAULT_STALL_TIME;
+    private static int timeoutRetries = DEFAULT_TIMEOUT_RETRIES;
+    private static int deadline;
+    private static int retries = DEFAULT_RETRIES;
+    private static long retryDelayMillis = DEFAULT_RETRY_DELAY_MS;
+    private static ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.SHA256;
     private static String linksFile;
+    private static String inboxFolder;
     private static String outputFolder;
 
     public static void main(String[] args) {
@@ -37,19 +90,32 @@ public class Main {
             parseCommandLineArguments(args, cliOptions);
 
             checkFileExists(outputFolder);
-            checkFileExists(linksFile);
+            checkFileExists(inboxFolder != null ? inboxFolder : linksFile);
         
             printHeader();
 
-            Collection<Either<DownlodError, DownloadSuccess>> resultList =
-                startDownloading();
+            // результаты печатаются по мере готовности, а для итогов
+            // подсчитываются только счетчики
+            DownloadSummary summary = new DownloadSummary();
+            ResultPublisher publisher = new ResultPublisher();
+            publisher.subscribe(summary);
+            publisher.subscribe(Main::printResult);
+
+            if (reportFile != null) {
+                try (JsonlReport report = new JsonlReport(Paths.get(reportFile))) {
+                    publisher.subscribe(report);
+                    run(publisher);
+                }
+            } else {
+                run(publisher);
+            }
 
-            printFooter(resultList);
+            printFooter(summary);
 
         } catch (ParseException e) {
             log.error("Ошибка запуска программы. {}", e.getLocalizedMessage());
             showUsage(cliOptions);
-        } catch (InterruptedException | FileNotFoundException | InvalidFileStructureException e) {
+        } catch (InterruptedException | IOException | InvalidFileStructureException e) {
             log.error(e.getLocalizedMessage());
         }
     }
@@ -62,49 +128,141 @@ public class Main {
     private static void printHeader() {
         System.out.println("----------------------");
         System.out.println("Параметры запуска программы:");
-        System.out.printf("  - Количество одновременно " +
-            "качающих " +
-            "потоков: %d\n", nThreads);
+        if (adaptiveConcurrency) {
+            System.out.printf("  - Количество одновременно качающих потоков: " +
+                "подбирается автоматически, не больше %d\n", nThreads);
+        } else {
+            System.out.printf("  - Количество одновременно " +
+                "качающих " +
+                "потоков: %d\n", nThreads);
+        }
         System.out.printf("  - Общее ограничение на скорость " +
             "скачивания: %s/sec\n", formatBytes(limitSpeed));
-        System.out.printf("  - Путь к файлу со списком ссылок:" +
-                " %s%n",
-            linksFile);
+        System.out.printf("  - Допустимый всплеск скорости: %s\n",
+            formatBytes(burstSize));
+        if (segmentsPerFile > 1) {
+            System.out.printf("  - Файлы больше %s качаются по частям: %d\n",
+                formatBytes(segmentThreshold), segmentsPerFile);
+        }
+        if (engineType == DownloadSettings.EngineType.ASYNC) {
+            System.out.println("  - Неблокирующий движок закачки");
+        }
+        if (syncBytes > 0) {
+            System.out.printf("  - Сброс на диск (fsync) каждые %s файла\n",
+                formatBytes(syncBytes));
+        }
+        if (taskOrder != DownloadSettings.TaskOrder.FILE) {
+            System.out.printf("  - Порядок закачки: %s\n",
+                taskOrder == DownloadSettings.TaskOrder.LARGEST_FIRST
+                    ? "сначала большие файлы" : "сначала маленькие файлы");
+        }
+        if (maxConnectionsPerHost != Integer.MAX_VALUE) {
+            System.out.printf("  - Соединений с одним хостом не больше: %d\n",
+                maxConnectionsPerHost);
+        }
+        System.out.printf("  - Классы приоритета и их веса: %s\n", priorityClasses);
+        if (metricsFile != null) {
+            System.out.printf("  - Файл метрик: %s\n", metricsFile);
+        }
+        if (reportFile != null) {
+            System.out.printf("  - Отчет о закачках (JSON Lines): %s\n", reportFile);
+        }
+        System.out.printf("  - Контрольная сумма файлов: %s\n", checksumAlgorithm != null
+            ? checksumAlgorithm.getName() : "только указанная в списке ссылок");
+        if (forceDownload) {
+            System.out.println("  - Все файлы качаются заново, даже если не изменились");
+        }
+        if (compression) {
+            System.out.println("  - Сжатие ответов: gzip, deflate");
+        }
+        System.out.printf("  - Таймауты: соединение %d с, чтение %d с, повторов %d\n",
+            connectTimeout, readTimeout, timeoutRetries);
+        System.out.printf("  - Повторов после временных ошибок: %d, первый через %d мс\n",
+            retries, retryDelayMillis);
+        if (stallSpeed > 0) {
+            System.out.printf("  - Закачка считается зависшей при скорости меньше " +
+                "%s/sec в течение %d с\n", formatBytes(stallSpeed), stallTime);
+        }
+        if (deadline > 0) {
+            System.out.printf("  - Общий срок работы: %d с\n", deadline);
+        }
+        if (inboxFolder != null) {
+            System.out.printf("  - Режим службы, папка для файлов со ссылками: %s%n",
+                inboxFolder);
+        } else {
+            System.out.printf("  - Путь к файлу со списком ссылок:" +
+                    " %s%n",
+                linksFile);
+        }
         System.out.printf("  - Имя папки, куда складывать " +
                 "файлы: %s\n",
             outputFolder);
         System.out.println("----------------------");
     }
 
-    private static void printFooter(Collection<Either<DownlodError, DownloadSuccess>>
-                                        resultList) {
-        long sizeOfAllDownloads = 0;
-        System.out.println("----------------------");
-        System.out.println("Статистика работы программы:");
-
-        sizeOfAllDownloads = resultList.stream()
-            .filter(Either::isRight)
-            .mapToLong(x -> x.get().getDownloadedFileSize())
-            .sum();
+    private static void printResult(Either<DownlodError, DownloadSuccess> result) {
+        result.forEach(System.out::println);
+        result.orElseRun(System.out::println);
+    }
 
-        for (Either<DownlodError, DownloadSuccess> dR : resultList) {
-            dR.forEach(System.out::println);
-            dR.orElseRun(System.out::println);
-        }
+    private static void printFooter(DownloadSummary summary) {
+        long sizeOfAllDownloads = summary.getDownloadedBytes();
+        long upToDateCount = summary.getUpToDateCount();
+        long timeoutCount = summary.getTimeoutCount();
+        long wireBytes = summary.getWireBytes();
 
+        System.out.println("----------------------");
+        System.out.println("Статистика работы программы:");
         System.out.printf("Всего скачано [%d] файлов, " +
-            "общего размера: [%s]\n", resultList.size(), formatBytes
+            "общего размера: [%s]\n", summary.getDownloadedCount(), formatBytes
             (sizeOfAllDownloads));
+        if (summary.getErrorCount() > 0) {
+            System.out.printf("Завершились ошибкой: [%d] файлов\n",
+                summary.getErrorCount());
+        }
+        if (upToDateCount > 0) {
+            System.out.printf("Не изменились с прошлой закачки: [%d] файлов\n",
+                upToDateCount);
+        }
+        if (summary.getDeduplicatedCount() > 0) {
+            System.out.printf("Получены из файлов с той же ссылкой: [%d] файлов, " +
+                "не пришлось качать: [%s]\n", summary.getDeduplicatedCount(),
+                formatBytes(summary.getDeduplicatedBytes()));
+        }
+        if (timeoutCount > 0) {
+            System.out.printf("Прервано по таймауту: [%d] файлов\n", timeoutCount);
+        }
+        if (compression && sizeOfAllDownloads > 0) {
+            System.out.printf("Получено по сети: [%s], сэкономлено сжатием: " +
+                "[%.1f%%]\n", formatBytes(wireBytes),
+                100.0 * (sizeOfAllDownloads - wireBytes) / sizeOfAllDownloads);
+        }
+        if (summary.getClassStats().size() > 1) {
+            printClassStats(summary);
+        }
         System.out.println("----------------------");
     }
 
-    private static String formatBytes(long bytes) {
-        if (bytes < ONE_MEGABYTE) {
-            return String.format("%.2f Kb", (float) bytes / ONE_KILOBYTE);
-        } else {
-            return String.format("%.2f Mb", (float) bytes / (ONE_MEGABYTE));
+    // Классы в порядке приоритета, затем неизвестные списку --classes
+    private static void printClassStats(DownloadSummary summary) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < priorityClasses.size(); i++) {
+            names.add(priorityClasses.getName(i));
+        }
+        summary.getClassStats().keySet().stream()
+            .filter(name -> !names.contains(name))
+            .sorted()
+            .forEach(names::add);
+        for (String name : names) {
+            DownloadSummary.ClassStats stats = summary.getClassStats(name);
+            if (stats != null) {
+                System.out.printf("Класс %s: [%d] файлов, [%s], закончен через " +
+                    "[%.1f] с, средняя скорость [%s/sec]\n", name, stats.getFileCount(),
+                    formatBytes(stats.getDownloadedBytes()),
+                    stats.getCompletionMillis() / 1000.0,
+                    formatBytes(stats.getBytesPerSecond()));
+            }
         }
-
     }
 
     private static void checkFileExists(String fileOrDirName) throws
@@ -117,17 +275,83 @@ public class Main {
         }
     }
 
-    private static Collection<Either<DownlodError, DownloadSuccess>> startDownloading()
+    private static void run(DownloadListener listener)
+    throws InterruptedException, IOException, InvalidFileStructureException {
+        if (inboxFolder != null) {
+            runService(listener);
+        } else {
+            startDownloading(listener);
+        }
+    }
+
+    private static void startDownloading(DownloadListener listener)
     throws InterruptedException, FileNotFoundException,
            InvalidFileStructureException {
 
         LinksReader linksReader = new LinksReader();
-        Collection<DownloadLinkInfo> links = linksReader.load(linksFile);
+        // файлы с одинаковой ссылкой качаются один раз
+        LinkDeduplicator deduplicator = new LinkDeduplicator(outputFolder, listener);
+        Stream<DownloadLinkInfo> links = deduplicator.filter(linksReader.stream(linksFile));
 
-        DownloadManager dm = new DownloadManager(links, nThreads, limitSpeed,
-            outputFolder);
+        DownloadManager dm = new DownloadManager(links, createSettings());
 
-        return dm.start();
+        dm.start(deduplicator);
+    }
+
+    private static void runService(DownloadListener listener)
+    throws InterruptedException, IOException, InvalidFileStructureException {
+        DownloadService service = new DownloadService(Paths.get(inboxFolder),
+            createSettings(), listener);
+
+        // Ctrl+C или SIGTERM: перестаем брать новые ссылки и ждем, пока
+        // закончатся начатые закачки и будет напечатана статистика
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.stop();
+            try {
+                mainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "shutdown"));
+
+        service.run();
+    }
+
+    private static DownloadSettings createSettings() {
+        return DownloadSettings.builder()
+            .numThreads(nThreads)
+            .adaptiveConcurrency(adaptiveConcurrency)
+            .limitSpeed(limitSpeed)
+            .burstSize(burstSize)
+            .outputFolderName(outputFolder)
+            .segmentsPerFile(segmentsPerFile)
+            .segmentThreshold(segmentThreshold)
+            .writerThreads(writerThreads)
+            .writeBuffers(writeBuffers)
+            .syncBytes(syncBytes)
+            .schedulerType(schedulerType)
+            .maxConnectionsPerHost(maxConnectionsPerHost)
+            .priorityClasses(priorityClasses)
+            .engineType(engineType)
+            .taskOrder(taskOrder)
+            .progressInterval(progressInterval)
+            .metricsFile(metricsFile)
+            .forceDownload(forceDownload)
+            .checksumAlgorithm(checksumAlgorithm)
+            .compression(compression)
+            .connectTimeout(connectTimeout)
+            .readTimeout(readTimeout)
+            .stallSpeed(stallSpeed)
+            .stallTime(stallTime)
+            .timeoutRetries(timeoutRetries)
+            .deadline(deadline)
+            .retries(retries)
+            .retryDelayMillis(retryDelayMillis)
+            // в режиме службы в очереди ждут только ближайшие задачи, чтобы
+            // при остановке не пришлось докачивать все принятые пакеты
+            .queueCapacity(inboxFolder != null ? nThreads : DEFAULT_QUEUE_CAPACITY)
+            .build();
     }
 
     private static void parseCommandLineArguments(String[] args, Options
@@ -138,26 +362,202 @@ public class Main {
 
         CommandLine line = cliParser.parse(cliOptions, args);
 
+        if (line.hasOption("max-threads")) {
+            maxThreads = Integer.parseUnsignedInt(line.getOptionValue("max-threads"));
+        }
+
         if (line.hasOption("n")) {
-            nThreads = Integer.parseUnsignedInt(line.getOptionValue("n"));
+            if ("auto".equals(line.getOptionValue("n"))) {
+                adaptiveConcurrency = true;
+                nThreads = maxThreads;
+            } else {
+                nThreads = Integer.parseUnsignedInt(line.getOptionValue("n"));
+            }
+        }
+
+        if (nThreads <= 0) {
+            throw new ParseException("Параметры -n и --max-threads должны быть " +
+                "больше нуля");
         }
 
         if (line.hasOption("l")) {
-            String limitSpeedStrValue = line.getOptionValue("l");
-            if (limitSpeedStrValue.endsWith("k")) {
-                limitSpeed = Math.round(ONE_KILOBYTE * Float.parseFloat
-                    (limitSpeedStrValue
-                        .substring(0, limitSpeedStrValue.length() - 1)));
-            } else if (limitSpeedStrValue.endsWith("m")) {
-                limitSpeed = Math.round(ONE_MEGABYTE * Float.parseFloat
-                    (limitSpeedStrValue
-                        .substring(0, limitSpeedStrValue.length() - 1)));
+            limitSpeed = parseBytes(line.getOptionValue("l"));
+        }
+
+        if (line.hasOption("b")) {
+            burstSize = parseBytes(line.getOptionValue("b"));
+        }
+
+        if (line.hasOption("s")) {
+            segmentsPerFile = Integer.parseUnsignedInt(line.getOptionValue("s"));
+        }
+
+        if (line.hasOption("segment-threshold")) {
+            segmentThreshold = parseBytes(line.getOptionValue("segment-threshold"));
+        }
+
+        if (line.hasOption("writers")) {
+            writerThreads = Integer.parseUnsignedInt(line.getOptionValue("writers"));
+            if (writerThreads == 0) {
+                throw new ParseException("Нужен хотя бы один поток записи");
+            }
+        }
+
+        if (line.hasOption("write-buffers")) {
+            writeBuffers = Integer.parseUnsignedInt(line.getOptionValue("write-buffers"));
+        }
+
+        if (line.hasOption("fsync-every")) {
+            syncBytes = parseBytes(line.getOptionValue("fsync-every"));
+        }
+
+        if (line.hasOption("scheduler")) {
+            String schedulerName = line.getOptionValue("scheduler");
+            if ("fifo".equals(schedulerName)) {
+                schedulerType = DownloadSettings.SchedulerType.FIFO;
+            } else if ("host".equals(schedulerName)) {
+                schedulerType = DownloadSettings.SchedulerType.HOST_FAIR;
+            } else {
+                throw new ParseException("Неизвестный планировщик: " + schedulerName);
+            }
+        }
+
+        if (line.hasOption("host-connections")) {
+            maxConnectionsPerHost = Integer.parseUnsignedInt(
+                line.getOptionValue("host-connections"));
+        }
+
+        if (line.hasOption("classes")) {
+            try {
+                priorityClasses = PriorityClasses.parse(line.getOptionValue("classes"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+        }
+
+        if (line.hasOption("engine")) {
+            String engineName = line.getOptionValue("engine");
+            if ("threads".equals(engineName)) {
+                engineType = DownloadSettings.EngineType.THREADS;
+            } else if ("async".equals(engineName)) {
+                engineType = DownloadSettings.EngineType.ASYNC;
+            } else {
+                throw new ParseException("Неизвестный движок: " + engineName);
+            }
+        }
+
+        if (line.hasOption("order")) {
+            String orderName = line.getOptionValue("order");
+            if ("file".equals(orderName)) {
+                taskOrder = DownloadSettings.TaskOrder.FILE;
+            } else if ("largest".equals(orderName)) {
+                taskOrder = DownloadSettings.TaskOrder.LARGEST_FIRST;
+            } else if ("smallest".equals(orderName)) {
+                taskOrder = DownloadSettings.TaskOrder.SMALLEST_FIRST;
+            } else {
+                throw new ParseException("Неизвестный порядок закачки: " + orderName);
+            }
+        }
+
+        if (line.hasOption("progress")) {
+            progressInterval = Integer.parseUnsignedInt(line.getOptionValue("progress"));
+        }
+
+        if (line.hasOption("metrics-file")) {
+            metricsFile = line.getOptionValue("metrics-file");
+        }
+
+        if (line.hasOption("report")) {
+            reportFile = line.getOptionValue("report");
+        }
+
+        forceDownload = line.hasOption("force");
+        compression = line.hasOption("compress");
+
+        if (line.hasOption("connect-timeout")) {
+            connectTimeout = Integer.parseUnsignedInt(line.getOptionValue("connect-timeout"));
+        }
+
+        if (line.hasOption("read-timeout")) {
+            readTimeout = Integer.parseUnsignedInt(line.getOptionValue("read-timeout"));
+        }
+
+        if (line.hasOption("stall-speed")) {
+            stallSpeed = parseBytes(line.getOptionValue("stall-speed"));
+        }
+
+        if (line.hasOption("stall-time")) {
+            stallTime = Integer.parseUnsignedInt(line.getOptionValue("stall-time"));
+        }
+
+        if (line.hasOption("timeout-retries")) {
+            timeoutRetries = Integer.parseUnsignedInt(line.getOptionValue("timeout-retries"));
+        }
+
+        if (line.hasOption("retries")) {
+            retries = Integer.parseUnsignedInt(line.getOptionValue("retries"));
+        }
+
+        if (line.hasOption("retry-delay")) {
+            retryDelayMillis = Long.parseUnsignedLong(line.getOptionValue("retry-delay"));
+        }
+
+        if (line.hasOption("deadline")) {
+            deadline = Integer.parseUnsignedInt(line.getOptionValue("deadline"));
+        }
+
+        if (connectTimeout <= 0 || readTimeout <= 0 || stallTime <= 0) {
+            throw new ParseException("Параметры --connect-timeout, --read-timeout " +
+                "и --stall-time должны быть больше нуля");
+        }
+
+        if (line.hasOption("checksum")) {
+            String checksumName = line.getOptionValue("checksum");
+            if ("none".equals(checksumName)) {
+                checksumAlgorithm = null;
             } else {
-                limitSpeed = Integer.parseInt(limitSpeedStrValue);
+                checksumAlgorithm = ChecksumAlgorithm.byName(checksumName);
+                if (checksumAlgorithm == null) {
+                    throw new ParseException("Неизвестная контрольная сумма: " +
+                        checksumName);
+                }
             }
         }
 
-        if (line.hasOption("f")) {
+        if (engineType == DownloadSettings.EngineType.ASYNC && segmentsPerFile > 1) {
+            throw new ParseException("Движок async не поддерживает закачку " +
+                "по частям (-s)");
+        }
+
+        if (engineType == DownloadSettings.EngineType.ASYNC && compression) {
+            throw new ParseException("Движок async не поддерживает сжатие " +
+                "ответов (--compress)");
+        }
+
+        if (maxConnectionsPerHost <= 0) {
+            throw new ParseException("Параметр --host-connections должен быть " +
+                "больше нуля");
+        }
+
+        if (segmentsPerFile <= 0) {
+            throw new ParseException("Параметр -s должен быть больше нуля");
+        }
+
+        if (limitSpeed <= 0 || burstSize <= 0) {
+            throw new ParseException("Параметры -l и -b должны быть больше нуля");
+        }
+
+        if (line.hasOption("inbox")) {
+            inboxFolder = line.getOptionValue("inbox");
+            if (line.hasOption("f")) {
+                throw new ParseException("Параметры -f и --inbox нельзя указывать " +
+                    "вместе");
+            }
+            if (taskOrder != DownloadSettings.TaskOrder.FILE || deadline > 0) {
+                throw new ParseException("В режиме службы (--inbox) нельзя " +
+                    "указывать --order и --deadline");
+            }
+        } else if (line.hasOption("f")) {
             linksFile = line.getOptionValue("f");
         } else {
             throw new ParseException("Не указан обязательный параметр -f");
@@ -170,6 +570,18 @@ public class Main {
         }
     }
 
+    private static long parseBytes(String strValue) {
+        if (strValue.endsWith("k")) {
+            return Math.round(ONE_KILOBYTE * Double.parseDouble
+                (strValue.substring(0, strValue.length() - 1)));
+        } else if (strValue.endsWith("m")) {
+            return Math.round(ONE_MEGABYTE * Double.parseDouble
+                (strValue.substring(0, strValue.length() - 1)));
+        } else {
+            return Long.parseLong(strValue);
+        }
+    }
+
     private static void showUsage(Options cliOptions) {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp(APP_NAME, cliOptions);
@@ -179,10 +591,77 @@ public class Main {
         Options cliOptions = new Options();
 
         cliOptions.addOption("n", true, "количество одновременно качающих " +
-            "потоков");
+            "потоков или auto - подбирать по скорости закачки");
+        cliOptions.addOption(null, "max-threads", true, "верхняя граница " +
+            "числа закачек для -n auto (по умолчанию 32)");
         cliOptions.addOption("l", true, "общее ограничение на скорость " +
             "скачивания");
+        cliOptions.addOption("b", true, "допустимый всплеск скорости " +
+            "(размер ведра ограничителя, по умолчанию 64k)");
+        cliOptions.addOption("s", "segments", true, "на сколько частей " +
+            "делить большой файл, если сервер поддерживает Range-запросы");
+        cliOptions.addOption(null, "segment-threshold", true, "минимальный " +
+            "размер файла для закачки по частям (по умолчанию 8m)");
+        cliOptions.addOption(null, "writers", true, "сколько потоков пишут " +
+            "скачанное на диск, не задерживая чтение из сети (по умолчанию 2)");
+        cliOptions.addOption(null, "write-buffers", true, "сколько буферов " +
+            "по 64k может ждать записи на диск; когда все заняты, закачки ждут " +
+            "диск (по умолчанию 4 на каждую закачку)");
+        cliOptions.addOption(null, "fsync-every", true, "сбрасывать файл на " +
+            "диск (fsync) каждые столько записанных байт и перед " +
+            "переименованием; журнал докачки не опережает сброшенные данные " +
+            "(по умолчанию не сбрасывать)");
+        cliOptions.addOption(null, "scheduler", true, "порядок выдачи задач: " +
+            "host - по кругу между хостами (по умолчанию), fifo - по порядку " +
+            "в файле");
+        cliOptions.addOption(null, "host-connections", true, "максимальное " +
+            "количество одновременных соединений с одним хостом");
+        cliOptions.addOption(null, "classes", true, "классы приоритета для " +
+            "колонки class= в файле ссылок, от высшего к низшему, с долями " +
+            "общей скорости (по умолчанию high=4,normal=2,low=1)");
+        cliOptions.addOption(null, "engine", true, "движок закачки: threads - " +
+            "поток на соединение (по умолчанию), async - неблокирующий " +
+            "ввод-вывод, -n задает число одновременных закачек");
+        cliOptions.addOption(null, "order", true, "порядок закачки файлов: " +
+            "file - как в файле (по умолчанию), largest - сначала большие, " +
+            "smallest - сначала маленькие (размеры узнаются HEAD-запросами)");
+        cliOptions.addOption(null, "progress", true, "как часто (в секундах) " +
+            "печатать строку прогресса, 0 - не печатать (по умолчанию 5)");
+        cliOptions.addOption(null, "metrics-file", true, "файл, в который " +
+            "периодически выгружаются счетчики в формате Prometheus");
+        cliOptions.addOption(null, "report", true, "файл, в который по мере " +
+            "завершения закачек дописывается по строке JSON на каждый файл");
+        cliOptions.addOption(null, "force", false, "качать все файлы заново, " +
+            "не проверяя по манифесту папки, изменились ли они на сервере");
+        cliOptions.addOption(null, "checksum", true, "контрольная сумма, " +
+            "которая считается на лету для файлов без суммы в списке ссылок: " +
+            "sha256 (по умолчанию), crc32c или none");
+        cliOptions.addOption(null, "compress", false, "просить сервер сжимать " +
+            "ответы (gzip, deflate) и распаковывать их на лету; ограничение " +
+            "скорости считается по сжатым байтам");
+        cliOptions.addOption(null, "connect-timeout", true, "сколько секунд ждать " +
+            "соединения с сервером (по умолчанию 30)");
+        cliOptions.addOption(null, "read-timeout", true, "сколько секунд ждать " +
+            "данных из соединения (по умолчанию 60)");
+        cliOptions.addOption(null, "stall-speed", true, "закачка медленнее этой " +
+            "скорости считается зависшей и прерывается, 0 - не следить " +
+            "(по умолчанию 1k)");
+        cliOptions.addOption(null, "stall-time", true, "за сколько секунд " +
+            "оценивается скорость для --stall-speed (по умолчанию 30)");
+        cliOptions.addOption(null, "timeout-retries", true, "сколько раз " +
+            "повторять закачку, прерванную по таймауту (по умолчанию 2)");
+        cliOptions.addOption(null, "retries", true, "сколько раз повторять " +
+            "закачку после временной ошибки: 408, 429, 5xx или обрыва " +
+            "соединения (по умолчанию 3)");
+        cliOptions.addOption(null, "retry-delay", true, "задержка перед первым " +
+            "повтором в миллисекундах, каждый следующий ждет примерно вдвое " +
+            "дольше (по умолчанию 1000)");
+        cliOptions.addOption(null, "deadline", true, "общий срок работы в " +
+            "секундах, после которого все закачки прерываются");
         cliOptions.addOption("f", true, "путь к файлу со списком ссылок");
+        cliOptions.addOption(null, "inbox", true, "режим службы: вместо -f " +
+            "ждать файлы со ссылками в этой папке и качать их, пока программу " +
+            "не остановят");
         cliOptions.addOption("o", true, "имя папки, куда складывать скачанные" +
             " файлы");
         return cliOptions;
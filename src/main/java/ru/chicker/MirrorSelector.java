@@ -0,0 +1,134 @@
+package ru.chicker;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выбирает, с какого зеркала качать файл.
+ * <p>
+ * Для каждого хоста помнится скорость прошлых закачек с него (скользящее
+ * среднее, время ожидания ограничителя и диска не учитывается) и время последнего
+ * отказа. Из зеркал ссылки выбирается самое быстрое; хост, с которого еще
+ * ничего не качали, пробуется раньше известных, чтобы узнать его скорость,
+ * а отказавший в последнюю минуту - только если других зеркал не осталось.
+ */
+public class MirrorSelector {
+    // вес последней закачки в средней скорости хоста
+    private static final double SMOOTHING = 0.3;
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // по более коротким закачкам скорость не оценить: в них почти все
+    // время уходит на соединение и заголовки
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024;
+
+    private final Map<String, HostStats> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param excluded зеркала, которые не нужно предлагать; если исключены
+     *                 все, возвращается основная ссылка
+     */
+    public String choose(DownloadLinkInfo linkInfo, Set<String> excluded) {
+        List<String> mirrors = linkInfo.getMirrors();
+        if (mirrors.size() == 1) {
+            return mirrors.get(0);
+        }
+        long nowNanos = System.nanoTime();
+        String best = null;
+        double bestScore = 0;
+        for (String mirror : mirrors) {
+            if (excluded.contains(mirror)) {
+                continue;
+            }
+            double score = score(mirror, nowNanos);
+            if (best == null || score > bestScore) {
+                best = mirror;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : mirrors.get(0);
+    }
+
+    /**
+     * Выбирает зеркало для задачи, которую загрузчик получил от планировщика,
+     * и переносит занятое ею соединение на хост этого зеркала: в очередь
+     * задача ставится по основной ссылке, а ограничение на число соединений
+     * с хостом должно действовать там, куда пойдут запросы.
+     *
+     * @return задачу с выбранным зеркалом или {@code null}, если у хоста
+     * зеркала нет свободных соединений; тогда соединение освобождено, а
+     * задача ждет этот хост в {@code retryQueue}
+     */
+    public DownloadTask assign(DownloadTask task, TaskScheduler scheduler,
+                               RetryQueue retryQueue) {
+        if (task.getMirror() != null) {
+            // соединение с хостом зеркала уже занято, когда задачу брали из
+            // очереди повторов
+            return task;
+        }
+        DownloadTask assigned = task.withMirror(choose(task.getLinkInfo(),
+            task.getFailedMirrors()));
+        if (HostFairTaskScheduler.hostName(assigned)
+            .equals(HostFairTaskScheduler.hostName(task))) {
+            return assigned;
+        }
+        if (!scheduler.transfer(task, assigned)) {
+            scheduler.release(task);
+            retryQueue.add(assigned, 0);
+            return null;
+        }
+        return assigned;
+    }
+
+    /**
+     * Закачка с зеркала завершилась успешно.
+     *
+     * @param activeNanos время закачки без ожидания ограничителя скорости и
+     *                    диска
+     */
+    public void onSuccess(String mirror, long bytes, long activeNanos) {
+        HostStats stats = stats(mirror);
+        synchronized (stats) {
+            stats.failedAtNanos = 0;
+            if (bytes >= MIN_SAMPLE_BYTES && activeNanos > 0) {
+                double speed = bytes * (double) TimeUnit.SECONDS.toNanos(1) / activeNanos;
+                stats.speed = stats.speed == 0 ? speed
+                    : SMOOTHING * speed + (1 - SMOOTHING) * stats.speed;
+            }
+        }
+    }
+
+    public void onFailure(String mirror) {
+        HostStats stats = stats(mirror);
+        synchronized (stats) {
+            // 0 означает, что отказа не было
+            stats.failedAtNanos = System.nanoTime() | 1;
+        }
+    }
+
+    private double score(String mirror, long nowNanos) {
+        HostStats stats = hosts.get(HostFairTaskScheduler.hostName(mirror));
+        if (stats == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        synchronized (stats) {
+            if (stats.failedAtNanos != 0
+                && nowNanos - stats.failedAtNanos < FAILURE_PENALTY_NANOS) {
+                return -1;
+            }
+            return stats.speed == 0 ? Double.POSITIVE_INFINITY : stats.speed;
+        }
+    }
+
+    private HostStats stats(String mirror) {
+        return hosts.computeIfAbsent(HostFairTaskScheduler.hostName(mirror),
+            host -> new HostStats());
+    }
+
+    private static final class HostStats {
+        // байт в секунду, 0 - еще не измерена
+        private double speed;
+        private long failedAtNanos;
+    }
+}
@@ -0,0 +1,128 @@
+package ru.chicker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Классы приоритета ссылок в порядке убывания приоритета, каждый со своим
+ * весом.
+ * <p>
+ * Задачи более высокого класса начинаются раньше (см.
+ * {@link PriorityTaskScheduler}), а общая полоса делится между классами,
+ * у которых идут закачки, пропорционально весам (см. {@link BandwidthShares}).
+ * Ссылки без класса относятся к классу
+ * {@value DownloadLinkInfo#DEFAULT_PRIORITY_CLASS}; если его нет в списке, он
+ * добавляется последним с весом 1.
+ */
+public class PriorityClasses {
+    private static final Logger log = LoggerFactory.getLogger(PriorityClasses.class);
+
+    private final List<String> names;
+    private final int[] weights;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    // о каждом неизвестном классе предупреждаем один раз
+    private final Set<String> unknown = ConcurrentHashMap.newKeySet();
+
+    private PriorityClasses(List<String> names, List<Integer> weights) {
+        this.names = Collections.unmodifiableList(names);
+        this.weights = weights.stream().mapToInt(Integer::intValue).toArray();
+        for (int i = 0; i < names.size(); i++) {
+            indexes.put(names.get(i), i);
+        }
+    }
+
+    /**
+     * {@code high=4,normal=2,low=1}.
+     */
+    public static PriorityClasses defaults() {
+        return parse("high=4,normal=2,low=1");
+    }
+
+    /**
+     * Разбирает список вида {@code urgent=8,normal=2,bulk=1}: классы в
+     * порядке убывания приоритета и их веса.
+     *
+     * @throws IllegalArgumentException если список задан неверно
+     */
+    public static PriorityClasses parse(String spec) {
+        List<String> names = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (String item : spec.split(",")) {
+            int separator = item.indexOf('=');
+            String name = (separator < 0 ? item : item.substring(0, separator)).trim();
+            if (name.isEmpty() || names.contains(name)) {
+                throw new IllegalArgumentException(name.isEmpty()
+                    ? "Пустое имя класса: " + spec
+                    : "Класс указан дважды: " + name);
+            }
+            int weight = 1;
+            if (separator >= 0) {
+                try {
+                    weight = Integer.parseInt(item.substring(separator + 1).trim());
+                } catch (NumberFormatException e) {
+                    weight = 0;
+                }
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("Вес класса " + name +
+                        " должен быть целым положительным числом: " + item);
+                }
+            }
+            names.add(name);
+            weights.add(weight);
+        }
+        if (!names.contains(DownloadLinkInfo.DEFAULT_PRIORITY_CLASS)) {
+            names.add(DownloadLinkInfo.DEFAULT_PRIORITY_CLASS);
+            weights.add(1);
+        }
+        return new PriorityClasses(names, weights);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    public int getWeight(int index) {
+        return weights[index];
+    }
+
+    /**
+     * Номер класса ссылки, 0 - самый высокий. Ссылка с неизвестным классом
+     * относится к классу по умолчанию.
+     */
+    public int indexOf(DownloadLinkInfo linkInfo) {
+        Integer index = indexes.get(linkInfo.getPriorityClass());
+        if (index == null) {
+            if (unknown.add(linkInfo.getPriorityClass())) {
+                log.warn("Неизвестный класс {} у файла {}, качаю как {}",
+                    linkInfo.getPriorityClass(), linkInfo.getFileName(),
+                    DownloadLinkInfo.DEFAULT_PRIORITY_CLASS);
+            }
+            index = indexes.get(DownloadLinkInfo.DEFAULT_PRIORITY_CLASS);
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(names.get(i)).append('=').append(weights[i]);
+        }
+        return result.toString();
+    }
+}
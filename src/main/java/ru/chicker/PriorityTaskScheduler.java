@@ -0,0 +1,199 @@
+package ru.chicker;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Планировщик с отдельным планировщиком на каждый класс приоритета (см.
+ * {@link PriorityClasses}).
+ * <p>
+ * Задачи более высокого класса выдаются раньше, но класс, у которого есть
+ * ожидающие задачи и не идет ни одной закачки, получает первую свободную
+ * полосу раньше более высоких: иначе длинный список срочных ссылок
+ * надолго остановил бы все остальные, и делить полосу по весам было бы не
+ * между кем. Внутри класса задачи выдает его собственный планировщик
+ * (по порядку или по кругу хостов).
+ * <p>
+ * Общее число ожидающих задач ограничивает этот планировщик; планировщики
+ * классов должны быть неограниченными.
+ */
+public class PriorityTaskScheduler implements TaskScheduler {
+    private final PriorityClasses classes;
+    private final List<TaskScheduler> lanes;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition available = lock.newCondition();
+
+    // сколько задач каждого класса сейчас качается
+    private final int[] running;
+    private int size;
+    private boolean closed;
+
+    /**
+     * @param lanes планировщики классов в порядке {@code classes}
+     */
+    public PriorityTaskScheduler(PriorityClasses classes, List<TaskScheduler> lanes,
+                                 int capacity) {
+        if (lanes.size() != classes.size()) {
+            throw new IllegalArgumentException("lanes must match classes");
+        }
+        this.classes = classes;
+        this.lanes = lanes;
+        this.capacity = capacity;
+        this.running = new int[lanes.size()];
+    }
+
+    @Override
+    public void put(DownloadTask task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == capacity) {
+                notFull.await();
+            }
+            lanes.get(classes.indexOf(task.getLinkInfo())).put(task);
+            size++;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            lanes.forEach(TaskScheduler::close);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DownloadTask poll() {
+        lock.lock();
+        try {
+            return takeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DownloadTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            DownloadTask task;
+            while ((task = takeNext()) == null && !isDrained()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = available.awaitNanos(nanos);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(DownloadTask task) {
+        int lane = classes.indexOf(task.getLinkInfo());
+        lock.lock();
+        try {
+            if (!lanes.get(lane).tryAcquire(task)) {
+                return false;
+            }
+            running[lane]++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release(DownloadTask task) {
+        int lane = classes.indexOf(task.getLinkInfo());
+        lock.lock();
+        try {
+            lanes.get(lane).release(task);
+            running[lane]--;
+            // освободилось соединение или класс остался без закачек
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean transfer(DownloadTask from, DownloadTask to) {
+        // класс у обеих задач один, число закачек класса не меняется
+        int lane = classes.indexOf(from.getLinkInfo());
+        lock.lock();
+        try {
+            if (!lanes.get(lane).transfer(from, to)) {
+                return false;
+            }
+            available.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return closed && size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Сначала класс, которому не досталось ни одной закачки, затем строго
+    // по приоритету
+    private DownloadTask takeNext() {
+        for (int lane = 0; lane < lanes.size(); lane++) {
+            if (running[lane] == 0 && lanes.get(lane).size() > 0) {
+                DownloadTask task = take(lane);
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+        for (int lane = 0; lane < lanes.size(); lane++) {
+            DownloadTask task = take(lane);
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private DownloadTask take(int lane) {
+        DownloadTask task = lanes.get(lane).poll();
+        if (task != null) {
+            running[lane]++;
+            size--;
+            notFull.signal();
+        }
+        return task;
+    }
+}
@@ -0,0 +1,80 @@
+package ru.chicker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Общий для всех загрузчиков ограничитель скорости по алгоритму "token bucket".
+ * <p>
+ * Ведро пополняется непрерывно (с точностью до наносекунд) со скоростью
+ * {@code bytesPerSecond} и вмещает не более {@code burstSize} байт. Поскольку
+ * ведро одно на весь процесс, полоса простаивающих загрузчиков автоматически
+ * достается активным.
+ */
+public class RateLimiter {
+    private static final long NANOS_IN_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private final long burstSize;
+
+    // может уходить в минус: это "долг", который выплачивают следующие вызовы
+    private double availableBytes;
+    private long lastRefillNanos;
+
+    public RateLimiter(long bytesPerSecond, long burstSize) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+        if (burstSize <= 0) {
+            throw new IllegalArgumentException("burstSize must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstSize = burstSize;
+        this.availableBytes = burstSize;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getBurstSize() {
+        return burstSize;
+    }
+
+    /**
+     * Списывает {@code bytes} из ведра и засыпает на время, необходимое для
+     * того, чтобы суммарная скорость не превысила заданную.
+     *
+     * @return сколько наносекунд пришлось ждать
+     */
+    public long acquire(long bytes) throws InterruptedException {
+        long waitNanos = reserve(bytes);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return Math.max(0, waitNanos);
+    }
+
+    /**
+     * Списывает {@code bytes} из ведра, не блокируя вызывающий поток.
+     *
+     * @return сколько наносекунд нужно подождать, прежде чем продолжать
+     */
+    public synchronized long reserve(long bytes) {
+        refill(System.nanoTime());
+        availableBytes -= bytes;
+        if (availableBytes >= 0) {
+            return 0;
+        }
+        return (long) (-availableBytes * NANOS_IN_SECOND / bytesPerSecond);
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefillNanos;
+        if (elapsed > 0) {
+            availableBytes = Math.min(burstSize,
+                availableBytes + (double) elapsed * bytesPerSecond / NANOS_IN_SECOND);
+            lastRefillNanos = nowNanos;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.chicker;
+
+import javaslang.control.Either;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Раздает события закачки всем подписчикам. Ошибка в одном подписчике
+ * пишется в журнал и не мешает ни остальным подписчикам, ни загрузчику.
+ */
+public class ResultPublisher implements DownloadListener {
+    private final Logger log = LoggerFactory.getLogger(ResultPublisher.class);
+
+    private final List<DownloadListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void subscribe(DownloadListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onStarted(DownloadLinkInfo linkInfo) {
+        for (DownloadListener listener : listeners) {
+            try {
+                listener.onStarted(linkInfo);
+            } catch (RuntimeException e) {
+                log.warn("Ошибка подписчика {}: {}", listener, e.getLocalizedMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onFinished(Either<DownlodError, DownloadSuccess> result) {
+        for (DownloadListener listener : listeners) {
+            try {
+                listener.onFinished(result);
+            } catch (RuntimeException e) {
+                log.warn("Ошибка подписчика {}: {}", listener, e.getLocalizedMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        for (DownloadListener listener : listeners) {
+            try {
+                listener.onCompleted();
+            } catch (RuntimeException e) {
+                log.warn("Ошибка подписчика {}: {}", listener, e.getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.chicker;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.TruncatedChunkException;
+import ru.chicker.exception.ChecksumMismatchException;
+import ru.chicker.exception.DownloadTimeoutException;
+import ru.chicker.exception.HttpStatusException;
+
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Решает, стоит ли повторить неудавшуюся закачку и через сколько.
+ * <ul>
+ * <li>прерванная по таймауту или зависшая закачка повторяется сразу: новое
+ * соединение, скорее всего, будет работать;</li>
+ * <li>временные отказы сервера (408, 429, 500, 502, 503, 504) и обрывы
+ * соединения повторяются с экспоненциально растущей задержкой со случайной
+ * добавкой, чтобы загрузчики не приходили к перегруженному серверу
+ * одновременно; если сервер прислал {@code Retry-After}, ждем столько,
+ * сколько он просит;</li>
+ * <li>остальные ошибки (404, неизвестный хост, несовпадение контрольной
+ * суммы, ошибки диска) повторять бессмысленно.</li>
+ * </ul>
+ * Сама задержка выдерживается в {@link RetryQueue}, загрузчик тем временем
+ * берет другие задачи.
+ */
+public class RetryPolicy {
+    private static final long MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final int maxRetries;
+    private final int maxTimeoutRetries;
+    private final long baseDelayMillis;
+
+    public RetryPolicy(DownloadSettings settings) {
+        this.maxRetries = settings.getRetries();
+        this.maxTimeoutRetries = settings.getTimeoutRetries();
+        this.baseDelayMillis = settings.getRetryDelayMillis();
+    }
+
+    /**
+     * @param task  задача, попытка которой завершилась ошибкой
+     * @param error ошибка после {@link TransferWatchdog.Watch#asTimeout(Throwable)}
+     * @return задержка перед следующей попыткой в миллисекундах или -1, если
+     * повторять не нужно
+     */
+    public long retryDelayMillis(DownloadTask task, Throwable error) {
+        if (error instanceof DownloadTimeoutException) {
+            boolean deadline = ((DownloadTimeoutException) error).getReason()
+                == DownloadTimeoutException.Reason.DEADLINE;
+            return !deadline && task.getAttempt() <= maxTimeoutRetries ? 0 : -1;
+        }
+        if (!isTransient(error) || task.getAttempt() > maxRetries) {
+            return -1;
+        }
+        if (error instanceof HttpStatusException
+            && ((HttpStatusException) error).getRetryAfterMillis() >= 0) {
+            return Math.min(MAX_DELAY_MS, ((HttpStatusException) error).getRetryAfterMillis());
+        }
+        return backoffMillis(task.getAttempt());
+    }
+
+    /**
+     * Стоит ли после такой ошибки сразу попробовать другое зеркало: помимо
+     * временных ошибок, на другом зеркале может найтись файл, которого нет
+     * на этом (404), или неиспорченная копия файла.
+     */
+    public boolean canFailOver(Throwable error) {
+        if (error instanceof DownloadTimeoutException) {
+            return ((DownloadTimeoutException) error).getReason()
+                != DownloadTimeoutException.Reason.DEADLINE;
+        }
+        return error instanceof HttpStatusException
+            || error instanceof ChecksumMismatchException
+            || error instanceof UnknownHostException
+            || isTransient(error);
+    }
+
+    /**
+     * Сколько всего попыток может получить закачка с такой ошибкой.
+     */
+    public int getMaxAttempts(Throwable error) {
+        return (error instanceof DownloadTimeoutException ? maxTimeoutRetries
+            : maxRetries) + 1;
+    }
+
+    // После n-й попытки ждем от половины до целого base * 2^(n-1)
+    private long backoffMillis(int attempt) {
+        long delay = Math.min(MAX_DELAY_MS,
+            baseDelayMillis << Math.min(attempt - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static boolean isTransient(Throwable error) {
+        if (error instanceof HttpStatusException) {
+            switch (((HttpStatusException) error).getStatusCode()) {
+                case 408:
+                case 429:
+                case 500:
+                case 502:
+                case 503:
+                case 504:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        // сброс соединения, отказ в соединении, ответ, оборванный на середине
+        return error instanceof SocketException
+            || error instanceof NoHttpResponseException
+            || error instanceof ConnectionClosedException
+            || error instanceof TruncatedChunkException;
+    }
+}
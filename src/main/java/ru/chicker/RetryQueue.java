@@ -0,0 +1,80 @@
+package ru.chicker;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задачи, которые нужно попробовать выполнить еще раз, например закачки,
+ * прерванные из-за зависшего сервера.
+ * <p>
+ * Задача становится доступной через заданную задержку. Загрузчики берут
+ * такие задачи раньше новых, но так же, как и новые, только если
+ * планировщик разрешает открыть еще одно соединение с хостом.
+ */
+public class RetryQueue {
+    private final DelayQueue<DelayedTask> tasks = new DelayQueue<>();
+
+    public void add(DownloadTask task, long delayMillis) {
+        tasks.add(new DelayedTask(task, System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+    }
+
+    /**
+     * @return задачу, время которой пришло и для которой планировщик
+     * разрешил открыть соединение, или {@code null}
+     */
+    public DownloadTask poll(TaskScheduler scheduler) {
+        for (DelayedTask delayed : tasks) {
+            if (delayed.getDelay(TimeUnit.NANOSECONDS) > 0
+                || !scheduler.tryAcquire(delayed.task)) {
+                continue;
+            }
+            if (tasks.remove(delayed)) {
+                return delayed.task;
+            }
+            // задачу успел забрать другой загрузчик
+            scheduler.release(delayed.task);
+        }
+        return null;
+    }
+
+    /**
+     * Забирает любую задачу, не дожидаясь ее времени.
+     */
+    public DownloadTask pollAny() {
+        DelayedTask delayed = tasks.peek();
+        while (delayed != null && !tasks.remove(delayed)) {
+            delayed = tasks.peek();
+        }
+        return delayed != null ? delayed.task : null;
+    }
+
+    public boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    public int size() {
+        return tasks.size();
+    }
+
+    private static final class DelayedTask implements Delayed {
+        private final DownloadTask task;
+        private final long readyNanos;
+
+        DelayedTask(DownloadTask task, long readyNanos) {
+            this.task = task;
+            this.readyNanos = readyNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(readyNanos, ((DelayedTask) other).readyNanos);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.chicker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Общий для всех загрузчиков список файлов, которые качаются по частям.
+ * <p>
+ * Загрузчик сначала берет еще не начатые сегменты, затем обычные задачи из
+ * очереди, а когда очередь пуста - отбирает половину самого большого
+ * оставшегося сегмента у другого загрузчика.
+ */
+public class SegmentRegistry {
+    private final long minSegmentSize;
+    private final Queue<DownloadTask> pendingSegments = new ConcurrentLinkedQueue<>();
+    private final Queue<SegmentedFile> activeFiles = new ConcurrentLinkedQueue<>();
+
+    public SegmentRegistry(long minSegmentSize) {
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    void register(SegmentedFile file, Iterable<FileSegment> pending) {
+        activeFiles.add(file);
+        for (FileSegment segment : pending) {
+            pendingSegments.add(new DownloadTask(segment));
+        }
+    }
+
+    /**
+     * @return не начатый сегмент, для которого планировщик разрешил открыть
+     * соединение, или {@code null}
+     */
+    DownloadTask pollPending(TaskScheduler scheduler) {
+        for (DownloadTask task : pendingSegments) {
+            if (task.getSegment().getFile().isFinished()) {
+                pendingSegments.remove(task);
+            } else if (scheduler.tryAcquire(task)) {
+                if (pendingSegments.remove(task)) {
+                    return task;
+                }
+                // сегмент успел забрать другой загрузчик
+                scheduler.release(task);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Прерывает файлы, которые так и не докачались, например, когда истек
+     * общий срок работы и загрузчики остановились.
+     *
+     * @return файлы, о прерывании которых еще никто не сообщил
+     */
+    List<SegmentedFile> failUnfinished() {
+        List<SegmentedFile> failed = new ArrayList<>();
+        for (SegmentedFile file : activeFiles) {
+            if (file.fail()) {
+                failed.add(file);
+            }
+        }
+        activeFiles.clear();
+        pendingSegments.clear();
+        return failed;
+    }
+
+    DownloadTask steal(TaskScheduler scheduler) {
+        SegmentedFile victim = null;
+        long victimRemaining = 0;
+
+        for (SegmentedFile file : activeFiles) {
+            if (file.isFinished()) {
+                activeFiles.remove(file);
+                continue;
+            }
+            FileSegment largest = file.largestSegment();
+            if (largest != null && largest.getRemaining() > victimRemaining) {
+                victim = file;
+                victimRemaining = largest.getRemaining();
+            }
+        }
+
+        if (victim == null) {
+            return null;
+        }
+        DownloadTask probe = new DownloadTask(victim.largestSegment());
+        if (!scheduler.tryAcquire(probe)) {
+            return null;
+        }
+        FileSegment stolen = victim.steal(minSegmentSize);
+        if (stolen == null) {
+            scheduler.release(probe);
+            return null;
+        }
+        return new DownloadTask(stolen);
+    }
+}
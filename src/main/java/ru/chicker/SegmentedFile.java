@@ -0,0 +1,394 @@
+package ru.chicker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.checksum.ChecksumAlgorithm;
+import ru.chicker.checksum.CombinableHasher;
+import ru.chicker.checksum.ContentHasher;
+import ru.chicker.exception.ChecksumMismatchException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Файл, который одновременно качают несколько загрузчиков, каждый свой
+ * сегмент. Все пишут в один заранее выделенный временный файл по своим
+ * смещениям через один {@link DiskWriter.Target}; тот, чей буфер оказался
+ * на диске последним, переименовывает файл в итоговый.
+ * <p>
+ * Если сервер прислал валидаторы ответа, карта сегментов периодически
+ * сохраняется в {@link DownloadJournal}, а при ошибке временный файл не
+ * удаляется, чтобы его можно было докачать при следующем запуске.
+ * <p>
+ * Контрольная сумма файла собирается из сумм, которые сегменты считали на
+ * лету. С диска перечитываются только байты, скачанные прерванным запуском,
+ * а для SHA-256, суммы которого не склеиваются, - все, кроме первого
+ * сегмента.
+ */
+public class SegmentedFile {
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentedFile.class);
+
+    private final DownloadLinkInfo linkInfo;
+    private final Path outputFilePath;
+    private final Path tempFilePath;
+    private final long length;
+    private final FileChannel channel;
+    private final DiskWriter.Target output;
+    private final DownloadJournal journal;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private final List<FileSegment> segments = new CopyOnWriteArrayList<>();
+    private final AtomicLong remainingBytes;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    // наибольший номер попытки среди запросов частей файла
+    private final AtomicInteger attempts = new AtomicInteger(1);
+    private String checksum;
+
+    private SegmentedFile(DownloadLinkInfo linkInfo, Path outputFilePath,
+                          Path tempFilePath, long length, FileChannel channel,
+                          DiskWriter diskWriter, DownloadJournal journal,
+                          ChecksumAlgorithm checksumAlgorithm) {
+        this.linkInfo = linkInfo;
+        this.outputFilePath = outputFilePath;
+        this.tempFilePath = tempFilePath;
+        this.length = length;
+        this.channel = channel;
+        this.output = diskWriter.open(channel);
+        this.journal = journal;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.remainingBytes = new AtomicLong(length);
+    }
+
+    /**
+     * @param journal           журнал закачки или {@code null}, если докачка
+     *                          невозможна
+     * @param checksumAlgorithm какую контрольную сумму считать или
+     *                          {@code null}
+     */
+    public static SegmentedFile create(DownloadLinkInfo linkInfo,
+                                       Path outputFilePath, Path tempFilePath,
+                                       long length, DiskWriter diskWriter,
+                                       DownloadJournal journal,
+                                       ChecksumAlgorithm checksumAlgorithm)
+    throws IOException {
+        DiskWriter.preallocate(tempFilePath, length);
+        FileChannel channel = FileChannel.open(tempFilePath, StandardOpenOption.WRITE);
+        return new SegmentedFile(linkInfo, outputFilePath, tempFilePath, length,
+            channel, diskWriter, journal, checksumAlgorithm);
+    }
+
+    /**
+     * Восстанавливает прерванную закачку по журналу: уже скачанные байты
+     * временного файла сохраняются, сегменты продолжаются с записанных позиций.
+     */
+    public static SegmentedFile resume(DownloadLinkInfo linkInfo,
+                                       Path outputFilePath, Path tempFilePath,
+                                       DiskWriter diskWriter, DownloadJournal journal,
+                                       ChecksumAlgorithm checksumAlgorithm)
+    throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(tempFilePath.toFile(), "rw")) {
+            file.setLength(journal.getLength());
+        }
+        FileChannel channel = FileChannel.open(tempFilePath, StandardOpenOption.WRITE);
+        SegmentedFile result = new SegmentedFile(linkInfo, outputFilePath,
+            tempFilePath, journal.getLength(), channel, diskWriter, journal,
+            checksumAlgorithm);
+
+        long remaining = 0;
+        for (DownloadJournal.Range range : journal.getRanges()) {
+            if (range.getRemaining() > 0) {
+                result.segments.add(new FileSegment(result, range.getStart(),
+                    range.getPosition(), range.getEnd()));
+                remaining += range.getRemaining();
+            }
+        }
+        result.remainingBytes.set(remaining);
+        return result;
+    }
+
+    public DownloadLinkInfo getLinkInfo() {
+        return linkInfo;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Валидатор для заголовка {@code If-Range} или {@code null}, если журнал
+     * для файла не ведется.
+     */
+    public String getValidator() {
+        return journal != null ? journal.getValidator() : null;
+    }
+
+    /**
+     * Запись для манифеста о докачанном файле или {@code null}, если
+     * валидаторов ответа нет.
+     */
+    DownloadManifest.Entry manifestEntry() {
+        if (journal == null) {
+            return null;
+        }
+        return new DownloadManifest.Entry(linkInfo.getHttpLink(), journal.getEtag(),
+            journal.getLastModified(), length,
+            checksum != null ? checksumAlgorithm.getName() + ":" + checksum : null);
+    }
+
+    /**
+     * Сумму на лету считают все сегменты, если суммы склеиваются, и только
+     * сегмент с самого начала файла, если нет.
+     */
+    ContentHasher newSegmentHasher(long start, long position) {
+        if (checksumAlgorithm == null) {
+            return null;
+        }
+        CombinableHasher hasher = checksumAlgorithm.newCombinableHasher();
+        if (hasher != null) {
+            return hasher;
+        }
+        return start == 0 && position == 0 ? checksumAlgorithm.newHasher() : null;
+    }
+
+    public boolean isFinished() {
+        return finished.get();
+    }
+
+    /**
+     * Сегменты файла; сразу после {@link #resume} - только недокачанные,
+     * в порядке возрастания позиции.
+     */
+    List<FileSegment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    /**
+     * Делит файл на {@code count} примерно равных сегментов.
+     */
+    synchronized List<FileSegment> split(int count) {
+        List<FileSegment> result = new ArrayList<>(count);
+        long segmentSize = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            long end = i == count - 1 ? length : start + segmentSize;
+            result.add(new FileSegment(this, start, end));
+        }
+        segments.addAll(result);
+        return result;
+    }
+
+    /**
+     * Отдает половину самого большого из недокачанных сегментов.
+     */
+    synchronized FileSegment steal(long minSegmentSize) {
+        FileSegment largest = largestSegment();
+        if (largest == null) {
+            return null;
+        }
+        FileSegment stolen = largest.split(minSegmentSize);
+        if (stolen != null) {
+            segments.add(stolen);
+        }
+        return stolen;
+    }
+
+    FileSegment largestSegment() {
+        FileSegment largest = null;
+        long largestRemaining = 0;
+        for (FileSegment segment : segments) {
+            long remaining = segment.getRemaining();
+            if (remaining > largestRemaining) {
+                largest = segment;
+                largestRemaining = remaining;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Отдает буфер писателю, не дожидаясь записи (см.
+     * {@link DiskWriter.Target#write}).
+     *
+     * @return номер записи для {@link #awaitWritten(long)}
+     */
+    long write(ByteBuffer buffer, long position, Runnable onWritten) throws IOException {
+        return output.write(buffer, position, onWritten);
+    }
+
+    void awaitWritten(long ticket) throws IOException, InterruptedException {
+        output.await(ticket);
+    }
+
+    /**
+     * Вызывается писателем после записи байт, в том же порядке.
+     *
+     * @return {@code true}, если записанные байты были последними в файле
+     */
+    boolean onBytesWritten(long bytes) {
+        boolean completed = remainingBytes.addAndGet(-bytes) == 0;
+        if (journal != null && !completed) {
+            journal.checkpoint(this::snapshot);
+        }
+        return completed;
+    }
+
+    // под блокировкой файла, чтобы отрезаемый при краже сегмент не пропал
+    // из журнала и не попал в него дважды
+    private synchronized List<DownloadJournal.Range> snapshot() {
+        List<DownloadJournal.Range> result = new ArrayList<>(segments.size());
+        for (FileSegment segment : segments) {
+            result.add(segment.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Проверяет и переименовывает готовый файл.
+     *
+     * @return {@code false}, если файл уже завершил другой загрузчик
+     */
+    boolean complete() throws IOException, InterruptedException {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+        output.flush();
+        channel.close();
+        if (checksumAlgorithm != null) {
+            checksum = computeChecksum();
+            if (linkInfo.getExpectedChecksum() != null) {
+                try {
+                    linkInfo.getExpectedChecksum().verify(linkInfo.getFileName(),
+                        checksum);
+                } catch (ChecksumMismatchException e) {
+                    // докачивать испорченный файл бессмысленно
+                    Files.deleteIfExists(tempFilePath);
+                    if (journal != null) {
+                        journal.delete();
+                    }
+                    throw e;
+                }
+            }
+        }
+        Files.move(tempFilePath, outputFilePath,
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (journal != null) {
+            journal.delete();
+        }
+        return true;
+    }
+
+    // Идем по сегментам в порядке смещения: суммы, посчитанные на лету,
+    // приклеиваются, а байты, для которых суммы нет, дочитываются с диска.
+    // Если суммы не склеиваются, на лету посчитана только сумма сегмента с
+    // начала файла, и остаток файла дочитывается к ней
+    private String computeChecksum() throws IOException {
+        List<FileSegment> ordered = new ArrayList<>(segments);
+        ordered.sort(Comparator.comparingLong(FileSegment::getStart));
+
+        CombinableHasher combined = checksumAlgorithm.newCombinableHasher();
+        ContentHasher total = combined;
+        long position = 0;
+        long bytesReread = 0;
+        try (FileChannel reader = FileChannel.open(tempFilePath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            for (FileSegment segment : ordered) {
+                ContentHasher hasher = segment.getHasher();
+                if (hasher == null) {
+                    continue;
+                }
+                if (combined == null) {
+                    // единственный сегмент с суммой начинается с нуля
+                    total = hasher;
+                } else {
+                    bytesReread += hashFromDisk(combined, reader, buffer, position,
+                        segment.getHashedFrom());
+                    // сегменты получают такую сумму из newSegmentHasher
+                    combined.append((CombinableHasher) hasher,
+                        segment.getEnd() - segment.getHashedFrom());
+                }
+                position = segment.getEnd();
+            }
+            if (total == null) {
+                total = checksumAlgorithm.newHasher();
+            }
+            bytesReread += hashFromDisk(total, reader, buffer, position, length);
+        }
+        if (bytesReread > 0) {
+            log.debug("Для контрольной суммы {} перечитано с диска {} байт из {}",
+                linkInfo.getFileName(), bytesReread, length);
+        }
+        return total.toHex();
+    }
+
+    private static long hashFromDisk(ContentHasher hasher, FileChannel reader,
+                                     ByteBuffer buffer, long from, long to)
+    throws IOException {
+        long position = from;
+        while (position < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int read = reader.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Временный файл короче ожидаемого");
+            }
+            buffer.flip();
+            hasher.update(buffer);
+            position += read;
+        }
+        return to - from;
+    }
+
+    // Запоминает номер попытки, с которой качается одна из частей файла
+    void noteAttempt(int attempt) {
+        attempts.accumulateAndGet(attempt, Math::max);
+    }
+
+    /**
+     * Сколько попыток понадобилось самой невезучей части файла.
+     */
+    public int getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return {@code true}, если это первая ошибка при закачке файла и о ней
+     * должен сообщить вызывающий загрузчик
+     */
+    boolean fail() {
+        if (finished.compareAndSet(false, true)) {
+            try {
+                channel.close();
+                if (journal != null) {
+                    // оставляем временный файл для докачки при следующем запуске
+                    journal.saveQuietly(snapshot());
+                } else {
+                    Files.deleteIfExists(tempFilePath);
+                }
+            } catch (IOException ignored) {
+                // файл все равно будет перезаписан при следующей закачке
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Файл [%s] размером [%d] байт из %d сегментов",
+            linkInfo.getFileName(), length, segments.size());
+    }
+}
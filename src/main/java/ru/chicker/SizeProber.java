@@ -0,0 +1,125 @@
+package ru.chicker;
+
+import javaslang.control.Option;
+import javaslang.control.Try;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Узнает размеры файлов HEAD-запросами и упорядочивает задачи по размеру.
+ * <p>
+ * Если сначала качать самые большие файлы (LPT), к концу остаются мелкие и
+ * загрузчики освобождаются почти одновременно, а не ждут, пока один из них
+ * докачает огромный файл, взятый последним. Файлы, размер которых узнать не
+ * удалось, идут после остальных в исходном порядке.
+ */
+public class SizeProber {
+    private static final int PROBE_TIMEOUT_MS = 10_000;
+
+    private final Logger log = LoggerFactory.getLogger(SizeProber.class);
+
+    private final DownloadSettings settings;
+
+    public SizeProber(DownloadSettings settings) {
+        this.settings = settings;
+    }
+
+    public List<DownloadTask> probeAndSort(List<DownloadLinkInfo> links)
+    throws InterruptedException {
+        int parallelism = Math.max(1, Math.min(settings.getNumThreads(), links.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+
+        List<DownloadTask> tasks = new ArrayList<>(links.size());
+        try (CloseableHttpClient httpClient = createHttpClient(parallelism)) {
+            List<CompletableFuture<DownloadTask>> probes = links.stream()
+                .map(linkInfo -> CompletableFuture.supplyAsync(() ->
+                    new DownloadTask(linkInfo, settings.getOutputFolderName(),
+                        probe(httpClient, linkInfo)), executor))
+                .collect(Collectors.toList());
+
+            for (CompletableFuture<DownloadTask> probe : probes) {
+                tasks.add(probe.get());
+            }
+        } catch (ExecutionException e) {
+            // probe() сам перехватывает ошибки запросов
+            throw new IllegalStateException(e.getCause());
+        } catch (IOException e) {
+            log.warn("Не удалось корректно закрыть пул соединений: {}",
+                e.getLocalizedMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // сортировка устойчивая, так что равные и неизвестные размеры
+        // сохраняют порядок файла
+        tasks.sort(comparator());
+        return tasks;
+    }
+
+    private Comparator<DownloadTask> comparator() {
+        Comparator<Long> bySize = settings.getTaskOrder() ==
+            DownloadSettings.TaskOrder.SMALLEST_FIRST
+            ? Comparator.naturalOrder()
+            : Comparator.reverseOrder();
+        return Comparator.comparing(
+            (DownloadTask task) -> task.getContentLength().getOrElse((Long) null),
+            Comparator.nullsLast(bySize));
+    }
+
+    private Option<Long> probe(CloseableHttpClient httpClient, DownloadLinkInfo linkInfo) {
+        Try<Option<Long>> size = Try.of(() -> {
+            try (CloseableHttpResponse response = httpClient.execute(
+                new HttpHead(linkInfo.getHttpLink()))) {
+                Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+                if (response.getStatusLine().getStatusCode() != 200
+                    || contentLength == null) {
+                    return Option.<Long>none();
+                }
+                return Option.of(Long.parseLong(contentLength.getValue()));
+            }
+        });
+
+        size.onFailure(e -> log.warn("Не удалось узнать размер {}: {}",
+            linkInfo.getFileName(), e.getLocalizedMessage()));
+        return size.getOrElse(Option.none());
+    }
+
+    private CloseableHttpClient createHttpClient(int parallelism) {
+        PoolingHttpClientConnectionManager connectionManager =
+            new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(parallelism);
+        connectionManager.setDefaultMaxPerRoute(Math.min(parallelism,
+            settings.getMaxConnectionsPerHost()));
+
+        // зависший сервер не должен задерживать начало всех закачек
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(PROBE_TIMEOUT_MS)
+            .setSocketTimeout(PROBE_TIMEOUT_MS)
+            .build();
+
+        return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            // нужен размер самого файла, а не его сжатого представления
+            .disableContentCompression()
+            .build();
+    }
+}
@@ -0,0 +1,73 @@
+package ru.chicker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Источник задач для загрузчиков.
+ * <p>
+ * Читатель списка ссылок кладет задачи через {@link #put(DownloadTask)} и
+ * вызывает {@link #close()}, когда ссылки закончились. Загрузчик берет задачу
+ * через {@code poll}, а закончив ее, обязательно вызывает
+ * {@link #release(DownloadTask)}: так планировщик может ограничивать число
+ * одновременных соединений, например, с одним хостом.
+ */
+public interface TaskScheduler {
+
+    /**
+     * Добавляет задачу, ожидая, если в планировщике нет места.
+     */
+    void put(DownloadTask task) throws InterruptedException;
+
+    /**
+     * Больше задач не будет.
+     */
+    void close();
+
+    /**
+     * @return задачу, которую можно начать прямо сейчас, или {@code null}
+     */
+    DownloadTask poll();
+
+    /**
+     * То же, что {@link #poll()}, но ждет появления подходящей задачи не
+     * дольше {@code timeout}.
+     */
+    DownloadTask poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Пытается занять место для задачи, полученной не из планировщика
+     * (например, сегмента файла, который качается по частям).
+     *
+     * @return {@code true}, если задачу можно начинать; тогда по ее окончании
+     * нужно вызвать {@link #release(DownloadTask)}
+     */
+    boolean tryAcquire(DownloadTask task);
+
+    /**
+     * Загрузчик закончил задачу, полученную из {@code poll} или
+     * {@link #tryAcquire(DownloadTask)}.
+     */
+    void release(DownloadTask task);
+
+    /**
+     * Переносит место, занятое задачей {@code from}, на ту же закачку
+     * {@code to}, которая пойдет на другой хост (например, на зеркало).
+     * Общее число выполняемых задач при этом не меняется, так что место не
+     * может перехватить другой загрузчик.
+     *
+     * @return {@code true}, если место перенесено и по окончании нужно
+     * вызвать {@link #release(DownloadTask)} для {@code to}; {@code false},
+     * если для {@code to} места нет, тогда {@code from} свое место сохраняет
+     */
+    boolean transfer(DownloadTask from, DownloadTask to);
+
+    /**
+     * @return {@code true}, если планировщик закрыт и все задачи из него взяты
+     */
+    boolean isDrained();
+
+    /**
+     * Количество задач, ожидающих загрузчика.
+     */
+    int size();
+}
@@ -0,0 +1,133 @@
+package ru.chicker;
+
+import javaslang.control.Either;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.exception.DownloadTimeoutException;
+import ru.chicker.metrics.DownloadMetrics;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Каждая закачка занимает поток из пула размером {@code -n}: поток
+ * блокируется на чтении из сокета и при ожидании ограничителя скорости.
+ * Запись на диск выполняют потоки {@link DiskWriter}.
+ */
+public class ThreadPoolDownloadEngine implements DownloadEngine {
+    private static final int BUFFER_SIZE = 64 * 1024; // 64 Kb
+
+    private final Logger log = LoggerFactory.getLogger(ThreadPoolDownloadEngine.class);
+
+    private final DownloadSettings settings;
+    private final BandwidthShares bandwidth;
+    private final DownloadMetrics metrics;
+    private final DownloadManifest manifest;
+    private final TransferWatchdog watchdog;
+    private final RetryQueue retryQueue;
+    private final RetryPolicy retryPolicy;
+    private final MirrorSelector mirrorSelector;
+
+    public ThreadPoolDownloadEngine(DownloadSettings settings, BandwidthShares bandwidth,
+                                    DownloadMetrics metrics, DownloadManifest manifest,
+                                    TransferWatchdog watchdog, RetryQueue retryQueue,
+                                    RetryPolicy retryPolicy,
+                                    MirrorSelector mirrorSelector) {
+        this.settings = settings;
+        this.bandwidth = bandwidth;
+        this.metrics = metrics;
+        this.manifest = manifest;
+        this.watchdog = watchdog;
+        this.retryQueue = retryQueue;
+        this.retryPolicy = retryPolicy;
+        this.mirrorSelector = mirrorSelector;
+    }
+
+    @Override
+    public void run(TaskScheduler scheduler, DownloadListener listener)
+    throws InterruptedException {
+        int numThreads = settings.getNumThreads();
+        // сегмент меньше этого размера дробить дальше нет смысла
+        SegmentRegistry segmentRegistry = new SegmentRegistry(
+            settings.getSegmentThreshold() / settings.getSegmentsPerFile());
+
+        // Загрузчики только читают из сети, а пишут на диск отдельные потоки:
+        // медленный диск задерживает закачки, только когда кончились буферы
+        DiskWriter diskWriter = new DiskWriter(settings.getWriterThreads(),
+            BUFFER_SIZE, settings.getWriteBuffers(), settings.getSyncBytes(), metrics);
+        try (CloseableHttpClient httpClient = createHttpClient()) {
+            ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+            for (int i = 0; i < numThreads; i++) {
+                executorService.submit(new Downloader(scheduler, listener,
+                    segmentRegistry, diskWriter, httpClient, bandwidth, settings,
+                    metrics, manifest, watchdog, retryQueue, retryPolicy,
+                    mirrorSelector));
+            }
+
+            executorService.shutdown();
+            // Зависшие запросы прерывает наблюдатель, а по истечении общего
+            // срока он прерывает все запросы и загрузчики перестают брать
+            // задачи, поэтому пул завершится сам
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+            // загрузчики остановились раньше, чем докачали все части файлов
+            for (SegmentedFile file : segmentRegistry.failUnfinished()) {
+                metrics.fileFinished(file.getLinkInfo().getFileName(), false);
+                IOException error = watchdog.isDeadlineExpired()
+                    ? new DownloadTimeoutException(DownloadTimeoutException.Reason.DEADLINE,
+                        "файл скачан не полностью")
+                    : new IOException("Закачка файла не завершена");
+                listener.onFinished(Either.left(new DownlodError(file.getLinkInfo(), error)));
+            }
+        } catch (IOException e) {
+            log.warn("Не удалось корректно закрыть пул соединений: {}",
+                e.getLocalizedMessage());
+        } finally {
+            closeDiskWriter(diskWriter);
+        }
+    }
+
+    // Писатели дописывают то, что осталось в очередях; ошибка здесь значит,
+    // что часть данных не попала на диск, в отличие от ошибки закрытия
+    // соединений
+    private void closeDiskWriter(DiskWriter diskWriter) throws InterruptedException {
+        try {
+            diskWriter.close();
+        } catch (IOException e) {
+            log.error("{}: {}", e.getLocalizedMessage(), e.getCause().getLocalizedMessage());
+        } catch (InterruptedException e) {
+            log.error("Запись на диск прервана, часть данных могла не попасть в файлы");
+            throw e;
+        }
+    }
+
+    // Один клиент с пулом keep-alive соединений на все загрузчики: соединения
+    // с одним и тем же хостом переиспользуются от файла к файлу. Больше, чем
+    // numThreads соединений одновременно все равно не понадобится
+    private CloseableHttpClient createHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager =
+            new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(settings.getNumThreads());
+        connectionManager.setDefaultMaxPerRoute(Math.min(settings.getNumThreads(),
+            settings.getMaxConnectionsPerHost()));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(settings.getConnectTimeout()))
+            .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(settings.getReadTimeout()))
+            .build();
+
+        // сжатие ответов загрузчик разбирает сам (--compress), чтобы считать
+        // и ограничивать скорость по байтам, пришедшим по сети
+        return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .disableContentCompression()
+            .build();
+    }
+}
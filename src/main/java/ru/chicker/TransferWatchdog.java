@@ -0,0 +1,205 @@
+package ru.chicker;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.chicker.exception.DownloadTimeoutException;
+import ru.chicker.metrics.DownloadMetrics;
+
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ru.chicker.util.ByteUtils.formatBytes;
+
+/**
+ * Следит за идущими закачками и прерывает те, что зависли.
+ * <p>
+ * Таймауты соединения и чтения не спасают от сервера, который присылает
+ * по байту раз в несколько секунд. Поэтому раз в секунду для каждой закачки
+ * проверяется скорость за последние {@link DownloadSettings#getStallTime()}
+ * секунд; время, проведенное в ожидании общего ограничителя скорости, при
+ * этом не учитывается. Отсчет начинается, когда пришли заголовки ответа:
+ * время до них ограничивают таймауты соединения и чтения. Если скорость ниже
+ * {@link DownloadSettings#getStallSpeed()}, запрос прерывается, а загрузчик
+ * освобождается для следующей задачи.
+ * <p>
+ * Когда истекает общий срок работы, прерываются все закачки сразу.
+ */
+public class TransferWatchdog implements AutoCloseable {
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(TransferWatchdog.class);
+
+    private final long minSpeed;
+    private final long stallNanos;
+    private final long deadlineNanos;
+    private final int readTimeout;
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer;
+    private volatile boolean deadlineExpired;
+
+    public TransferWatchdog(DownloadSettings settings) {
+        this.minSpeed = settings.getStallSpeed();
+        this.stallNanos = TimeUnit.SECONDS.toNanos(settings.getStallTime());
+        this.deadlineNanos = settings.getDeadline() > 0
+            ? System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.getDeadline()) : 0;
+        this.readTimeout = settings.getReadTimeout();
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Начинает следить за запросом.
+     *
+     * @param abort прерывает запрос; вызывается из потока наблюдателя
+     */
+    public Watch watch(DownloadMetrics.Transfer transfer, Runnable abort) {
+        Watch watch = new Watch(transfer, abort);
+        watches.add(watch);
+        if (deadlineExpired) {
+            watch.abort(DownloadTimeoutException.Reason.DEADLINE);
+        }
+        return watch;
+    }
+
+    public boolean isDeadlineExpired() {
+        return deadlineExpired;
+    }
+
+    /**
+     * Ошибка для закачки, которая не была начата до истечения срока.
+     */
+    public DownloadTimeoutException notStartedError() {
+        return new DownloadTimeoutException(DownloadTimeoutException.Reason.DEADLINE,
+            "закачка не начата");
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private void check() {
+        try {
+            long nowNanos = System.nanoTime();
+            if (!deadlineExpired && deadlineNanos != 0 && nowNanos - deadlineNanos >= 0) {
+                deadlineExpired = true;
+                log.warn("Истек общий срок работы, прерываю {} закачек", watches.size());
+            }
+            for (Watch watch : watches) {
+                if (deadlineExpired) {
+                    watch.abort(DownloadTimeoutException.Reason.DEADLINE);
+                } else if (minSpeed > 0) {
+                    watch.checkSpeed(nowNanos);
+                }
+            }
+        } catch (RuntimeException e) {
+            // исключение отменило бы все следующие запуски по расписанию
+            log.warn("Ошибка проверки закачек: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Наблюдение за одним запросом; закрывается, когда запрос завершен.
+     */
+    public final class Watch implements AutoCloseable {
+        private final DownloadMetrics.Transfer transfer;
+        private final Runnable abort;
+        // начало текущего окна оценки скорости; первое окно открывается,
+        // когда пришли заголовки ответа
+        private boolean windowStarted;
+        private long windowStartNanos;
+        private long windowStartBytes;
+        private long windowStartPausedNanos;
+        private volatile DownloadTimeoutException timeout;
+
+        private Watch(DownloadMetrics.Transfer transfer, Runnable abort) {
+            this.transfer = transfer;
+            this.abort = abort;
+        }
+
+        private void checkSpeed(long nowNanos) {
+            if (!windowStarted) {
+                // до ответа сервера запрос ограничивают таймауты соединения и чтения
+                if (!transfer.isResponseReceived()) {
+                    return;
+                }
+                windowStarted = true;
+                windowStartNanos = transfer.getResponseNanos();
+                windowStartBytes = 0;
+                windowStartPausedNanos = transfer.getPausedNanos();
+            }
+            long elapsedNanos = nowNanos - windowStartNanos;
+            if (elapsedNanos < stallNanos) {
+                return;
+            }
+            long bytes = transfer.getBytesReceived() - windowStartBytes;
+            long activeNanos = elapsedNanos
+                - (transfer.getPausedNanos() - windowStartPausedNanos);
+            // закачка, которая почти все окно ждала ограничитель или диск, не зависла
+            if (activeNanos >= stallNanos / 2
+                && bytes * (double) TimeUnit.SECONDS.toNanos(1) / activeNanos < minSpeed) {
+                abort(DownloadTimeoutException.Reason.STALL);
+                return;
+            }
+            windowStartNanos = nowNanos;
+            windowStartBytes = transfer.getBytesReceived();
+            windowStartPausedNanos = transfer.getPausedNanos();
+        }
+
+        private void abort(DownloadTimeoutException.Reason reason) {
+            if (timeout != null) {
+                return;
+            }
+            String details = reason == DownloadTimeoutException.Reason.STALL
+                ? String.format("меньше %s/sec за %d с", formatBytes(minSpeed),
+                    TimeUnit.NANOSECONDS.toSeconds(stallNanos))
+                : null;
+            timeout = new DownloadTimeoutException(reason, details);
+            log.warn("Прерываю закачку {}: {}", transfer.getFileName(),
+                timeout.getLocalizedMessage());
+            abort.run();
+        }
+
+        /**
+         * Ошибка из-за прерванного наблюдателем запроса или таймаута сокета
+         * заменяется на {@link DownloadTimeoutException} с понятной причиной,
+         * остальные возвращаются как есть.
+         */
+        public Throwable asTimeout(Throwable error) {
+            if (timeout != null) {
+                return timeout;
+            } else if (error instanceof ConnectTimeoutException) {
+                return new DownloadTimeoutException(
+                    DownloadTimeoutException.Reason.CONNECT, error.getLocalizedMessage());
+            } else if (error instanceof SocketTimeoutException) {
+                return new DownloadTimeoutException(DownloadTimeoutException.Reason.READ,
+                    String.format("нет данных дольше %d с", readTimeout));
+            }
+            return error;
+        }
+
+        /**
+         * @return причина, по которой наблюдатель прервал запрос, или
+         * {@code null}, если не прерывал
+         */
+        public DownloadTimeoutException getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public void close() {
+            watches.remove(this);
+        }
+    }
+}
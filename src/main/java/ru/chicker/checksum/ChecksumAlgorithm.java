@@ -0,0 +1,155 @@
+package ru.chicker.checksum;
+
+import ru.chicker.util.ByteUtils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public enum ChecksumAlgorithm {
+    /**
+     * Надежная защита от подмены и порчи, около сотен мегабайт в секунду на
+     * ядро; суммы частей файла не склеиваются.
+     */
+    SHA256("sha256", 64) {
+        @Override
+        public ContentHasher newHasher() {
+            try {
+                return new DigestHasher(this, MessageDigest.getInstance("SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                // SHA-256 обязана поддерживать любая реализация Java
+                throw new IllegalStateException(e);
+            }
+        }
+    },
+    /**
+     * Дешевая проверка от порчи при передаче; суммы частей склеиваются.
+     */
+    CRC32C("crc32c", 8) {
+        @Override
+        public ContentHasher newHasher() {
+            return newCombinableHasher();
+        }
+
+        @Override
+        public CombinableHasher newCombinableHasher() {
+            return new Crc32cHasher();
+        }
+    };
+
+    private final String name;
+    private final int hexLength;
+
+    ChecksumAlgorithm(String name, int hexLength) {
+        this.name = name;
+        this.hexLength = hexLength;
+    }
+
+    public abstract ContentHasher newHasher();
+
+    /**
+     * @return сумма, которую можно склеивать из сумм частей, или
+     * {@code null}, если алгоритм этого не позволяет
+     */
+    public CombinableHasher newCombinableHasher() {
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Длина суммы в шестнадцатеричной записи.
+     */
+    public int getHexLength() {
+        return hexLength;
+    }
+
+    /**
+     * Можно ли получить сумму файла из сумм его частей.
+     */
+    public boolean isCombinable() {
+        return this == CRC32C;
+    }
+
+    /**
+     * @return {@code null}, если алгоритм с таким именем неизвестен
+     */
+    public static ChecksumAlgorithm byName(String name) {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    private static final class DigestHasher implements ContentHasher {
+        private final ChecksumAlgorithm algorithm;
+        private final MessageDigest digest;
+        private String hex;
+
+        DigestHasher(ChecksumAlgorithm algorithm, MessageDigest digest) {
+            this.algorithm = algorithm;
+            this.digest = digest;
+        }
+
+        @Override
+        public ChecksumAlgorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            buffer.mark();
+            digest.update(buffer);
+            buffer.reset();
+        }
+
+        @Override
+        public String toHex() {
+            if (hex == null) {
+                hex = ByteUtils.toHex(digest.digest());
+            }
+            return hex;
+        }
+    }
+
+    private static final class Crc32cHasher implements CombinableHasher {
+        // сумма уже склеенных диапазонов (-1 - их нет) и сумма байт после них
+        private long base = -1;
+        private final Crc32c tail = new Crc32c();
+        private long tailLength;
+
+        @Override
+        public ChecksumAlgorithm getAlgorithm() {
+            return CRC32C;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            tailLength += buffer.remaining();
+            buffer.mark();
+            tail.update(buffer);
+            buffer.reset();
+        }
+
+        @Override
+        public void append(CombinableHasher next, long nextLength) {
+            base = Crc32c.combine(value(), ((Crc32cHasher) next).value(), nextLength);
+            tail.reset();
+            tailLength = 0;
+        }
+
+        private long value() {
+            return base < 0 ? tail.getValue()
+                : Crc32c.combine(base, tail.getValue(), tailLength);
+        }
+
+        @Override
+        public String toHex() {
+            return String.format("%08x", value());
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ru.chicker.checksum;
+
+/**
+ * Контрольная сумма, которую можно получить из сумм соседних диапазонов,
+ * не перечитывая данные (см. {@link Crc32c#combine(long, long, long)}). Так
+ * считается сумма файла, который качается по частям.
+ */
+public interface CombinableHasher extends ContentHasher {
+    /**
+     * Дописывает к сумме сумму следующего за ней диапазона того же
+     * алгоритма.
+     */
+    void append(CombinableHasher next, long nextLength);
+}
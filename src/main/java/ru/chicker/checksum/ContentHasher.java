@@ -0,0 +1,30 @@
+package ru.chicker.checksum;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Контрольная сумма, которая считается прямо на пути данных от сокета к
+ * диску, без повторного чтения файла. Суммы, которые можно склеивать по
+ * частям, реализуют {@link CombinableHasher}.
+ */
+public interface ContentHasher {
+    ChecksumAlgorithm getAlgorithm();
+
+    /**
+     * Учитывает байты от позиции до предела буфера; позиция буфера не
+     * меняется.
+     */
+    void update(ByteBuffer buffer);
+
+    /**
+     * Итоговая сумма; после вызова сумму больше не обновляют.
+     */
+    String toHex();
+
+    /**
+     * Сумма вместе с названием алгоритма, например {@code crc32c:e3069283}.
+     */
+    default String toTaggedHex() {
+        return getAlgorithm().getName() + ":" + toHex();
+    }
+}
@@ -0,0 +1,167 @@
+package ru.chicker.checksum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (полином Castagnoli), которого нет в Java 8. Считается таблицами
+ * по 8 байт за шаг (slicing-by-8), что в несколько раз быстрее побайтового
+ * варианта и заметно дешевле SHA-256.
+ * <p>
+ * В отличие от криптографических хешей, суммы соседних диапазонов можно
+ * склеить через {@link #combine(long, long, long)}, не перечитывая данные.
+ */
+public final class Crc32c implements Checksum {
+    // отраженный полином 0x1EDC6F41
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLES[0][n];
+            for (int t = 1; t < 8; t++) {
+                crc = TABLES[0][crc & 0xFF] ^ (crc >>> 8);
+                TABLES[t][n] = crc;
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        int position = offset;
+        int end = offset + length;
+        while (end - position >= 8) {
+            int low = crc ^ ((bytes[position] & 0xFF)
+                | (bytes[position + 1] & 0xFF) << 8
+                | (bytes[position + 2] & 0xFF) << 16
+                | (bytes[position + 3] & 0xFF) << 24);
+            int high = (bytes[position + 4] & 0xFF)
+                | (bytes[position + 5] & 0xFF) << 8
+                | (bytes[position + 6] & 0xFF) << 16
+                | (bytes[position + 7] & 0xFF) << 24;
+            crc = step(low, high);
+            position += 8;
+        }
+        while (position < end) {
+            update(bytes[position++]);
+        }
+    }
+
+    /**
+     * Учитывает байты от позиции до предела буфера и сдвигает позицию.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() >= 8) {
+            long word = buffer.getLong();
+            crc = step(crc ^ (int) word, (int) (word >>> 32));
+        }
+        buffer.order(order);
+        while (buffer.hasRemaining()) {
+            update(buffer.get());
+        }
+    }
+
+    private static int step(int low, int high) {
+        return TABLES[7][low & 0xFF] ^ TABLES[6][(low >>> 8) & 0xFF]
+            ^ TABLES[5][(low >>> 16) & 0xFF] ^ TABLES[4][low >>> 24]
+            ^ TABLES[3][high & 0xFF] ^ TABLES[2][(high >>> 8) & 0xFF]
+            ^ TABLES[1][(high >>> 16) & 0xFF] ^ TABLES[0][high >>> 24];
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Сумма склейки двух диапазонов по их суммам (как {@code crc32_combine}
+     * из zlib): {@code length2} нулевых байт дописываются к первой сумме
+     * возведением матрицы сдвига в степень, за O(log length2).
+     *
+     * @param crc1    сумма первого диапазона
+     * @param crc2    сумма второго диапазона
+     * @param length2 длина второго диапазона
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+
+        // оператор сдвига на один нулевой бит
+        odd[0] = POLYNOMIAL;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd); // два нулевых бита
+        square(odd, even); // четыре нулевых бита
+
+        int crc = (int) crc1;
+        long remaining = length2;
+        do {
+            // первый квадрат дает оператор для одного нулевого байта
+            square(even, odd);
+            if ((remaining & 1) != 0) {
+                crc = times(even, crc);
+            }
+            remaining >>= 1;
+            if (remaining == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((remaining & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            remaining >>= 1;
+        } while (remaining != 0);
+
+        return (crc ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] result, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            result[n] = times(matrix, matrix[n]);
+        }
+    }
+}
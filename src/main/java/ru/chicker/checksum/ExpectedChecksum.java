@@ -0,0 +1,73 @@
+package ru.chicker.checksum;
+
+import ru.chicker.exception.ChecksumMismatchException;
+
+import java.util.Locale;
+
+/**
+ * Ожидаемая контрольная сумма файла из третьей колонки файла со ссылками:
+ * {@code sha256:<hex>}, {@code crc32c:<hex>} или просто hex-строка, по
+ * длине которой понятен алгоритм.
+ */
+public class ExpectedChecksum {
+    private final ChecksumAlgorithm algorithm;
+    private final String hex;
+
+    public ExpectedChecksum(ChecksumAlgorithm algorithm, String hex) {
+        this.algorithm = algorithm;
+        this.hex = hex.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @throws IllegalArgumentException если запись не похожа на контрольную
+     *                                  сумму
+     */
+    public static ExpectedChecksum parse(String value) {
+        int separator = value.indexOf(':');
+        String hex = separator >= 0 ? value.substring(separator + 1) : value;
+        ChecksumAlgorithm algorithm = null;
+        if (separator >= 0) {
+            algorithm = ChecksumAlgorithm.byName(value.substring(0, separator));
+        } else {
+            for (ChecksumAlgorithm candidate : ChecksumAlgorithm.values()) {
+                if (candidate.getHexLength() == hex.length()) {
+                    algorithm = candidate;
+                }
+            }
+        }
+        if (algorithm == null || hex.length() != algorithm.getHexLength()
+            || !isHex(hex)) {
+            throw new IllegalArgumentException("Неверная контрольная сумма: " + value);
+        }
+        return new ExpectedChecksum(algorithm, hex);
+    }
+
+    private static boolean isHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public ChecksumAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getHex() {
+        return hex;
+    }
+
+    public void verify(String fileName, String actualHex) throws ChecksumMismatchException {
+        if (!hex.equals(actualHex)) {
+            throw new ChecksumMismatchException(fileName, algorithm.getName(), hex,
+                actualHex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return algorithm.getName() + ":" + hex;
+    }
+}
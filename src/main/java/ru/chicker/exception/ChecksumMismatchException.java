@@ -0,0 +1,15 @@
+package ru.chicker.exception;
+
+import java.io.IOException;
+
+/**
+ * Контрольная сумма скачанного файла не совпала с указанной в файле со
+ * ссылками; недокачанный файл при этом удаляется.
+ */
+public class ChecksumMismatchException extends IOException {
+    public ChecksumMismatchException(String fileName, String algorithm, String expected,
+                                     String actual) {
+        super(String.format("Контрольная сумма %s файла %s не совпала: ожидалась %s, " +
+            "получена %s", algorithm, fileName, expected, actual));
+    }
+}
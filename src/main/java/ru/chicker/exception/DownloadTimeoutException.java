@@ -0,0 +1,39 @@
+package ru.chicker.exception;
+
+import java.io.IOException;
+
+/**
+ * Закачка прервана по времени: сервер не ответил, передача зависла или
+ * истек общий срок работы программы. В итогах такие закачки считаются
+ * отдельно от остальных ошибок.
+ */
+public class DownloadTimeoutException extends IOException {
+    public enum Reason {
+        CONNECT("не удалось соединиться с сервером"),
+        READ("сервер перестал присылать данные"),
+        STALL("скорость закачки упала ниже допустимой"),
+        DEADLINE("истек общий срок работы");
+
+        private final String description;
+
+        Reason(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final Reason reason;
+
+    public DownloadTimeoutException(Reason reason, String details) {
+        super(details == null ? reason.getDescription()
+            : reason.getDescription() + ": " + details);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
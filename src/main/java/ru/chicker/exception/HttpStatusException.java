@@ -0,0 +1,49 @@
+package ru.chicker.exception;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Сервер ответил неожиданным статусом. Помимо статуса хранит заголовок
+ * {@code Retry-After}, по которому можно понять, когда повторить запрос.
+ */
+public class HttpStatusException extends IOException {
+    private final int statusCode;
+    // через сколько миллисекунд сервер просит повторить запрос, -1 - не просит
+    private final long retryAfterMillis;
+
+    public HttpStatusException(HttpResponse response) {
+        super(response.getStatusLine().toString());
+        this.statusCode = response.getStatusLine().getStatusCode();
+        this.retryAfterMillis = parseRetryAfter(
+            response.getFirstHeader(HttpHeaders.RETRY_AFTER));
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    // Retry-After бывает числом секунд или датой в формате HTTP
+    private static long parseRetryAfter(Header header) {
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date != null
+                ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ru.chicker.exception;
+
+/**
+ * Обертка над {@link InvalidFileStructureException} для ленивого чтения
+ * файла со ссылками через {@link java.util.stream.Stream}.
+ */
+public class UncheckedInvalidFileStructureException extends RuntimeException {
+    public UncheckedInvalidFileStructureException(InvalidFileStructureException cause) {
+        super(cause);
+    }
+
+    @Override
+    public synchronized InvalidFileStructureException getCause() {
+        return (InvalidFileStructureException) super.getCause();
+    }
+}
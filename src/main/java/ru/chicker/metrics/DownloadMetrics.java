@@ -0,0 +1,317 @@
+package ru.chicker.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Счетчики закачки, которые обновляются прямо на пути данных.
+ * <p>
+ * Все счетчики - {@link LongAdder}: потоки, одновременно увеличивающие один
+ * счетчик, не конкурируют за одну ячейку памяти, а стоимость сложения
+ * переносится на редкое чтение. По соотношению времени, которое загрузчики
+ * ждали сеть, ограничитель и диск, видно, что сдерживает закачку.
+ */
+public class DownloadMetrics implements DownloadMetricsMXBean {
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder activeTransfers = new LongAdder();
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder serverRejections = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder diskWriteNanos = new LongAdder();
+    private final LongAdder networkReadNanos = new LongAdder();
+    private final LongAdder diskWaitNanos = new LongAdder();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+    private final Map<String, LongAdder> bytesPerWorker = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesPerFile = new ConcurrentHashMap<>();
+    // счетчик своего потока ищется в таблице один раз, а не на каждый блок
+    private final ThreadLocal<LongAdder> workerBytes = ThreadLocal.withInitial(() ->
+        bytesPerWorker.computeIfAbsent(Thread.currentThread().getName(),
+            name -> new LongAdder()));
+
+    private volatile IntSupplier queueDepth = () -> 0;
+
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Отмечает начало запроса; каждый сегмент файла - отдельная передача.
+     */
+    public Transfer startTransfer(String fileName) {
+        activeTransfers.increment();
+        return new Transfer(fileName);
+    }
+
+    public void onThrottled(long nanos) {
+        if (nanos > 0) {
+            throttledNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Запись на диск, в том числе потоками-писателями, которых загрузчики
+     * не ждут.
+     */
+    public void onDiskWrite(long nanos) {
+        diskWriteNanos.add(nanos);
+    }
+
+    /**
+     * Загрузчик ждал данные из сокета.
+     */
+    public void onNetworkRead(long nanos) {
+        networkReadNanos.add(nanos);
+    }
+
+    /**
+     * Загрузчик ждал диск: свободный буфер или окончание записи.
+     */
+    public void onDiskWait(long nanos) {
+        if (nanos > 0) {
+            diskWaitNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Файл докачан или закачка завершилась ошибкой; его байты больше не
+     * показываются среди текущих закачек.
+     */
+    public void fileFinished(String fileName, boolean success) {
+        (success ? filesCompleted : filesFailed).increment();
+        bytesPerFile.remove(fileName);
+    }
+
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public long getThrottledNanos() {
+        return throttledNanos.sum();
+    }
+
+    public long getDiskWriteNanos() {
+        return diskWriteNanos.sum();
+    }
+
+    public long getNetworkReadNanos() {
+        return networkReadNanos.sum();
+    }
+
+    public long getDiskWaitNanos() {
+        return diskWaitNanos.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        long elapsedNanos = Math.max(1, getElapsedNanos());
+        return (long) (getBytesDownloaded() * (double) TimeUnit.SECONDS.toNanos(1)
+            / elapsedNanos);
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return activeTransfers.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getFilesCompleted() {
+        return filesCompleted.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    @Override
+    public long getServerRejections() {
+        return serverRejections.sum();
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getThrottledNanos());
+    }
+
+    @Override
+    public long getDiskWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getDiskWriteNanos());
+    }
+
+    @Override
+    public long getNetworkReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getNetworkReadNanos());
+    }
+
+    @Override
+    public long getDiskWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getDiskWaitNanos());
+    }
+
+    @Override
+    public long getTimeToFirstByteP50Millis() {
+        return timeToFirstByte.percentileMillis(50);
+    }
+
+    @Override
+    public long getTimeToFirstByteP95Millis() {
+        return timeToFirstByte.percentileMillis(95);
+    }
+
+    @Override
+    public Map<String, Long> getBytesPerWorker() {
+        return snapshot(bytesPerWorker);
+    }
+
+    @Override
+    public Map<String, Long> getBytesPerFile() {
+        return snapshot(bytesPerFile);
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        return result;
+    }
+
+    /**
+     * Счетчики одного запроса. Обновляется одним потоком за раз, а читать
+     * байты и время ожидания может и {@link ru.chicker.TransferWatchdog}.
+     */
+    public final class Transfer {
+        private final String fileName;
+        private final long startNanos = System.nanoTime();
+        private LongAdder fileBytes;
+        private volatile long bytesReceived;
+        private volatile long throttledNanos;
+        private volatile long diskWaitNanos;
+        private long responseNanos;
+        private volatile boolean responseReceived;
+        private boolean finished;
+
+        private Transfer(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * Пришли заголовки ответа: время с начала запроса попадает в
+         * гистограмму времени до первого байта, а ответы 429 и 503 считаются
+         * отказами перегруженного сервера.
+         */
+        public void responseReceived(int statusCode) {
+            if (!responseReceived) {
+                responseNanos = System.nanoTime();
+                responseReceived = true;
+                timeToFirstByte.record(responseNanos - startNanos);
+            }
+            if (statusCode == 429 || statusCode == 503) {
+                serverRejections.increment();
+            }
+        }
+
+        /**
+         * @param bytes байты, пришедшие по сети (до распаковки)
+         */
+        public void bytesReceived(long bytes) {
+            bytesReceived += bytes;
+            if (fileBytes == null) {
+                fileBytes = bytesPerFile.computeIfAbsent(fileName, name -> new LongAdder());
+            }
+            bytesDownloaded.add(bytes);
+            workerBytes.get().add(bytes);
+            fileBytes.add(bytes);
+        }
+
+        /**
+         * Запрос ждал общий ограничитель скорости.
+         */
+        public void throttled(long nanos) {
+            if (nanos > 0) {
+                throttledNanos += nanos;
+                onThrottled(nanos);
+            }
+        }
+
+        /**
+         * Запрос ждал свободный буфер или запись на диск.
+         */
+        public void waitedForDisk(long nanos) {
+            if (nanos > 0) {
+                diskWaitNanos += nanos;
+                onDiskWait(nanos);
+            }
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isResponseReceived() {
+            return responseReceived;
+        }
+
+        /**
+         * Когда пришли заголовки ответа (по {@link System#nanoTime()}); имеет
+         * смысл, только если {@link #isResponseReceived()}.
+         */
+        public long getResponseNanos() {
+            return responseNanos;
+        }
+
+        public long getThrottledNanos() {
+            return throttledNanos;
+        }
+
+        /**
+         * Сколько времени запрос не читал из сокета по своим причинам: ждал
+         * ограничитель скорости или диск.
+         */
+        public long getPausedNanos() {
+            return throttledNanos + diskWaitNanos;
+        }
+
+        /**
+         * Сколько времени идет запрос, не считая ожидания ограничителя скорости
+         * и диска.
+         */
+        public long getActiveNanos() {
+            return System.nanoTime() - startNanos - getPausedNanos();
+        }
+
+        /**
+         * Сколько байт этого запроса пришло по сети.
+         */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public void finish() {
+            if (!finished) {
+                finished = true;
+                activeTransfers.decrement();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.chicker.metrics;
+
+import java.util.Map;
+
+/**
+ * Счетчики закачки, доступные через JMX (например, в jconsole под именем
+ * {@code ru.chicker:type=DownloadMetrics}).
+ */
+public interface DownloadMetricsMXBean {
+    long getBytesDownloaded();
+
+    /**
+     * Средняя скорость с начала работы.
+     */
+    long getBytesPerSecond();
+
+    long getActiveTransfers();
+
+    int getQueueDepth();
+
+    long getFilesCompleted();
+
+    long getFilesFailed();
+
+    /**
+     * Сколько раз сервер ответил 429 или 503.
+     */
+    long getServerRejections();
+
+    /**
+     * Сколько времени загрузчики суммарно ждали ограничитель скорости.
+     */
+    long getThrottledMillis();
+
+    /**
+     * Сколько времени суммарно заняла запись на диск.
+     */
+    long getDiskWriteMillis();
+
+    /**
+     * Сколько времени загрузчики суммарно ждали данные из сети.
+     */
+    long getNetworkReadMillis();
+
+    /**
+     * Сколько времени загрузчики суммарно ждали диск: свободный буфер или
+     * окончание записи.
+     */
+    long getDiskWaitMillis();
+
+    long getTimeToFirstByteP50Millis();
+
+    long getTimeToFirstByteP95Millis();
+
+    Map<String, Long> getBytesPerWorker();
+
+    /**
+     * Скачанные байты файлов, которые качаются прямо сейчас.
+     */
+    Map<String, Long> getBytesPerFile();
+}
@@ -0,0 +1,84 @@
+package ru.chicker.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек с фиксированными границами корзин. Запись - одно
+ * увеличение {@link LongAdder}, поэтому ее можно вызывать на каждую закачку
+ * из любого числа потоков.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS_MS = {5, 10, 25, 50, 100, 250, 500, 1000,
+        2500, 5000, 10000};
+
+    // последняя корзина - все, что больше последней границы
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BOUNDS_MS.length && millis > BOUNDS_MS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @return верхние границы корзин в миллисекундах, без последней
+     * бесконечной
+     */
+    public long[] getBoundsMillis() {
+        return BOUNDS_MS.clone();
+    }
+
+    /**
+     * @return число записей в каждой корзине, последняя - бесконечная
+     */
+    public long[] getCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Оценка перцентиля сверху: граница корзины, в которую он попадает.
+     *
+     * @return миллисекунды, {@link Long#MAX_VALUE} для бесконечной корзины
+     * или 0, если записей нет
+     */
+    public long percentileMillis(double percentile) {
+        long[] counts = getCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS_MS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
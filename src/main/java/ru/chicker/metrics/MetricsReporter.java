@@ -0,0 +1,242 @@
+package ru.chicker.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static ru.chicker.util.ByteUtils.formatBytes;
+
+/**
+ * Публикует {@link DownloadMetrics}: регистрирует их в JMX, раз в
+ * {@code intervalSeconds} печатает строку прогресса и, если задан файл,
+ * перезаписывает его счетчиками в текстовом формате Prometheus (например,
+ * для node_exporter textfile collector).
+ */
+public class MetricsReporter implements AutoCloseable {
+    private static final String OBJECT_NAME = "ru.chicker:type=DownloadMetrics";
+    private static final String PREFIX = "download_manager_";
+
+    private final Logger log = LoggerFactory.getLogger(MetricsReporter.class);
+
+    private final DownloadMetrics metrics;
+    private final Path metricsFile;
+    private final ScheduledExecutorService timer;
+    private ObjectName objectName;
+
+    // значения на момент прошлой строки прогресса
+    private long lastNanos;
+    private long lastBytes;
+    private long lastThrottledNanos;
+    private long lastNetworkReadNanos;
+    private long lastDiskWaitNanos;
+
+    /**
+     * @param intervalSeconds как часто печатать прогресс и обновлять файл;
+     *                        0 - не печатать, файл пишется только в конце
+     * @param metricsFile     файл для Prometheus или {@code null}
+     */
+    public MetricsReporter(DownloadMetrics metrics, int intervalSeconds, Path metricsFile) {
+        this.metrics = metrics;
+        this.metricsFile = metricsFile;
+        this.lastNanos = metrics.getElapsedNanos();
+
+        registerMBean();
+
+        if (intervalSeconds > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+        } else {
+            timer = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        writeMetricsFile();
+        unregisterMBean();
+    }
+
+    private void report() {
+        try {
+            printProgress();
+            writeMetricsFile();
+        } catch (RuntimeException e) {
+            // исключение отменило бы все следующие запуски по расписанию
+            log.warn("Не удалось вывести статистику: {}", e.getLocalizedMessage());
+        }
+    }
+
+    private void printProgress() {
+        long nowNanos = metrics.getElapsedNanos();
+        long bytes = metrics.getBytesDownloaded();
+        long throttledNanos = metrics.getThrottledNanos();
+        long networkReadNanos = metrics.getNetworkReadNanos();
+        long diskWaitNanos = metrics.getDiskWaitNanos();
+        long activeTransfers = metrics.getActiveTransfers();
+
+        long intervalNanos = Math.max(1, nowNanos - lastNanos);
+        long speed = (long) ((bytes - lastBytes) * (double) TimeUnit.SECONDS.toNanos(1)
+            / intervalNanos);
+        // доля времени активных закачек, проведенная в ожидании сети,
+        // ограничителя и диска: что из них больше, то и сдерживает закачку
+        double transferNanos = (double) intervalNanos * Math.max(1, activeTransfers);
+
+        System.out.printf("Прогресс: скачано %s (%s/sec), закачек %d, в очереди %d, " +
+                "готово %d, ошибок %d; ожидание сети %.0f%%, ограничителя %.0f%%, " +
+                "диска %.0f%%, первый байт p50 %s мс%n",
+            formatBytes(bytes), formatBytes(speed), activeTransfers,
+            metrics.getQueueDepth(), metrics.getFilesCompleted(),
+            metrics.getFilesFailed(),
+            100 * Math.min(1, (networkReadNanos - lastNetworkReadNanos) / transferNanos),
+            100 * Math.min(1, (throttledNanos - lastThrottledNanos) / transferNanos),
+            100 * Math.min(1, (diskWaitNanos - lastDiskWaitNanos) / transferNanos),
+            formatMillis(metrics.getTimeToFirstByteP50Millis()));
+
+        lastNanos = nowNanos;
+        lastBytes = bytes;
+        lastThrottledNanos = throttledNanos;
+        lastNetworkReadNanos = networkReadNanos;
+        lastDiskWaitNanos = diskWaitNanos;
+    }
+
+    private static String formatMillis(long millis) {
+        return millis == Long.MAX_VALUE ? "> 10000" : String.valueOf(millis);
+    }
+
+    // Пишем во временный файл и переименовываем, чтобы сборщик никогда не
+    // прочитал наполовину записанный файл
+    private synchronized void writeMetricsFile() {
+        if (metricsFile == null) {
+            return;
+        }
+        Path tempFile = metricsFile.resolveSibling(metricsFile.getFileName() + ".tmp");
+        try {
+            Files.write(tempFile, toPrometheusText().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, metricsFile, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Не удалось записать файл метрик {}: {}", metricsFile,
+                e.getLocalizedMessage());
+        }
+    }
+
+    String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        metric(out, "bytes_downloaded_total", "counter", "Downloaded bytes",
+            metrics.getBytesDownloaded());
+        metric(out, "active_transfers", "gauge", "Requests in progress",
+            metrics.getActiveTransfers());
+        metric(out, "queue_depth", "gauge", "Tasks waiting in the queue",
+            metrics.getQueueDepth());
+        metric(out, "files_completed_total", "counter", "Downloaded files",
+            metrics.getFilesCompleted());
+        metric(out, "files_failed_total", "counter", "Failed files",
+            metrics.getFilesFailed());
+        metric(out, "server_rejections_total", "counter",
+            "Responses with status 429 or 503", metrics.getServerRejections());
+        metric(out, "throttled_seconds_total", "counter",
+            "Time spent waiting for the rate limiter", metrics.getThrottledNanos() / 1e9);
+        metric(out, "disk_write_seconds_total", "counter",
+            "Time spent writing to disk", metrics.getDiskWriteNanos() / 1e9);
+        metric(out, "network_read_seconds_total", "counter",
+            "Time downloads spent waiting for data from the network",
+            metrics.getNetworkReadNanos() / 1e9);
+        metric(out, "disk_wait_seconds_total", "counter",
+            "Time downloads spent waiting for free buffers or disk writes",
+            metrics.getDiskWaitNanos() / 1e9);
+
+        header(out, "worker_bytes_total", "counter", "Downloaded bytes per worker thread");
+        labelled(out, "worker_bytes_total", "worker", metrics.getBytesPerWorker());
+        header(out, "file_bytes", "gauge", "Downloaded bytes of files in progress");
+        labelled(out, "file_bytes", "file", metrics.getBytesPerFile());
+
+        LatencyHistogram histogram = metrics.getTimeToFirstByte();
+        long[] bounds = histogram.getBoundsMillis();
+        long[] counts = histogram.getCounts();
+        header(out, "time_to_first_byte_seconds", "histogram",
+            "Time from sending a request to receiving response headers");
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < bounds.length ? String.valueOf(bounds[i] / 1e3) : "+Inf";
+            out.append(PREFIX).append("time_to_first_byte_seconds_bucket{le=\"")
+                .append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(PREFIX).append("time_to_first_byte_seconds_sum ")
+            .append(histogram.getSumNanos() / 1e9).append('\n');
+        out.append(PREFIX).append("time_to_first_byte_seconds_count ")
+            .append(cumulative).append('\n');
+        return out.toString();
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help,
+                               Number value) {
+        header(out, name, type, help);
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help)
+            .append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type)
+            .append('\n');
+    }
+
+    private static void labelled(StringBuilder out, String name, String label,
+                                 Map<String, Long> values) {
+        values.forEach((key, value) -> out.append(PREFIX).append(name).append('{')
+            .append(label).append("=\"").append(escapeLabel(key)).append("\"} ")
+            .append(value).append('\n'));
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+                objectName = name;
+            }
+        } catch (JMException e) {
+            log.warn("Не удалось зарегистрировать метрики в JMX: {}",
+                e.getLocalizedMessage());
+        }
+    }
+
+    private void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Не удалось снять метрики с регистрации в JMX: {}",
+                e.getLocalizedMessage());
+        }
+    }
+}
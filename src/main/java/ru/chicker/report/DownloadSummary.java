@@ -0,0 +1,193 @@
+package ru.chicker.report;
+
+import javaslang.control.Either;
+import ru.chicker.DownloadLinkInfo;
+import ru.chicker.DownloadListener;
+import ru.chicker.DownloadSuccess;
+import ru.chicker.DownlodError;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Итоги закачки, подсчитываемые по мере поступления результатов, без
+ * хранения самих результатов.
+ */
+public class DownloadSummary implements DownloadListener {
+    private final LongAdder downloadedCount = new LongAdder();
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder upToDateCount = new LongAdder();
+    private final LongAdder deduplicatedCount = new LongAdder();
+    private final LongAdder deduplicatedBytes = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final Map<String, ClassStats> classes = new ConcurrentHashMap<>();
+    private final long createdNanos = System.nanoTime();
+
+    @Override
+    public void onStarted(DownloadLinkInfo linkInfo) {
+        classStats(linkInfo).started(System.nanoTime());
+    }
+
+    @Override
+    public void onFinished(Either<DownlodError, DownloadSuccess> result) {
+        DownloadLinkInfo linkInfo = result.isRight()
+            ? result.get().getLinkInfo() : result.getLeft().getLinkInfo();
+        classStats(linkInfo).finished(result, System.nanoTime());
+        if (result.isRight()) {
+            DownloadSuccess success = result.get();
+            if (success.isUpToDate()) {
+                upToDateCount.increment();
+            } else if (success.isDeduplicated()) {
+                deduplicatedCount.increment();
+                deduplicatedBytes.add(success.getDownloadedFileSize());
+            } else {
+                downloadedCount.increment();
+                downloadedBytes.add(success.getDownloadedFileSize());
+                wireBytes.add(success.getWireBytes());
+            }
+        } else {
+            errorCount.increment();
+            if (result.getLeft().isTimeout()) {
+                timeoutCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Сколько файлов скачано; не изменившиеся на сервере и полученные из
+     * файлов с той же ссылкой не считаются.
+     */
+    public long getDownloadedCount() {
+        return downloadedCount.sum();
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes.sum();
+    }
+
+    /**
+     * Сколько байт скачанных файлов пришло по сети.
+     */
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    public long getUpToDateCount() {
+        return upToDateCount.sum();
+    }
+
+    /**
+     * Сколько файлов получено из скачанных по той же ссылке.
+     */
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.sum();
+    }
+
+    /**
+     * Сколько байт не пришлось качать благодаря файлам с той же ссылкой.
+     */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.sum();
+    }
+
+    /**
+     * Сколько закачек не удалось, включая прерванные по таймауту.
+     */
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * Итоги по классу приоритета или {@code null}, если файлов этого класса
+     * не было.
+     */
+    public ClassStats getClassStats(String priorityClass) {
+        return classes.get(priorityClass);
+    }
+
+    /**
+     * Итоги по всем встретившимся классам приоритета.
+     */
+    public Map<String, ClassStats> getClassStats() {
+        return classes;
+    }
+
+    private ClassStats classStats(DownloadLinkInfo linkInfo) {
+        return classes.computeIfAbsent(linkInfo.getPriorityClass(), ClassStats::new);
+    }
+
+    /**
+     * Итоги закачки файлов одного класса приоритета.
+     */
+    public final class ClassStats {
+        private final String name;
+        private long files;
+        private long downloadedBytes;
+        private long firstStartNanos = -1;
+        private long lastFinishNanos = -1;
+
+        private ClassStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Сколько файлов класса закончено, включая неудачные.
+         */
+        public synchronized long getFileCount() {
+            return files;
+        }
+
+        public synchronized long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        /**
+         * Через сколько миллисекунд после начала работы закончен последний
+         * файл класса.
+         */
+        public synchronized long getCompletionMillis() {
+            return lastFinishNanos < 0 ? 0
+                : TimeUnit.NANOSECONDS.toMillis(lastFinishNanos - createdNanos);
+        }
+
+        /**
+         * Средняя скорость закачки класса (байт в секунду) от начала первого
+         * его файла до конца последнего.
+         */
+        public synchronized long getBytesPerSecond() {
+            long nanos = lastFinishNanos - firstStartNanos;
+            if (firstStartNanos < 0 || nanos <= 0) {
+                return 0;
+            }
+            return (long) (downloadedBytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+        }
+
+        private synchronized void started(long nowNanos) {
+            if (firstStartNanos < 0) {
+                firstStartNanos = nowNanos;
+            }
+        }
+
+        private synchronized void finished(Either<DownlodError, DownloadSuccess> result,
+                                           long nowNanos) {
+            files++;
+            if (result.isRight() && !result.get().isUpToDate()
+                && !result.get().isDeduplicated()) {
+                downloadedBytes += result.get().getDownloadedFileSize();
+            }
+            lastFinishNanos = nowNanos;
+        }
+    }
+}
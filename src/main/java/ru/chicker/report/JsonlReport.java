@@ -0,0 +1,129 @@
+package ru.chicker.report;
+
+import javaslang.control.Either;
+import ru.chicker.DownloadLinkInfo;
+import ru.chicker.DownloadListener;
+import ru.chicker.DownloadSuccess;
+import ru.chicker.DownlodError;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Отчет о закачках для других программ: по строке JSON на каждый файл,
+ * дописываемой сразу, как только файл скачан или окончательно не удался.
+ * Если программу прервать, в отчете останутся все уже завершенные закачки.
+ * <p>
+ * Поля строки: {@code url}, {@code file}, {@code status} ({@code ok},
+ * {@code up_to_date}, {@code duplicate}, {@code error} или {@code timeout}),
+ * {@code bytes}, {@code wire_bytes}, {@code attempts}, {@code duration_ms},
+ * {@code bytes_per_sec} и, для ошибок, {@code error}.
+ */
+public class JsonlReport implements DownloadListener, AutoCloseable {
+    private final BufferedWriter writer;
+    // когда начата первая попытка каждого файла; хранится, пока файл качается
+    private final Map<DownloadLinkInfo, Long> startNanos = new ConcurrentHashMap<>();
+
+    public JsonlReport(Path reportFile) throws IOException {
+        this.writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void onStarted(DownloadLinkInfo linkInfo) {
+        startNanos.putIfAbsent(linkInfo, System.nanoTime());
+    }
+
+    @Override
+    public void onFinished(Either<DownlodError, DownloadSuccess> result) {
+        DownloadLinkInfo linkInfo = result.isRight()
+            ? result.get().getLinkInfo() : result.getLeft().getLinkInfo();
+        Long started = startNanos.remove(linkInfo);
+        long durationMs = started == null ? 0
+            : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        StringBuilder line = new StringBuilder(256);
+        line.append('{');
+        appendField(line, "url", linkInfo.getHttpLink()).append(',');
+        appendField(line, "file", linkInfo.getFileName()).append(',');
+        if (result.isRight()) {
+            DownloadSuccess success = result.get();
+            appendField(line, "status", success.isUpToDate() ? "up_to_date"
+                : success.isDeduplicated() ? "duplicate" : "ok");
+            line.append(",\"bytes\":").append(success.getDownloadedFileSize())
+                .append(",\"wire_bytes\":").append(success.getWireBytes())
+                .append(",\"attempts\":").append(success.getAttempts())
+                .append(",\"duration_ms\":").append(durationMs)
+                .append(",\"bytes_per_sec\":").append(durationMs > 0
+                    ? success.getWireBytes() * 1000 / durationMs : 0);
+        } else {
+            DownlodError error = result.getLeft();
+            appendField(line, "status", error.isTimeout() ? "timeout" : "error");
+            line.append(",\"bytes\":0,\"wire_bytes\":0")
+                .append(",\"attempts\":").append(error.getAttempts())
+                .append(",\"duration_ms\":").append(durationMs)
+                .append(",\"bytes_per_sec\":0,");
+            appendField(line, "error", error.getMessage());
+        }
+        line.append('}');
+        write(line.toString());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    // строка дописывается и сбрасывается на диск целиком, чтобы читатель
+    // отчета никогда не видел половину записи
+    private synchronized void write(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static StringBuilder appendField(StringBuilder line, String name, String value) {
+        line.append('"').append(name).append("\":");
+        if (value == null) {
+            return line.append("null");
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        return line.append('"');
+    }
+}
@@ -0,0 +1,64 @@
+package ru.chicker.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ограниченный пул direct-буферов одного размера.
+ * <p>
+ * Буферы создаются по мере надобности, но не больше {@code capacity}; когда
+ * все они заняты, {@link #acquire()} ждет, пока какой-нибудь вернут. Так
+ * пул ограничивает и память, и число прочитанных, но еще не записанных
+ * порций данных.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int capacity;
+    private final LinkedBlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return свободный буфер или {@code null}, если все буферы заняты
+     */
+    public ByteBuffer tryAcquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null && allocated.getAndIncrement() < capacity) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        } else if (buffer == null) {
+            allocated.decrementAndGet();
+        }
+        if (buffer != null) {
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * Ждет, пока освободится буфер, если все заняты.
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = tryAcquire();
+        if (buffer == null) {
+            buffer = free.take();
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.add(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,23 @@
+package ru.chicker.util;
+
+public class ByteUtils {
+    private static final int ONE_KILOBYTE = 1024;
+    private static final int ONE_MEGABYTE = ONE_KILOBYTE * ONE_KILOBYTE;
+
+    public static String formatBytes(long bytes) {
+        if (bytes < ONE_MEGABYTE) {
+            return String.format("%.2f Kb", (float) bytes / ONE_KILOBYTE);
+        } else {
+            return String.format("%.2f Mb", (float) bytes / (ONE_MEGABYTE));
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16))
+                .append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+}
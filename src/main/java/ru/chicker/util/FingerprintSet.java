@@ -0,0 +1,86 @@
+package ru.chicker.util;
+
+/**
+ * Компактное множество строк: вместо самих строк хранит их 64-битные
+ * отпечатки в открытой хеш-таблице на массиве {@code long[]}, т.е. около
+ * 16 байт на элемент вместо сотен байт на объект в {@link java.util.HashSet}.
+ * <p>
+ * Ложное срабатывание возможно только при совпадении 64-битных отпечатков:
+ * для миллиона строк вероятность этого порядка 10^-8.
+ */
+public class FingerprintSet {
+    private static final int INITIAL_CAPACITY = 1024;
+    // 0 означает пустую ячейку, поэтому такой отпечаток подменяется
+    private static final long EMPTY = 0L;
+    private static final long ZERO_REPLACEMENT = 0x9E3779B97F4A7C15L;
+
+    private long[] table = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @return {@code true}, если строки в множестве еще не было
+     */
+    public boolean add(String value) {
+        long fingerprint = fingerprint(value);
+        if ((size + 1) * 2 > table.length) {
+            resize();
+        }
+        if (insert(table, fingerprint)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(String value) {
+        long fingerprint = fingerprint(value);
+        int mask = table.length - 1;
+        for (int i = (int) fingerprint & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == fingerprint) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean insert(long[] table, long fingerprint) {
+        int mask = table.length - 1;
+        int i = (int) fingerprint & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == fingerprint) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = fingerprint;
+        return true;
+    }
+
+    private void resize() {
+        long[] newTable = new long[table.length * 2];
+        for (long fingerprint : table) {
+            if (fingerprint != EMPTY) {
+                insert(newTable, fingerprint);
+            }
+        }
+        table = newTable;
+    }
+
+    // FNV-1a по символам строки с перемешиванием из SplitMix64, чтобы младшие
+    // биты, по которым выбирается ячейка, были распределены равномерно
+    static long fingerprint(String value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        hash ^= hash >>> 31;
+        return hash == EMPTY ? ZERO_REPLACEMENT : hash;
+    }
+}
@@ -0,0 +1,108 @@
+package ru.chicker;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Деление полосы между классами: простаивающий класс отдает свою долю,
+ * общий всплеск не больше {@code -b}, занятые классы делят полосу по весам.
+ */
+public class BandwidthSharesTest {
+    private static final long LIMIT = 1024 * 1024;
+    private static final long BURST = 64 * 1024;
+    private static final int CHUNK = 16 * 1024;
+
+    private final PriorityClasses classes = PriorityClasses.parse("high=4,low=1");
+    private final DownloadLinkInfo high = link("high");
+    private final DownloadLinkInfo low = link("low");
+
+    private static DownloadLinkInfo link(String priorityClass) {
+        return new DownloadLinkInfo(priorityClass + ".bin",
+            Collections.singletonList("http://example.com/" + priorityClass),
+            null, priorityClass);
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Test
+    public void idleClassLendsItsShare() throws InterruptedException {
+        BandwidthShares shares = new BandwidthShares(PriorityClasses.parse("a,b"),
+            LIMIT, BURST);
+        BandwidthShares.Share busy = shares.enter(link("a"));
+        // у класса b идет закачка, но сервер ничего не присылает
+        shares.enter(link("b"));
+
+        long start = System.nanoTime();
+        for (long read = 0; read < LIMIT; read += CHUNK) {
+            busy.acquire(CHUNK);
+        }
+        double elapsed = seconds(System.nanoTime() - start);
+
+        // без заимствования класс a получил бы половину полосы и качал
+        // вдвое дольше, чем за полную
+        double halfShare = (LIMIT - BURST) / (LIMIT / 2.0);
+        assertTrue("качал " + elapsed + " с", elapsed < halfShare * 0.75);
+    }
+
+    @Test
+    public void combinedBurstStaysWithinLimit() throws InterruptedException {
+        BandwidthShares shares = new BandwidthShares(PriorityClasses.parse("a,b,c,normal"),
+            LIMIT, BURST);
+        BandwidthShares.Share[] all = {shares.enter(link("a")), shares.enter(link("b")),
+            shares.enter(link("c")), shares.enter(link("normal"))};
+        // ведра всех классов успевают наполниться
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        long free = 0;
+        outer:
+        while (true) {
+            for (BandwidthShares.Share share : all) {
+                if (share.reserve(1024) > 0) {
+                    break outer;
+                }
+                free += 1024;
+            }
+        }
+
+        assertTrue("без ожидания прошло " + free + " байт", free <= BURST + 1024);
+    }
+
+    @Test
+    public void busyClassesSplitByWeight() throws InterruptedException {
+        BandwidthShares shares = new BandwidthShares(classes, LIMIT, BURST);
+        AtomicLong highBytes = new AtomicLong();
+        AtomicLong lowBytes = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+        Thread highThread = drain(shares.enter(high), highBytes, deadline);
+        Thread lowThread = drain(shares.enter(low), lowBytes, deadline);
+        highThread.join();
+        lowThread.join();
+
+        // по весам 4:1; проверяем с запасом на планировщик потоков
+        assertTrue(highBytes.get() + " / " + lowBytes.get(),
+            highBytes.get() > 2 * lowBytes.get());
+    }
+
+    private static Thread drain(BandwidthShares.Share share, AtomicLong bytes, long deadline) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (System.nanoTime() < deadline) {
+                    share.acquire(CHUNK);
+                    bytes.addAndGet(CHUNK);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,101 @@
+package ru.chicker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.chicker.metrics.DownloadMetrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Разметка файла на сегменты, резервирование порций и отрезание половины
+ * остатка для освободившегося загрузчика.
+ */
+public class FileSegmentTest {
+    private static final long LENGTH = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiskWriter diskWriter;
+    private SegmentedFile file;
+
+    @Before
+    public void setUp() throws IOException {
+        diskWriter = new DiskWriter(1, 64 * 1024, 4, 0, new DownloadMetrics());
+        Path output = folder.getRoot().toPath().resolve("file.bin");
+        file = SegmentedFile.create(new DownloadLinkInfo("file.bin", "http://example.com/f"),
+            output, Downloader.tempFilePath(output), LENGTH, diskWriter, null, null);
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        file.fail();
+        diskWriter.close();
+    }
+
+    @Test
+    public void splitCoversWholeFile() {
+        List<FileSegment> segments = file.split(3);
+
+        assertEquals(3, segments.size());
+        long expectedStart = 0;
+        for (FileSegment segment : segments) {
+            assertEquals(expectedStart, segment.getStart());
+            expectedStart = segment.getEnd();
+        }
+        assertEquals(LENGTH, expectedStart);
+    }
+
+    @Test
+    public void claimStopsAtEnd() {
+        FileSegment segment = file.split(2).get(0);
+
+        assertEquals(300, segment.claim(300));
+        assertEquals(200, segment.claim(300));
+        assertEquals(0, segment.claim(300));
+        assertEquals(0, segment.getRemaining());
+    }
+
+    @Test
+    public void splitTakesSecondHalfOfRemainder() {
+        FileSegment segment = file.split(1).get(0);
+        segment.claim(200);
+
+        FileSegment stolen = segment.split(100);
+
+        assertEquals(600, segment.getEnd());
+        assertEquals(600, stolen.getStart());
+        assertEquals(600, stolen.getPosition());
+        assertEquals(LENGTH, stolen.getEnd());
+        // все, что уже прочитано до отреза, остается старому сегменту
+        assertEquals(400, segment.claim(1000));
+    }
+
+    @Test
+    public void smallRemainderIsNotSplit() {
+        FileSegment segment = file.split(1).get(0);
+        segment.claim(850);
+
+        assertNull(segment.split(100));
+        assertEquals(LENGTH, segment.getEnd());
+    }
+
+    @Test
+    public void stealTakesLargestSegment() {
+        List<FileSegment> segments = file.split(2);
+        segments.get(0).claim(400);
+
+        FileSegment stolen = file.steal(10);
+
+        assertEquals(750, stolen.getStart());
+        assertEquals(750, segments.get(1).getEnd());
+    }
+}
@@ -0,0 +1,52 @@
+package ru.chicker;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Перенос соединения задачи с основного хоста на хост зеркала.
+ */
+public class HostFairTaskSchedulerTest {
+    private final DownloadTask primary = new DownloadTask(new DownloadLinkInfo("f",
+        Arrays.asList("http://primary.example/f", "http://mirror.example/f"), null), "out");
+    private final DownloadTask mirrored = primary.withMirror("http://mirror.example/f");
+
+    @Test
+    public void transferMovesConnectionToMirrorHost() {
+        HostFairTaskScheduler scheduler = new HostFairTaskScheduler(16, 1);
+        assertTrue(scheduler.tryAcquire(primary));
+
+        assertTrue(scheduler.transfer(primary, mirrored));
+
+        // основной хост свободен, хост зеркала занят
+        assertTrue(scheduler.tryAcquire(primary));
+        assertFalse(scheduler.tryAcquire(mirrored));
+    }
+
+    @Test
+    public void busyMirrorHostKeepsTheOldConnection() {
+        HostFairTaskScheduler scheduler = new HostFairTaskScheduler(16, 1);
+        assertTrue(scheduler.tryAcquire(primary));
+        assertTrue(scheduler.tryAcquire(mirrored));
+
+        assertFalse(scheduler.transfer(primary, mirrored));
+
+        assertFalse(scheduler.tryAcquire(primary));
+    }
+
+    @Test
+    public void adaptiveLimitDoesNotBlockTransfer() {
+        AdaptiveTaskScheduler scheduler =
+            new AdaptiveTaskScheduler(new HostFairTaskScheduler(16, 1), 1);
+        assertTrue(scheduler.tryAcquire(primary));
+
+        // предел в одну задачу уже выбран, но задача не новая
+        assertTrue(scheduler.transfer(primary, mirrored));
+        assertEquals(1, scheduler.getActive());
+    }
+}
@@ -0,0 +1,49 @@
+package ru.chicker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Приведение ссылок к виду, по которому {@link LinkDeduplicator} находит
+ * одинаковые.
+ */
+public class LinkDeduplicatorTest {
+    @Test
+    public void schemeAndHostAreCaseInsensitive() {
+        assertEquals("http://example.com/File",
+            LinkDeduplicator.normalize("HTTP://Example.COM/File"));
+    }
+
+    @Test
+    public void defaultPortIsDropped() {
+        assertEquals("http://example.com/a", LinkDeduplicator.normalize("http://example.com:80/a"));
+        assertEquals("https://example.com/a",
+            LinkDeduplicator.normalize("https://example.com:443/a"));
+        assertEquals("http://example.com:8080/a",
+            LinkDeduplicator.normalize("http://example.com:8080/a"));
+    }
+
+    @Test
+    public void emptyPathBecomesRoot() {
+        assertEquals("http://example.com/", LinkDeduplicator.normalize("http://example.com"));
+    }
+
+    @Test
+    public void dotSegmentsAreRemoved() {
+        assertEquals("http://example.com/b/c",
+            LinkDeduplicator.normalize("http://example.com/a/../b/./c"));
+    }
+
+    @Test
+    public void queryIsKeptAndFragmentDropped() {
+        assertEquals("http://example.com/a?x=1&y=%20",
+            LinkDeduplicator.normalize("http://example.com/a?x=1&y=%20#top"));
+    }
+
+    @Test
+    public void unparsableLinkIsKeptAsIs() {
+        assertEquals("http://exa mple.com/a", LinkDeduplicator.normalize("http://exa mple.com/a"));
+        assertEquals("relative/path", LinkDeduplicator.normalize("relative/path"));
+    }
+}
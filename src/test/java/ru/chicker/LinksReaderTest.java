@@ -0,0 +1,121 @@
+package ru.chicker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.chicker.checksum.ChecksumAlgorithm;
+import ru.chicker.exception.UncheckedInvalidFileStructureException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Разбор строк файла со ссылками в {@link LinksReader#stream(String)}.
+ */
+public class LinksReaderTest {
+    private static final String SHA256 =
+        "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<DownloadLinkInfo> read(String... lines) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        try (Stream<DownloadLinkInfo> links = new LinksReader().stream(file.toString())) {
+            return links.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void linkAndFileName() throws IOException {
+        DownloadLinkInfo link = read("http://example.com/a.zip   a.zip").get(0);
+
+        assertEquals("http://example.com/a.zip", link.getHttpLink());
+        assertEquals("a.zip", link.getFileName());
+        assertNull(link.getExpectedChecksum());
+        assertEquals(DownloadLinkInfo.DEFAULT_PRIORITY_CLASS, link.getPriorityClass());
+    }
+
+    @Test
+    public void checksumWithAndWithoutAlgorithm() throws IOException {
+        List<DownloadLinkInfo> links = read(
+            "http://example.com/a a sha256:" + SHA256,
+            "http://example.com/b b " + SHA256,
+            "http://example.com/c c crc32c:e3069283");
+
+        assertEquals(ChecksumAlgorithm.SHA256, links.get(0).getExpectedChecksum().getAlgorithm());
+        assertEquals(SHA256, links.get(0).getExpectedChecksum().getHex());
+        assertEquals(ChecksumAlgorithm.SHA256, links.get(1).getExpectedChecksum().getAlgorithm());
+        assertEquals(ChecksumAlgorithm.CRC32C, links.get(2).getExpectedChecksum().getAlgorithm());
+    }
+
+    @Test
+    public void checksumAndClassInAnyOrder() throws IOException {
+        List<DownloadLinkInfo> links = read(
+            "http://example.com/a a sha256:" + SHA256 + " class=high",
+            "http://example.com/b b class=low " + SHA256);
+
+        assertEquals(SHA256, links.get(0).getExpectedChecksum().getHex());
+        assertEquals("high", links.get(0).getPriorityClass());
+        assertEquals(SHA256, links.get(1).getExpectedChecksum().getHex());
+        assertEquals("low", links.get(1).getPriorityClass());
+    }
+
+    @Test
+    public void mirrorsAreSeparatedByBar() throws IOException {
+        DownloadLinkInfo link = read("http://a.example/f|http://b.example/f f").get(0);
+
+        assertEquals(Arrays.asList("http://a.example/f", "http://b.example/f"),
+            link.getMirrors());
+        assertEquals("http://a.example/f", link.getHttpLink());
+    }
+
+    @Test
+    public void blankLinesAreSkippedAndFirstFileNameWins() throws IOException {
+        List<DownloadLinkInfo> links = read(
+            "http://example.com/1 same.bin",
+            "",
+            "   ",
+            "http://example.com/2 same.bin",
+            "http://example.com/3 other.bin");
+
+        assertEquals(2, links.size());
+        assertEquals("http://example.com/1", links.get(0).getHttpLink());
+        assertEquals("other.bin", links.get(1).getFileName());
+    }
+
+    @Test(expected = UncheckedInvalidFileStructureException.class)
+    public void missingFileName() throws IOException {
+        read("http://example.com/a");
+    }
+
+    @Test(expected = UncheckedInvalidFileStructureException.class)
+    public void tooManyColumns() throws IOException {
+        read("http://example.com/a a " + SHA256 + " class=high extra");
+    }
+
+    @Test(expected = UncheckedInvalidFileStructureException.class)
+    public void twoChecksums() throws IOException {
+        read("http://example.com/a a " + SHA256 + " " + SHA256);
+    }
+
+    @Test(expected = UncheckedInvalidFileStructureException.class)
+    public void malformedChecksum() throws IOException {
+        read("http://example.com/a a sha256:xyz");
+    }
+
+    @Test(expected = UncheckedInvalidFileStructureException.class)
+    public void emptyMirror() throws IOException {
+        read("http://a.example/f||http://b.example/f f");
+    }
+}
@@ -0,0 +1,91 @@
+package ru.chicker;
+
+import javaslang.control.Either;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.chicker.benchmark.PayloadServer;
+import ru.chicker.exception.InvalidFileStructureException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Несколько загрузчиков с общим {@code -l} вместе качают не быстрее
+ * заданной скорости: сервер отдает данные мгновенно, так что время закачки
+ * определяет только ограничитель. Насколько точно он выдерживает скорость,
+ * измеряет RateLimitAccuracyBenchmark; здесь сверху проверяется только, что
+ * полоса не теряется целиком.
+ */
+public class RateLimitThroughputTest {
+    private static final int FILES = 4;
+    private static final long FILE_SIZE = 1024 * 1024;
+    private static final long LIMIT = 1024 * 1024;
+    private static final long BURST = 64 * 1024;
+    // запас на загрузку классов, диск и занятую машину
+    private static final double MAX_SLOWDOWN = 1.5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PayloadServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = PayloadServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void threadsShareTheLimit() throws Exception {
+        assertThroughput(DownloadSettings.EngineType.THREADS);
+    }
+
+    @Test
+    public void asyncTransfersShareTheLimit() throws Exception {
+        assertThroughput(DownloadSettings.EngineType.ASYNC);
+    }
+
+    private void assertThroughput(DownloadSettings.EngineType engine)
+    throws InterruptedException, InvalidFileStructureException {
+        List<DownloadLinkInfo> links = new ArrayList<>(FILES);
+        for (int i = 0; i < FILES; i++) {
+            links.add(new DownloadLinkInfo("file-" + i + ".bin", server.url(FILE_SIZE)));
+        }
+        DownloadSettings settings = DownloadSettings.builder()
+            .outputFolderName(folder.getRoot().toString())
+            .progressInterval(0)
+            .engineType(engine)
+            .numThreads(FILES)
+            .limitSpeed(LIMIT)
+            .burstSize(BURST)
+            .build();
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (Either<DownlodError, DownloadSuccess> result :
+            new DownloadManager(links, settings).start()) {
+            assertFalse(String.valueOf(result), result.isLeft());
+            bytes += result.get().getDownloadedFileSize();
+        }
+        double elapsed = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        assertEquals(FILES * FILE_SIZE, bytes);
+        // первый всплеск приходит без ожидания, остальное - не быстрее -l
+        double ideal = (bytes - BURST) / (double) LIMIT;
+        assertTrue("быстрее ограничения: " + elapsed + " с", elapsed >= ideal);
+        assertTrue("слишком медленно: " + elapsed + " с", elapsed < ideal * MAX_SLOWDOWN);
+    }
+}
@@ -0,0 +1,78 @@
+package ru.chicker;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Расчет ожидания в {@link RateLimiter}: всплеск, долг и его выплата.
+ */
+public class RateLimiterTest {
+    private static final long RATE = 1024 * 1024;
+    private static final long BURST = 64 * 1024;
+
+    @Test
+    public void burstIsAvailableAtOnce() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST);
+
+        assertEquals(0, limiter.reserve(BURST));
+    }
+
+    @Test
+    public void debtIsPaidAtTheConfiguredRate() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST);
+        limiter.reserve(BURST);
+
+        long waitNanos = limiter.reserve(RATE / 2);
+
+        // полсекунды за вычетом того, что накопилось между вызовами
+        assertTrue(String.valueOf(waitNanos), waitNanos <= TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(String.valueOf(waitNanos), waitNanos > TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void debtAccumulatesAcrossCallers() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST);
+        limiter.reserve(BURST);
+
+        long first = limiter.reserve(RATE / 4);
+        long second = limiter.reserve(RATE / 4);
+
+        assertTrue("второй ждет дольше первого: " + first + " " + second,
+            second - first > TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void idleTimeDoesNotExceedBurst() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(RATE, BURST);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        // за 200 мс накопилось бы 200 Кб, но ведро вмещает только 64 Кб
+        assertTrue(limiter.reserve(2 * BURST) > 0);
+    }
+
+    @Test
+    public void acquireSleepsForTheDebt() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(RATE, BURST);
+        limiter.reserve(BURST);
+
+        long start = System.nanoTime();
+        long waited = limiter.acquire(RATE / 10);
+
+        assertTrue(waited > 0);
+        assertTrue(System.nanoTime() - start >= waited);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate() {
+        new RateLimiter(0, BURST);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroBurst() {
+        new RateLimiter(RATE, 0);
+    }
+}
@@ -0,0 +1,121 @@
+package ru.chicker;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+import ru.chicker.exception.DownloadTimeoutException;
+import ru.chicker.exception.HttpStatusException;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Какие ошибки {@link RetryPolicy} повторяет и через сколько.
+ */
+public class RetryPolicyTest {
+    private static final long BASE_DELAY_MS = 1000;
+
+    private final RetryPolicy policy = new RetryPolicy(DownloadSettings.builder()
+        .retries(3)
+        .timeoutRetries(2)
+        .retryDelayMillis(BASE_DELAY_MS)
+        .build());
+
+    private static DownloadTask task(int attempt) {
+        DownloadTask task = new DownloadTask(
+            new DownloadLinkInfo("file.bin", "http://example.com/file.bin"), "out");
+        while (task.getAttempt() < attempt) {
+            task = task.nextAttempt();
+        }
+        return task;
+    }
+
+    private static HttpStatusException status(int code, String retryAfter) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, code, "status");
+        if (retryAfter != null) {
+            response.addHeader(HttpHeaders.RETRY_AFTER, retryAfter);
+        }
+        return new HttpStatusException(response);
+    }
+
+    @Test
+    public void backoffDoublesWithEveryAttempt() {
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            long full = BASE_DELAY_MS << (attempt - 1);
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.retryDelayMillis(task(attempt), status(503, null));
+
+                assertTrue("attempt " + attempt + ": " + delay,
+                    delay >= full / 2 && delay <= full);
+            }
+        }
+    }
+
+    @Test
+    public void connectionResetIsRetried() {
+        assertTrue(policy.retryDelayMillis(task(1), new SocketException("reset")) >= 0);
+    }
+
+    @Test
+    public void givesUpAfterLastRetry() {
+        assertEquals(-1, policy.retryDelayMillis(task(4), status(503, null)));
+    }
+
+    @Test
+    public void permanentErrorsAreNotRetried() {
+        assertEquals(-1, policy.retryDelayMillis(task(1), status(404, null)));
+        assertEquals(-1, policy.retryDelayMillis(task(1), new IOException("disk full")));
+    }
+
+    @Test
+    public void retryAfterInSeconds() {
+        assertEquals(120_000, policy.retryDelayMillis(task(1), status(429, "120")));
+    }
+
+    @Test
+    public void retryAfterAsDate() {
+        String date = DateUtils.formatDate(new Date(System.currentTimeMillis() + 60_000));
+
+        long delay = policy.retryDelayMillis(task(1), status(503, date));
+
+        // дата в заголовке с точностью до секунды
+        assertTrue(String.valueOf(delay), delay > 58_000 && delay <= 60_000);
+    }
+
+    @Test
+    public void retryAfterIsCapped() {
+        assertEquals(TimeUnit.MINUTES.toMillis(5),
+            policy.retryDelayMillis(task(1), status(503, "86400")));
+    }
+
+    @Test
+    public void malformedRetryAfterFallsBackToBackoff() {
+        long delay = policy.retryDelayMillis(task(1), status(503, "soon"));
+
+        assertTrue(String.valueOf(delay), delay >= BASE_DELAY_MS / 2 && delay <= BASE_DELAY_MS);
+    }
+
+    @Test
+    public void timeoutsAreRetriedAtOnce() {
+        DownloadTimeoutException stall =
+            new DownloadTimeoutException(DownloadTimeoutException.Reason.STALL, null);
+
+        assertEquals(0, policy.retryDelayMillis(task(1), stall));
+        assertEquals(0, policy.retryDelayMillis(task(2), stall));
+        assertEquals(-1, policy.retryDelayMillis(task(3), stall));
+    }
+
+    @Test
+    public void deadlineIsNotRetried() {
+        assertEquals(-1, policy.retryDelayMillis(task(1),
+            new DownloadTimeoutException(DownloadTimeoutException.Reason.DEADLINE, null)));
+    }
+}
@@ -0,0 +1,168 @@
+package ru.chicker.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Встроенный HTTP-сервер для тестов и бенчмарков: отдает синтетическое
+ * содержимое заданного размера с заданной задержкой перед ответом и
+ * скоростью. Лежит в тестовых исходниках, бенчмарки берут его оттуда.
+ * <p>
+ * Ссылка вида {@code /payload/<размер>?lat=<мс>&bw=<байт/с>}. Сервер
+ * понимает HEAD и Range-запросы, поэтому на нем работают и закачка по
+ * частям, и предварительные HEAD-запросы. Задержка отсчитывается по
+ * таймеру, а не сном потока, так что тысячи медленных ответов не требуют
+ * тысяч потоков сервера.
+ */
+public final class PayloadServer implements AutoCloseable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int BACKLOG = 16 * 1024;
+    private static final byte[] CHUNK = new byte[CHUNK_SIZE];
+
+    static {
+        new Random(42).nextBytes(CHUNK);
+        // иначе заголовки и тело уходят отдельными пакетами и каждый
+        // маленький ответ ждет отложенного ACK клиента (~40 мс)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService writers = Executors.newCachedThreadPool(daemon("payload-writer"));
+    private final ScheduledExecutorService delays =
+        Executors.newSingleThreadScheduledExecutor(daemon("payload-delay"));
+
+    private PayloadServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            BACKLOG);
+        server.setExecutor(writers);
+        server.createContext("/payload/", this::handle);
+        server.start();
+    }
+
+    public static PayloadServer start() throws IOException {
+        return new PayloadServer();
+    }
+
+    /**
+     * @param latencyMs      задержка перед отправкой заголовков ответа
+     * @param bytesPerSecond скорость отдачи содержимого; 0 - без ограничения
+     */
+    public String url(long size, long latencyMs, long bytesPerSecond) {
+        return String.format("http://127.0.0.1:%d/payload/%d?lat=%d&bw=%d",
+            server.getAddress().getPort(), size, latencyMs, bytesPerSecond);
+    }
+
+    public String url(long size) {
+        return url(size, 0, 0);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        delays.shutdownNow();
+        writers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        long latencyMs = Long.parseLong(query.getOrDefault("lat", "0"));
+
+        if (latencyMs > 0) {
+            // обмен остается открытым и завершается из другого потока
+            delays.schedule(() -> writers.execute(() -> respond(exchange, query)),
+                latencyMs, TimeUnit.MILLISECONDS);
+        } else {
+            respond(exchange, query);
+        }
+    }
+
+    private void respond(HttpExchange exchange, Map<String, String> query) {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            long size = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+            long bytesPerSecond = Long.parseLong(query.getOrDefault("bw", "0"));
+
+            long start = 0;
+            long end = size;
+            int status = 200;
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(size, Long.parseLong(bounds[1]) + 1);
+                }
+                status = 206;
+                exchange.getResponseHeaders().add("Content-Range",
+                    String.format("bytes %d-%d/%d", start, end - 1, size));
+            }
+
+            long length = end - start;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            // 0 у HttpServer означает chunked, а пустое тело задается -1
+            exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            writeBody(exchange.getResponseBody(), length, bytesPerSecond);
+        } catch (IOException e) {
+            // клиент оборвал соединение, например при переделе сегментов
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void writeBody(OutputStream body, long length, long bytesPerSecond)
+    throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            int chunk = (int) Math.min(CHUNK_SIZE, length - sent);
+            body.write(CHUNK, 0, chunk);
+            sent += chunk;
+            if (bytesPerSecond > 0) {
+                long dueNanos = startNanos + sent * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> result = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                String[] keyValue = pair.split("=", 2);
+                result.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+            }
+        }
+        return result;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package ru.chicker.checksum;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link Crc32c} против контрольного значения и склейка сумм диапазонов.
+ */
+public class Crc32cTest {
+    private static long crc(byte[] bytes, int offset, int length) {
+        Crc32c crc = new Crc32c();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    @Test
+    public void matchesCheckValue() {
+        // контрольное значение CRC-32C из RFC 3720
+        byte[] bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+        assertEquals(0xE3069283L, crc(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void emptyInputGivesZero() {
+        assertEquals(0, new Crc32c().getValue());
+    }
+
+    @Test
+    public void directBufferGivesSameSumAsArray() {
+        byte[] bytes = new byte[1000];
+        new Random(1).nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+
+        Crc32c crc = new Crc32c();
+        crc.update(buffer);
+
+        assertEquals(crc(bytes, 0, bytes.length), crc.getValue());
+        assertEquals(buffer.limit(), buffer.position());
+    }
+
+    @Test
+    public void combineEqualsSumOfConcatenation() {
+        byte[] bytes = new byte[100_000];
+        new Random(2).nextBytes(bytes);
+
+        for (int split : new int[]{0, 1, 7, 8, 4096, 65_537, bytes.length}) {
+            long first = crc(bytes, 0, split);
+            long second = crc(bytes, split, bytes.length - split);
+
+            assertEquals("split " + split, crc(bytes, 0, bytes.length),
+                Crc32c.combine(first, second, bytes.length - split));
+        }
+    }
+
+    @Test
+    public void combineOfManyRangesEqualsWholeSum() {
+        byte[] bytes = new byte[10_000];
+        new Random(3).nextBytes(bytes);
+
+        long combined = crc(bytes, 0, 0);
+        for (int start = 0; start < bytes.length; start += 1234) {
+            int length = Math.min(1234, bytes.length - start);
+            combined = Crc32c.combine(combined, crc(bytes, start, length), length);
+        }
+
+        assertEquals(crc(bytes, 0, bytes.length), combined);
+    }
+}